@@ -1,16 +1,20 @@
 package me.legrange.panstamp;
 
-import me.legrange.panstamp.event.AbstractRegisterListener;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import me.legrange.panstamp.definition.Direction;
 import me.legrange.panstamp.definition.EndpointDefinition;
 import me.legrange.panstamp.definition.Unit;
+import me.legrange.panstamp.stream.Flow;
 
 /**
  * Abstract implementation of an endpoint that can be extended into endpoints
@@ -38,13 +42,13 @@ abstract class AbstractEndpoint<T> implements Endpoint<T> {
 
     @Override
     public String getUnit() {
-        return (unit != null) ? unit.getName() : "";
+        return codec.unitName(unit);
     }
 
     @Override
     public void setUnit(String unit) throws NoSuchUnitException {
         unit = (unit != null) ? unit.trim() : "";
-        this.unit = !unit.isEmpty() ? getUnit(unit) : null;
+        this.unit = !unit.isEmpty() ? getUnit(unit) : EndpointCodec.NO_UNIT;
     }
 
     @Override
@@ -53,34 +57,102 @@ abstract class AbstractEndpoint<T> implements Endpoint<T> {
     }
 
     @Override
-    public synchronized void addListener(EndpointListener<T> el) {
-        listeners.add(el);
+    public void addListener(EndpointListener<T> el) {
+        addListener(el, null);
+    }
+
+    @Override
+    public synchronized void addListener(EndpointListener<T> el, NotificationFilter filter) {
+        if (filter != null) {
+            if (filters.isEmpty()) {
+                filters = new ConcurrentHashMap<>();
+            }
+            filters.put(el, filter.newState());
+        } else {
+            filters.remove(el);
+        }
+        if (listeners.isEmpty()) {
+            listeners = new CopyOnWriteArraySet<>();
+        }
+        if (listeners.add(el)) {
+            dispatcher().register(el);
+        }
     }
 
     @Override
     public synchronized void removeListener(EndpointListener<T> el) {
-        listeners.remove(el);
+        if (listeners.remove(el)) {
+            filters.remove(el);
+            dispatcher().unregister(el);
+        }
+    }
+
+    @Override
+    public Flow.Publisher<T> getPublisher() {
+        StreamPublisher<T> pub = publisher;
+        if (pub == null) {
+            synchronized (this) {
+                if (publisher == null) {
+                    publisher = new StreamPublisher<>(dispatcher());
+                }
+                pub = publisher;
+            }
+        }
+        return pub;
+    }
+
+    @Override
+    public final double getDouble() {
+        byte value[] = reg.currentValue();
+        return (value != null) ? toDouble(unit, value) : Double.NaN;
+    }
+
+    @Override
+    public final long getLong() {
+        byte value[] = reg.currentValue();
+        return (value != null) ? toLong(unit, value) : 0;
+    }
+
+    @Override
+    public final boolean getBoolean() {
+        byte value[] = reg.currentValue();
+        return (value != null) && toBoolean(unit, value);
     }
 
     @Override
     public final T getValue() throws NetworkException {
-        return read(unit);
+        return read(unit, reg.readValue());
+    }
+
+    @Override
+    public final T getValue(long maxAge, TimeUnit unit) throws NetworkException {
+        return requestValue(unit.toMillis(maxAge)).await(reg.getDevice().getNetwork().getQueryTime(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public final T getValue(long maxAge, long timeout, TimeUnit unit) throws NetworkException {
+        return requestValue(unit.toMillis(maxAge)).await(timeout, unit);
+    }
+
+    @Override
+    public final Future<T> getValueAsync(long maxAge, TimeUnit unit) {
+        return requestValue(unit.toMillis(maxAge));
     }
 
     @Override
     public final void setValue(T value) throws NetworkException {
-        write(unit, value);
+        reg.edit().set(this, value).commit();
     }
 
     
     @Override
     public final T getValue(String unit) throws NetworkException {
-        return read(getUnit(unit));
+        return read(getUnit(unit), reg.readValue());
     }
 
     @Override
     public final void setValue(String unit, T value) throws NetworkException {
-        write(getUnit(unit), value);
+        reg.edit().set(this, unit, value).commit();
     }
 
     @Override
@@ -95,6 +167,9 @@ abstract class AbstractEndpoint<T> implements Endpoint<T> {
 
     @Override
     public int compareTo(Endpoint<T> o) {
+        if (o.getRegister() == null) {
+            return -1; // virtual endpoints come last
+        }
         int dif = getRegister().getDevice().getAddress() - o.getRegister().getDevice().getAddress();
         if (dif == 0) {
             dif = getRegister().getId() - o.getRegister().getId();
@@ -116,71 +191,239 @@ abstract class AbstractEndpoint<T> implements Endpoint<T> {
     
     /**
      * Write and transform the output value from a value in the given unit
+     * into the register bytes
      *
+     * @param unit The index of the unit from which to transform it
      * @param value The value to transform
-     * @param unit The unit from which to transform it
+     * @param bytes The register value to write the endpoint value into
+     */
+    protected abstract void write(int unit, T value, byte bytes[]);
+
+    /**
+     * Get the Java type of the endpoint values.
+     *
+     * @return The class of the values.
      */
-    protected abstract void write(Unit unit, T value) throws NetworkException;
+    abstract Class<T> getValueClass();
+
+    /**
+     * Write a value of a type only known at run time, such as a configured
+     * value, into the register bytes.
+     *
+     * @throws ClassCastException Thrown if the value is not of the endpoint's
+     * type.
+     */
+    final void writeObject(int unit, Object value, byte bytes[]) {
+        write(unit, getValueClass().cast(value), bytes);
+    }
 
     /**
      * Read and transform the input value to a value in the given unit
      *
-     * @param value The value to transform
-     * @param unit The unit to which to transform it
+     * @param unit The index of the unit to which to transform it
+     * @param value The register value from which to read the endpoint value
      * @return The transformed value
      */
-    protected abstract T read(Unit unit) throws NetworkException;
+    protected abstract T read(int unit, byte value[]);
 
-    protected final Unit getUnit(String name) throws NoSuchUnitException {
-        for (Unit u : epDef.getUnits()) {
-            if (u.getName().equals(name)) {
-                return u;
-            }
+    /**
+     * Read the input value as a double in the given unit. Endpoints that do
+     * not hold numbers return NaN.
+     *
+     * @param unit The index of the unit to which to transform it
+     * @param value The register value from which to read the endpoint value
+     * @return The transformed value
+     */
+    protected double toDouble(int unit, byte value[]) {
+        return Double.NaN;
+    }
+
+    /**
+     * Read the input value as a long in the given unit.
+     *
+     * @param unit The index of the unit to which to transform it
+     * @param value The register value from which to read the endpoint value
+     * @return The transformed value
+     */
+    protected long toLong(int unit, byte value[]) {
+        return (long) toDouble(unit, value);
+    }
+
+    /**
+     * Read the input value as a boolean, which is true for non-zero values.
+     *
+     * @param unit The index of the unit to which to transform it
+     * @param value The register value from which to read the endpoint value
+     * @return The transformed value
+     */
+    protected boolean toBoolean(int unit, byte value[]) {
+        return toLong(unit, value) != 0;
+    }
+
+    protected final int getUnit(String name) throws NoSuchUnitException {
+        int idx = codec.unitIndex(name);
+        if (idx == EndpointCodec.NO_UNIT) {
+            throw new NoSuchUnitException(String.format("No unit '%s' found in endpoint '%s'", name, getName()));
         }
-        throw new NoSuchUnitException(String.format("No unit '%s' found in endpoint '%s'", name, getName()));
+        return idx;
     }
 
-    protected AbstractEndpoint(Register reg, EndpointDefinition epDef) {
-        this.reg = reg;
-        this.epDef = epDef;
-        this.listeners = new CopyOnWriteArraySet<>();
-        reg.addListener(new AbstractRegisterListener() {
+    /**
+     * Get the index of the unit currently used.
+     */
+    final int currentUnit() {
+        return unit;
+    }
+
+    /**
+     * Get the value if it was received within the given age, or else query
+     * the device for it.
+     *
+     * @param maxAge The maximum age in milliseconds.
+     * @return The future value, in the current unit.
+     */
+    ResultFuture<T> requestValue(long maxAge) {
+        final ResultFuture<T> f = new ResultFuture<>();
+        final int u = unit;
+        RegisterState st = reg.getState();
+        if ((st != null) && (System.currentTimeMillis() - st.getTime() <= maxAge)) {
+            f.set(read(u, st.getValue()));
+            return f;
+        }
+        final ResultFuture<byte[]> q = reg.startQuery();
+        q.whenDone(new Runnable() {
+
             @Override
-            public void valueReceived(final Register reg, final byte[] value) {
-                for (final EndpointListener<T> l : listeners) {
-                    pool().submit(new Runnable() {
-
-                        @Override
-                        public void run() {
-                            try {
-                                l.valueReceived(AbstractEndpoint.this, getValue());
-                            } catch (NetworkException ex) {
-                                Logger.getLogger(AbstractEndpoint.class.getName()).log(Level.SEVERE, null, ex);
-                            }
-
-                        }
-                    }
-                    );
+            public void run() {
+                try {
+                    f.set(read(u, q.await()));
+                } catch (NetworkException | RuntimeException ex) {
+                    f.fail(ex);
                 }
             }
         });
-        unit = !epDef.getUnits().isEmpty() ? epDef.getUnits().get(0) : null;
+        return f;
+    }
+
+    protected AbstractEndpoint(Register reg, EndpointDefinition epDef, EndpointCodec codec) {
+        this.reg = reg;
+        this.epDef = epDef;
+        this.codec = codec;
+        unit = codec.defaultUnit();
+    }
+
+    /**
+     * A new value was received for the register. The value is decoded once and
+     * the decoded value is handed to all the listeners, so listeners always
+     * receive the value that triggered the event. Nothing is decoded if there
+     * are no listeners and the caller doesn't need the value. Filtered
+     * listeners are checked before anything is dispatched, and if the
+     * endpoint's bytes did not change they are skipped without decoding.
+     *
+     * @param value The new register value.
+     * @param decode True if the caller needs the decoded value.
+     * @param changed True if the endpoint's bytes differ from the previous
+     * value.
+     * @return The decoded value, or null if it was not decoded.
+     */
+    T valueReceived(byte value[], boolean decode, boolean changed) {
+        StreamPublisher<T> pub = publisher;
+        boolean publish = (pub != null) && pub.hasSubscribers();
+        Set<EndpointListener<T>> listeners = this.listeners;
+        Map<EndpointListener<T>, FilterState> filters = this.filters;
+        if (!changed && notifiesChangesOnly()) {
+            listeners = Collections.emptySet();
+        }
+        boolean filtered = !filters.isEmpty();
+        boolean notify = filtered ? (changed || (filters.size() < listeners.size())) : !listeners.isEmpty();
+        if (!decode && !publish && !notify) {
+            return null;
+        }
+        T decoded;
+        try {
+            decoded = read(unit, value);
+        } catch (RuntimeException ex) {
+            logger.log(Level.SEVERE, String.format("Could not decode value for endpoint '%s'", getName()), ex);
+            return null;
+        }
+        for (EndpointListener<T> l : listeners) {
+            FilterState f = filtered ? filters.get(l) : null;
+            if ((f != null) && !(changed && f.accept(decoded))) {
+                continue;
+            }
+            if (!dispatcher().dispatch(l, this, new ValueEvent<>(this, l, decoded))) {
+                removeListener(l);
+            }
+        }
+        if (publish) {
+            pub.publish(this, decoded);
+        }
+        return decoded;
+    }
+
+    /**
+     * Determine if listeners are only told about values that changed. Used by
+     * endpoints on registers packed with inputs, where most updates leave
+     * most endpoints unchanged.
+     *
+     * @return True if listeners only receive changed values.
+     */
+    protected boolean notifiesChangesOnly() {
+        return false;
     }
 
     void destroy() {
-        listeners.clear();
+        for (EndpointListener<T> l : listeners) {
+            removeListener(l);
+        }
+        completeStreams();
     }
 
     /**
-     * Get the executor service used to service library threads
+     * Tell the stream subscribers that no more values will be published.
      */
-    private ExecutorService pool() {
-        return reg.getPool();
+    void completeStreams() {
+        StreamPublisher<T> pub = publisher;
+        if (pub != null) {
+            pub.complete();
+        }
+    }
+
+    /**
+     * Get the dispatcher used to deliver events to listeners
+     */
+    private Dispatcher dispatcher() {
+        return reg.getDispatcher();
     }
 
     protected final Register reg;
     protected final EndpointDefinition epDef;
-    private final Set<EndpointListener<T>> listeners;
-    private Unit unit = null;
+    protected final EndpointCodec codec;
+    private volatile Set<EndpointListener<T>> listeners = Collections.emptySet();
+    private volatile Map<EndpointListener<T>, FilterState> filters = Collections.emptyMap();
+    private int unit;
+    private volatile StreamPublisher<T> publisher;
+    private static final Logger logger = Logger.getLogger(AbstractEndpoint.class.getName());
+
+    /**
+     * An immutable event delivering a decoded value to an endpoint listener.
+     */
+    static final class ValueEvent<T> implements Runnable {
+
+        ValueEvent(Endpoint<T> ep, EndpointListener<T> l, T value) {
+            this.ep = ep;
+            this.l = l;
+            this.value = value;
+        }
+
+        @Override
+        public void run() {
+            l.valueReceived(ep, value);
+        }
+
+        private final Endpoint<T> ep;
+        private final EndpointListener<T> l;
+        private final T value;
+    }
 
 }
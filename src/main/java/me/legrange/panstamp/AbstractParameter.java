@@ -56,6 +56,73 @@ abstract class AbstractParameter<T> implements Parameter<T> {
         return dif;
     }
 
+    @Override
+    public void setValue(T value) throws NetworkException {
+        reg.setValue(encode(value));
+    }
+
+    /**
+     * Convert a value to the register value that sets it, as sent by
+     * {@link #setValue(java.lang.Object)}.
+     *
+     * @param value The value.
+     * @return The register value.
+     * @throws NetworkException Thrown if the value could not be converted.
+     */
+    abstract byte[] encode(T value) throws NetworkException;
+
+    /**
+     * Write a value into a register value at the parameter's position,
+     * leaving the rest of the register value as it is.
+     *
+     * @param value The value.
+     * @param bytes The register value to write the value into.
+     * @throws NetworkException Thrown if the value could not be converted.
+     */
+    void write(T value, byte bytes[]) throws NetworkException {
+        byte enc[] = encode(value);
+        System.arraycopy(enc, 0, bytes, par.getPosition().getBytePos(), enc.length);
+    }
+
+    /**
+     * Mark the bits of a register value that the parameter occupies.
+     *
+     * @param mask The mask to mark the bits in.
+     */
+    void mask(byte mask[]) {
+        int pos = par.getPosition().getBytePos();
+        for (int i = pos; i < pos + par.getSize().getBytes(); ++i) {
+            mask[i] = (byte) 0xFF;
+        }
+    }
+
+    /**
+     * Get the position after the last byte of the parameter.
+     *
+     * @return The end of the parameter in the register value.
+     */
+    int end() {
+        return par.getPosition().getBytePos() + Math.max(par.getSize().getBytes(), 1);
+    }
+
+    /**
+     * Get the Java type of the parameter values.
+     *
+     * @return The class of the values.
+     */
+    abstract Class<T> getValueClass();
+
+    /**
+     * Write a value of a type only known at run time, such as a configured
+     * value, into a register value.
+     *
+     * @throws ClassCastException Thrown if the value is not of the
+     * parameter's type.
+     */
+    final void writeObject(Object value, byte bytes[]) throws NetworkException {
+        write(getValueClass().cast(value), bytes);
+    }
+
     AbstractParameter(Register reg, ParameterDefinition par) {
         this.reg = reg;
         this.par = par;
@@ -0,0 +1,25 @@
+package me.legrange.panstamp;
+
+import java.util.List;
+
+/**
+ * Implement this to receive register or endpoint updates in batches instead of
+ * one callback per value. This is useful for consumers that persist every
+ * value and can do bulk inserts.
+ *
+ * @param <U> The type of update received, either RegisterUpdate or
+ * EndpointUpdate.
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public interface BatchListener<U> {
+
+    /**
+     * A batch of updates was received from the network.
+     *
+     * @param nw The network involved.
+     * @param updates The updates in the order they were received.
+     */
+    void updatesReceived(Network nw, List<U> updates);
+
+}
@@ -0,0 +1,122 @@
+package me.legrange.panstamp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects updates for a batch listener and delivers them when the batch is
+ * full or when the oldest update in the batch has waited for the maximum
+ * delay, whichever comes first.
+ *
+ * @param <U> The type of update collected.
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+final class Batcher<U> {
+
+    void add(U update) {
+        List<U> full = null;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            batch.add(update);
+            if (batch.size() >= maxSize) {
+                full = take();
+            } else if (timeout == null) {
+                timeout = nw.getTimer().schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, maxDelay, TimeUnit.NANOSECONDS);
+            }
+        }
+        deliver(full);
+    }
+
+    void addAll(List<U> updates) {
+        for (U update : updates) {
+            add(update);
+        }
+    }
+
+    void flush() {
+        List<U> ready;
+        synchronized (this) {
+            ready = take();
+        }
+        deliver(ready);
+    }
+
+    void close() {
+        List<U> ready;
+        synchronized (this) {
+            closed = true;
+            ready = take();
+        }
+        deliver(ready);
+    }
+
+    BatchListener<U> getListener() {
+        return l;
+    }
+
+    Batcher(Network nw, BatchListener<U> l, int maxSize, long maxDelay, TimeUnit unit) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException(String.format("Invalid batch size %d", maxSize));
+        }
+        this.nw = nw;
+        this.l = l;
+        this.maxSize = maxSize;
+        this.maxDelay = unit.toNanos(maxDelay);
+        this.batch = new ArrayList<>(maxSize);
+    }
+
+    /**
+     * take the current batch and start a new one. Must be called while
+     * holding the lock.
+     */
+    private List<U> take() {
+        if (timeout != null) {
+            timeout.cancel(false);
+            timeout = null;
+        }
+        if (batch.isEmpty()) {
+            return null;
+        }
+        List<U> ready = batch;
+        batch = new ArrayList<>(maxSize);
+        return ready;
+    }
+
+    private void deliver(List<U> ready) {
+        if (ready == null) {
+            return;
+        }
+        final List<U> updates = Collections.unmodifiableList(ready);
+        boolean connected = nw.getDispatcher().dispatch(l, null, new Runnable() {
+
+            @Override
+            public void run() {
+                l.updatesReceived(nw, updates);
+            }
+        });
+        if (!connected) {
+            nw.removeBatchListener(l);
+        }
+    }
+
+    private final Network nw;
+    private final BatchListener<U> l;
+    private final int maxSize;
+    private final long maxDelay;
+    private List<U> batch;
+    private ScheduledFuture<?> timeout;
+    private boolean closed;
+
+}
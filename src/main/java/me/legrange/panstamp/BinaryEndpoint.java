@@ -1,7 +1,6 @@
 package me.legrange.panstamp;
 
 import me.legrange.panstamp.definition.EndpointDefinition;
-import me.legrange.panstamp.definition.Unit;
 
 /**
  * An endpoint that supports the "binary" type from the XML definitions and maps
@@ -12,8 +11,8 @@ import me.legrange.panstamp.definition.Unit;
  */
 final class BinaryEndpoint extends AbstractEndpoint<Boolean> {
 
-    BinaryEndpoint(Register reg, EndpointDefinition epDef) {
-        super(reg, epDef);
+    BinaryEndpoint(Register reg, EndpointDefinition epDef, EndpointCodec codec) {
+        super(reg, epDef, codec);
     }
 
     @Override
@@ -22,25 +21,42 @@ final class BinaryEndpoint extends AbstractEndpoint<Boolean> {
     }
 
     @Override
-    protected Boolean read(Unit unit) throws NoValueException {
-        byte val[] = reg.getValue();
-        int byteIdx = epDef.getPosition().getBytePos();
-        int bitIdx = epDef.getPosition().getBitPos();
-        return (val[byteIdx] & (0b1 << bitIdx)) != 0;
+    Class<Boolean> getValueClass() {
+        return Boolean.class;
     }
 
     @Override
-    protected void write(Unit unit, Boolean value) throws NetworkException {
-        byte val[];
-        if (reg.hasValue()) {
-            val = reg.getValue();
-        } else {
-            val = new byte[epDef.getRegister().getByteSize()];
-        }
-        int byteIdx = epDef.getPosition().getBytePos();
-        int bitIdx = epDef.getPosition().getBitPos();
-        val[byteIdx] = (byte) (val[byteIdx] & ~(0b1 << bitIdx) | ((byte) (value ? 0b1 : 0b0) << bitIdx));
-        reg.setValue(val);
+    protected Boolean read(int unit, byte val[]) {
+        return codec.bit(val);
+    }
+
+    @Override
+    protected boolean toBoolean(int unit, byte val[]) {
+        return codec.bit(val);
+    }
+
+    @Override
+    protected long toLong(int unit, byte val[]) {
+        return codec.bit(val) ? 1 : 0;
+    }
+
+    @Override
+    protected double toDouble(int unit, byte val[]) {
+        return toLong(unit, val);
+    }
+
+    /**
+     * Listeners of binary endpoints are only told when the endpoint's bit
+     * flips.
+     */
+    @Override
+    protected boolean notifiesChangesOnly() {
+        return true;
+    }
+
+    @Override
+    protected void write(int unit, Boolean value, byte val[]) {
+        codec.bit(val, value);
     }
 
 }
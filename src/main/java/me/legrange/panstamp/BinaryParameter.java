@@ -20,6 +20,11 @@ final class BinaryParameter extends AbstractParameter<Boolean> {
         return Type.BINARY;
     }
 
+    @Override
+    Class<Boolean> getValueClass() {
+        return Boolean.class;
+    }
+
     @Override
     public Boolean getValue() throws NetworkException {
         byte val[] = reg.getValue();
@@ -29,12 +34,25 @@ final class BinaryParameter extends AbstractParameter<Boolean> {
     }
 
     @Override
-    public void setValue(Boolean value) throws NetworkException {
+    byte[] encode(Boolean value) throws NetworkException {
         byte val[] = reg.getValue();
         int byteIdx = par.getPosition().getBytePos();
         int bitIdx = par.getPosition().getBitPos();
         val[byteIdx] = (byte)(val[byteIdx] & ~(0b1 << bitIdx) | ((byte)(value ? 0b1 : 0b0) << bitIdx));  
-        reg.setValue(val);
+        return val;
+    }
+
+    @Override
+    void write(Boolean value, byte bytes[]) {
+        int byteIdx = par.getPosition().getBytePos();
+        int bitIdx = par.getPosition().getBitPos();
+        bytes[byteIdx] = (byte) ((bytes[byteIdx] & ~(0b1 << bitIdx)) | ((value ? 0b1 : 0b0) << bitIdx));
+    }
+
+    @Override
+    void mask(byte mask[]) {
+        int byteIdx = par.getPosition().getBytePos();
+        mask[byteIdx] = (byte) (mask[byteIdx] | (0b1 << par.getPosition().getBitPos()));
     }
 
     @Override
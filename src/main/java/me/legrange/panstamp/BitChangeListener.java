@@ -0,0 +1,28 @@
+package me.legrange.panstamp;
+
+import java.util.BitSet;
+
+/**
+ * A listener that is told which bits of a register flipped, for registers
+ * that pack many binary inputs. It is only called when at least one bit
+ * changed, with a single event for all the bits that flipped.
+ * <p>
+ * Bit n of the bit sets is bit (n % 8) of byte (n / 8) of the register,
+ * matching endpoint positions written as "byte.bit" in device definitions.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public interface BitChangeListener {
+
+    /**
+     * Called when bits of a register changed.
+     *
+     * @param reg The register.
+     * @param changed The bits that flipped. All bits are set for the first
+     * value received.
+     * @param value The new register value as bits.
+     */
+    void bitsChanged(Register reg, BitSet changed, BitSet value);
+
+}
@@ -1,7 +1,7 @@
 package me.legrange.panstamp;
 
+import java.util.Arrays;
 import me.legrange.panstamp.definition.EndpointDefinition;
-import me.legrange.panstamp.definition.Unit;
 
 /**
  * An endpoint that supports the "bstr" type from the XML definitions and maps
@@ -12,8 +12,8 @@ import me.legrange.panstamp.definition.Unit;
  */
 final class ByteArrayEndpoint extends AbstractEndpoint<byte[]> {
 
-    ByteArrayEndpoint(Register reg, EndpointDefinition epDef) {
-        super(reg, epDef);
+    ByteArrayEndpoint(Register reg, EndpointDefinition epDef, EndpointCodec codec) {
+        super(reg, epDef, codec);
 
     }
 
@@ -23,22 +23,25 @@ final class ByteArrayEndpoint extends AbstractEndpoint<byte[]> {
     }
 
     @Override
-    protected byte[] read(Unit unit) throws NoValueException {
-        byte bytes[] = reg.getValue();
+    Class<byte[]> getValueClass() {
+        return byte[].class;
+    }
+
+    @Override
+    protected byte[] read(int unit, byte bytes[]) {
         byte keep[] = new byte[epDef.getSize().getBytes()];
         System.arraycopy(bytes, epDef.getPosition().getBytePos(), keep, 0, epDef.getSize().getBytes());
         return keep;
     }
 
     @Override
-    protected void write(Unit unit, byte[] value) throws NetworkException {
+    protected void write(int unit, byte[] value, byte bytes[]) {
         int len = epDef.getSize().getBytes();
-        byte bytes[] = new byte[len];
+        Arrays.fill(bytes, codec.getBytePos(), codec.getBytePos() + len, (byte) 0);
         if (value.length < len) {
            len = value.length;
         } 
-        System.arraycopy(value, 0, bytes, epDef.getPosition().getBytePos(), len);
-        reg.setValue(bytes);
+        System.arraycopy(value, 0, bytes, codec.getBytePos(), len);
     }
 
 }
@@ -1,5 +1,6 @@
 package me.legrange.panstamp;
 
+import java.util.Arrays;
 import me.legrange.panstamp.definition.ParameterDefinition;
 
 /**
@@ -20,6 +21,11 @@ final class ByteArrayParameter extends AbstractParameter<byte[]> {
     public Type getType() {
         return Type.BYTE_ARRAY;
     }
+
+    @Override
+    Class<byte[]> getValueClass() {
+        return byte[].class;
+    }
     
    
     @Override
@@ -31,14 +37,23 @@ final class ByteArrayParameter extends AbstractParameter<byte[]> {
     }
   
     @Override
-    public void setValue(byte[] value) throws NetworkException {
+    byte[] encode(byte[] value) throws NetworkException {
         int len = par.getSize().getBytes();
         byte bytes[] = new byte[len];
         if (value.length < len) {
             len = value.length;
         } 
         System.arraycopy(value, 0, bytes, par.getPosition().getBytePos(), len);
-        reg.setValue(bytes);
+        return bytes;
+    }
+
+    @Override
+    void write(byte[] value, byte bytes[]) {
+        byte enc[] = value;
+        int pos = par.getPosition().getBytePos();
+        int len = par.getSize().getBytes();
+        Arrays.fill(bytes, pos, pos + len, (byte) 0);
+        System.arraycopy(enc, 0, bytes, pos, Math.min(enc.length, len));
     }
 
     @Override
@@ -0,0 +1,90 @@
+package me.legrange.panstamp;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Base class for the typed device accessors generated from XML device
+ * definitions by {@link me.legrange.panstamp.xml.AccessorGenerator}. A
+ * generated accessor looks up each register of a device when it is first read
+ * and caches it, and reads endpoint values straight from the register bytes at
+ * offsets fixed at generation time.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public abstract class DeviceAccessor {
+
+    /**
+     * Get the device this accessor reads from.
+     *
+     * @return The device.
+     */
+    public final PanStamp getDevice() {
+        return dev;
+    }
+
+    /**
+     * Create a new accessor for the given device.
+     *
+     * @param dev The device to read from.
+     */
+    protected DeviceAccessor(PanStamp dev) {
+        this.dev = dev;
+    }
+
+    /**
+     * Get the current bytes of a register without copying them. The array
+     * must not be modified.
+     *
+     * @param reg The register.
+     * @return The register bytes, or null if no value is known.
+     */
+    protected static byte[] value(Register reg) {
+        return reg.currentValue();
+    }
+
+    /**
+     * Read an unsigned big-endian value from register bytes.
+     *
+     * @param value The register bytes.
+     * @param pos The byte position of the value.
+     * @param size The size of the value in bytes.
+     * @return The value.
+     */
+    protected static long raw(byte value[], int pos, int size) {
+        long val = 0;
+        for (int i = pos; i < pos + size; ++i) {
+            val = (val << 8) | (value[i] & 0xFF);
+        }
+        return val;
+    }
+
+    /**
+     * Read a bit from register bytes.
+     *
+     * @param value The register bytes.
+     * @param pos The byte position of the bit.
+     * @param mask The mask selecting the bit.
+     * @return True if the bit is set.
+     */
+    protected static boolean bit(byte value[], int pos, int mask) {
+        return (value[pos] & mask) != 0;
+    }
+
+    /**
+     * Read an ASCII string from register bytes. A register value that is
+     * shorter than the definition gives a shorter string.
+     *
+     * @param value The register bytes.
+     * @param pos The byte position of the string.
+     * @param size The size of the string in bytes.
+     * @return The string.
+     */
+    protected static String string(byte value[], int pos, int size) {
+        int len = Math.max(0, Math.min(size, value.length - pos));
+        return new String(value, Math.min(pos, value.length), len, StandardCharsets.US_ASCII);
+    }
+
+    private final PanStamp dev;
+
+}
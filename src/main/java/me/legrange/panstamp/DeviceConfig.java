@@ -0,0 +1,208 @@
+package me.legrange.panstamp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The configuration to provision on a device with a {@link ProvisioningJob}.
+ * Parameters and output endpoints are named as in the device definition,
+ * and the standard settings have their own methods. Settings that fall in
+ * the same register are sent in one command, and registers are sent in the
+ * order their first setting was added, so a channel or network change
+ * should be added last. Settings are written into the current register
+ * values, so registers whose value is not known are queried first.
+ * <pre>
+ * DeviceConfig cfg = new DeviceConfig().setTxInterval(60).setParameter("Sample rate", 10);
+ * </pre>
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public final class DeviceConfig {
+
+    /**
+     * Set a parameter. Parameters in the same register are written at their
+     * positions in one register value, as output endpoints are.
+     *
+     * @param name The name of the parameter.
+     * @param value The value, of the parameter's type.
+     * @return This configuration.
+     */
+    public DeviceConfig setParameter(String name, Object value) {
+        settings.add(new Setting(name, value, true));
+        return this;
+    }
+
+    /**
+     * Set an output endpoint, in the endpoint's current unit.
+     *
+     * @param name The name of the endpoint.
+     * @param value The value, of the endpoint's type.
+     * @return This configuration.
+     */
+    public DeviceConfig setEndpoint(String name, Object value) {
+        settings.add(new Setting(name, value, false));
+        return this;
+    }
+
+    /**
+     * Set the transmit interval.
+     *
+     * @param txInterval The interval in seconds.
+     * @return This configuration.
+     */
+    public DeviceConfig setTxInterval(int txInterval) {
+        return setEndpoint(StandardEndpoint.PERIODIC_TX_INTERVAL.getName(), txInterval);
+    }
+
+    /**
+     * Set the network channel.
+     *
+     * @param channel The channel.
+     * @return This configuration.
+     */
+    public DeviceConfig setChannel(int channel) {
+        return setEndpoint(StandardEndpoint.FREQUENCY_CHANNEL.getName(), channel);
+    }
+
+    /**
+     * Set the network ID.
+     *
+     * @param networkId The network ID.
+     * @return This configuration.
+     */
+    public DeviceConfig setNetworkId(int networkId) {
+        return setEndpoint(StandardEndpoint.NETWORK_ID.getName(), networkId);
+    }
+
+    /**
+     * Set the security option.
+     *
+     * @param option The security option.
+     * @return This configuration.
+     */
+    public DeviceConfig setSecurityOption(int option) {
+        return setEndpoint(StandardEndpoint.SECURITY_OPTION.getName(), option);
+    }
+
+    /**
+     * Work out the register values that apply the configuration to a device,
+     * leaving out registers that already have them. Settings are written
+     * into the current register values, so the current value of every
+     * register with settings must be known.
+     *
+     * @return The register values, in the order to send them.
+     * @throws NetworkException Thrown if a setting does not exist on the
+     * device, has a value of the wrong type, or the current value of its
+     * register is unknown.
+     */
+    Map<Register, byte[]> resolve(PanStamp dev) throws NetworkException {
+        Map<Register, byte[]> values = new LinkedHashMap<>();
+        for (Setting s : settings) {
+            try {
+                if (s.parameter) {
+                    AbstractParameter<?> par = findParameter(dev, s.name);
+                    par.writeObject(s.value, valueFor(dev, values, par.getRegister(), par.end()));
+                } else {
+                    AbstractEndpoint<?> ep = findEndpoint(dev, s.name);
+                    byte bytes[] = valueFor(dev, values, ep.getRegister(), ep.codec.getBytePos() + Math.max(ep.codec.getSize(), 1));
+                    ep.writeObject(ep.currentUnit(), s.value, bytes);
+                }
+            } catch (ClassCastException ex) {
+                throw new MoteException(String.format("Invalid value '%s' for '%s' on device %d", s.value, s.name, dev.getAddress()), ex);
+            }
+        }
+        for (Register reg : new ArrayList<>(values.keySet())) {
+            if (Arrays.equals(reg.currentValue(), values.get(reg))) {
+                values.remove(reg);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Get the registers with settings whose current value is not known, and
+     * have to be queried before the configuration can be resolved.
+     *
+     * @return The registers.
+     * @throws NetworkException Thrown if a setting does not exist on the
+     * device.
+     */
+    Set<Register> unknownRegisters(PanStamp dev) throws NetworkException {
+        Set<Register> res = new LinkedHashSet<>();
+        for (Setting s : settings) {
+            Register reg = s.parameter ? findParameter(dev, s.name).getRegister() : findEndpoint(dev, s.name).getRegister();
+            if (reg.currentValue() == null) {
+                res.add(reg);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * get the register value the settings of a register are written into,
+     * starting from the current value and grown to fit the setting if the
+     * value is short
+     *
+     * @param end The end of the setting in the register value.
+     */
+    private byte[] valueFor(PanStamp dev, Map<Register, byte[]> values, Register reg, int end) throws NetworkException {
+        byte bytes[] = values.get(reg);
+        if (bytes == null) {
+            byte cur[] = reg.currentValue();
+            if (cur == null) {
+                throw new MoteException(String.format("Cannot configure register %d of device %d, current value unknown", reg.getId(), dev.getAddress()));
+            }
+            bytes = cur.clone();
+        }
+        if (bytes.length < end) {
+            bytes = Arrays.copyOf(bytes, end);
+        }
+        values.put(reg, bytes);
+        return bytes;
+    }
+
+    private AbstractParameter<?> findParameter(PanStamp dev, String name) throws NetworkException {
+        for (Register reg : dev.getRegisters()) {
+            for (Parameter<?> par : reg.getParameters()) {
+                if (par.getName().equals(name) && (par instanceof AbstractParameter)) {
+                    return (AbstractParameter<?>) par;
+                }
+            }
+        }
+        throw new MoteException(String.format("Could not find parameter '%s' on device %d", name, dev.getAddress()));
+    }
+
+    private AbstractEndpoint<?> findEndpoint(PanStamp dev, String name) throws NetworkException {
+        for (Register reg : dev.getRegisters()) {
+            if (reg.hasEndpoint(name)) {
+                Endpoint<?> ep = reg.getEndpoint(name);
+                if (ep instanceof AbstractEndpoint) {
+                    return (AbstractEndpoint<?>) ep;
+                }
+            }
+        }
+        throw new EndpointNotFoundException(String.format("Could not find endpoint '%s' on device %d", name, dev.getAddress()));
+    }
+
+    private final List<Setting> settings = new ArrayList<>();
+
+    private static final class Setting {
+
+        private Setting(String name, Object value, boolean parameter) {
+            this.name = name;
+            this.value = value;
+            this.parameter = parameter;
+        }
+
+        private final String name;
+        private final Object value;
+        private final boolean parameter;
+    }
+
+}
@@ -0,0 +1,133 @@
+package me.legrange.panstamp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A concurrent registry of the devices in a network, indexed directly by
+ * address. Standard 8-bit addresses are kept in a flat array and extended
+ * 16-bit addresses in a table of lazily created pages. Lookups never lock or
+ * allocate.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+final class DeviceRegistry {
+
+    /**
+     * Get the device with the given address.
+     *
+     * @param address The device address.
+     * @return The device, or null if no device with that address is known.
+     */
+    PanStamp get(int address) {
+        if (address < PAGE_SIZE) {
+            return (address >= 0) ? standard.get(address) : null;
+        }
+        if (address > MAX_ADDRESS) {
+            return null;
+        }
+        AtomicReferenceArray<PanStamp> page = pages.get(address >>> PAGE_BITS);
+        return (page != null) ? page.get(address & PAGE_MASK) : null;
+    }
+
+    /**
+     * Add the device if no device with the same address is known.
+     *
+     * @param dev The device to add.
+     * @return The device already known for the address, or null if the new
+     * device was added.
+     */
+    PanStamp putIfAbsent(PanStamp dev) {
+        int address = dev.getAddress();
+        AtomicReferenceArray<PanStamp> slots = slotsFor(address);
+        int idx = indexFor(address);
+        while (true) {
+            if (slots.compareAndSet(idx, null, dev)) {
+                return null;
+            }
+            PanStamp cur = slots.get(idx);
+            if (cur != null) {
+                return cur;
+            }
+        }
+    }
+
+    /**
+     * Add the device, replacing any device with the same address.
+     *
+     * @param dev The device to add.
+     * @return The device previously known for the address, or null.
+     */
+    PanStamp put(PanStamp dev) {
+        int address = dev.getAddress();
+        return slotsFor(address).getAndSet(indexFor(address), dev);
+    }
+
+    /**
+     * Remove the device with the given address.
+     *
+     * @param address The device address.
+     * @return The device removed, or null if no device was known.
+     */
+    PanStamp remove(int address) {
+        if ((address < 0) || (address > MAX_ADDRESS)) {
+            return null;
+        }
+        if (address >= PAGE_SIZE) {
+            AtomicReferenceArray<PanStamp> page = pages.get(address >>> PAGE_BITS);
+            return (page != null) ? page.getAndSet(address & PAGE_MASK, null) : null;
+        }
+        return standard.getAndSet(address, null);
+    }
+
+    /**
+     * Return all the devices in address order.
+     *
+     * @return The list of devices.
+     */
+    List<PanStamp> values() {
+        List<PanStamp> res = new ArrayList<>();
+        for (int p = 0; p < PAGE_SIZE; ++p) {
+            AtomicReferenceArray<PanStamp> slots = (p == 0) ? standard : pages.get(p);
+            if (slots != null) {
+                for (int i = 0; i < PAGE_SIZE; ++i) {
+                    PanStamp dev = slots.get(i);
+                    if (dev != null) {
+                        res.add(dev);
+                    }
+                }
+            }
+        }
+        return res;
+    }
+
+    private AtomicReferenceArray<PanStamp> slotsFor(int address) {
+        if ((address < 0) || (address > MAX_ADDRESS)) {
+            throw new IllegalArgumentException(String.format("Invalid device address %d", address));
+        }
+        if (address < PAGE_SIZE) {
+            return standard;
+        }
+        int p = address >>> PAGE_BITS;
+        AtomicReferenceArray<PanStamp> page = pages.get(p);
+        if (page == null) {
+            pages.compareAndSet(p, null, new AtomicReferenceArray<PanStamp>(PAGE_SIZE));
+            page = pages.get(p);
+        }
+        return page;
+    }
+
+    private int indexFor(int address) {
+        return address & PAGE_MASK;
+    }
+
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int MAX_ADDRESS = 0xFFFF;
+    private final AtomicReferenceArray<PanStamp> standard = new AtomicReferenceArray<>(PAGE_SIZE);
+    private final AtomicReferenceArray<AtomicReferenceArray<PanStamp>> pages = new AtomicReferenceArray<>(PAGE_SIZE);
+
+}
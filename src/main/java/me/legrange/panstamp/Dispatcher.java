@@ -0,0 +1,232 @@
+package me.legrange.panstamp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Delivers events to library listeners through a bounded queue per listener,
+ * and runs a watchdog that reports listeners that are too slow to keep up.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+final class Dispatcher {
+
+    /**
+     * Register a listener so that events can be dispatched to it. A listener
+     * can be registered more than once (for example on several registers) and
+     * shares one queue for all of its registrations.
+     */
+    void register(Object listener) {
+        synchronized (queues) {
+            ListenerQueue q = queues.get(listener);
+            if (q == null) {
+                q = new ListenerQueue(listener, pool, capacity, policy);
+                Config conf = configs.get(listener);
+                if (conf != null) {
+                    if (conf.capacity > 0) {
+                        q.setCapacity(conf.capacity);
+                    }
+                    q.setPolicy(conf.policy);
+                }
+                queues.put(listener, q);
+            }
+            q.retain();
+        }
+    }
+
+    /**
+     * Register a listener with its own overflow policy instead of the
+     * network's, unless the listener has been configured already. The queue
+     * size follows the network's.
+     */
+    void register(Object listener, OverflowPolicy policy) {
+        synchronized (queues) {
+            if (!configs.containsKey(listener)) {
+                configs.put(listener, new Config(0, policy));
+            }
+            register(listener);
+        }
+    }
+
+    /**
+     * Create a queue for a stream subscription. Events are only delivered
+     * once the subscriber signals demand through the queue.
+     */
+    ListenerQueue subscribe(Object subscription) {
+        ListenerQueue q = new ListenerQueue(subscription, pool, capacity, policy, 0);
+        synchronized (queues) {
+            q.retain();
+            queues.put(subscription, q);
+        }
+        return q;
+    }
+
+    /**
+     * Remove a registration for a listener. The queue is discarded once all
+     * registrations have been removed.
+     */
+    void unregister(Object listener) {
+        synchronized (queues) {
+            ListenerQueue q = queues.get(listener);
+            if ((q != null) && (q.release() <= 0)) {
+                queues.remove(listener);
+                configs.remove(listener);
+            }
+        }
+    }
+
+    /**
+     * Dispatch an event to a listener.
+     *
+     * @param listener The listener receiving the event.
+     * @param key The key used to conflate events, or null.
+     * @param task The task delivering the event.
+     * @return False if the listener was disconnected and must be removed by
+     * the caller.
+     */
+    boolean dispatch(Object listener, Object key, Runnable task) {
+        ListenerQueue q = queues.get(listener);
+        if (q == null) {
+            return true; // listener was removed while events were in flight
+        }
+        return q.offer(key, task);
+    }
+
+    void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(String.format("Invalid listener queue size %d", capacity));
+        }
+        synchronized (queues) {
+            this.capacity = capacity;
+            for (ListenerQueue q : queues.values()) {
+                Config conf = configs.get(q.getListener());
+                if ((conf == null) || (conf.capacity == 0)) {
+                    q.setCapacity(capacity);
+                }
+            }
+        }
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    void setPolicy(OverflowPolicy policy) {
+        synchronized (queues) {
+            this.policy = policy;
+            for (ListenerQueue q : queues.values()) {
+                if (!configs.containsKey(q.getListener())) {
+                    q.setPolicy(policy);
+                }
+            }
+        }
+    }
+
+    OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    void configure(Object listener, int capacity, OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(String.format("Invalid listener queue size %d", capacity));
+        }
+        synchronized (queues) {
+            configs.put(listener, new Config(capacity, policy));
+            ListenerQueue q = queues.get(listener);
+            if (q != null) {
+                q.setCapacity(capacity);
+                q.setPolicy(policy);
+            }
+        }
+    }
+
+    synchronized void setSlowThreshold(long time, TimeUnit unit) {
+        slowThreshold = unit.toNanos(time);
+        if (watchdog != null) {
+            watchdog.cancel(false);
+        }
+        long period = Math.max(slowThreshold / 2, TimeUnit.MILLISECONDS.toNanos(MIN_WATCHDOG_PERIOD));
+        watchdog = timer.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                checkListeners();
+            }
+        }, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    long getSlowThreshold(TimeUnit unit) {
+        return unit.convert(slowThreshold, TimeUnit.NANOSECONDS);
+    }
+
+    List<ListenerStatus> getStatus() {
+        List<ListenerStatus> res = new ArrayList<>();
+        for (ListenerQueue q : queues.values()) {
+            res.add(q.getStatus());
+        }
+        return res;
+    }
+
+    Dispatcher(ExecutorService pool, ScheduledExecutorService timer) {
+        this.pool = pool;
+        this.timer = timer;
+        setSlowThreshold(DEFAULT_SLOW_THRESHOLD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Report listeners that are busy with an event for longer than the
+     * threshold, or that have dropped events since the last check.
+     */
+    private void checkListeners() {
+        for (ListenerQueue q : queues.values()) {
+            long busy = q.getBusyNanos();
+            long latency = Math.max(busy, q.takeWindowLatency());
+            long dropped = q.getDropped();
+            Long before = reported.put(q, dropped);
+            long newDrops = dropped - ((before != null) ? before : 0);
+            if ((latency > slowThreshold) || (newDrops > 0)) {
+                logger.warning(String.format("Slow listener %s: callback latency %d ms, %d events dropped (%d since last report)",
+                        q.getListener(), TimeUnit.NANOSECONDS.toMillis(latency), dropped, newDrops));
+            }
+        }
+        reported.keySet().retainAll(queues.values());
+    }
+
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final long DEFAULT_SLOW_THRESHOLD = 1000;
+    private static final long MIN_WATCHDOG_PERIOD = 50;
+    private final ExecutorService pool;
+    private final ScheduledExecutorService timer;
+    private final Map<Object, ListenerQueue> queues = new ConcurrentHashMap<>();
+    private final Map<Object, Config> configs = new ConcurrentHashMap<>();
+    private final Map<ListenerQueue, Long> reported = new ConcurrentHashMap<>();
+    private volatile int capacity = DEFAULT_CAPACITY;
+    private volatile OverflowPolicy policy = OverflowPolicy.DROP_OLDEST;
+    private volatile long slowThreshold;
+    private ScheduledFuture<?> watchdog;
+    private static final Logger logger = Logger.getLogger(Dispatcher.class.getName());
+
+    /**
+     * the queue size and policy for a listener, with a size of 0 following
+     * the network's
+     */
+    private static class Config {
+
+        private Config(int capacity, OverflowPolicy policy) {
+            this.capacity = capacity;
+            this.policy = policy;
+        }
+
+        private final int capacity;
+        private final OverflowPolicy policy;
+    }
+
+}
@@ -1,6 +1,9 @@
 package me.legrange.panstamp;
 
 import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import me.legrange.panstamp.stream.Flow;
 
 /**
  * A PanStamp endpoint
@@ -62,6 +65,17 @@ public interface Endpoint<T> extends Comparable<Endpoint<T>> {
      * @param el Listener that will receive incoming data
      */
     void addListener(EndpointListener<T> el);
+
+    /**
+     * Add a listener to the endpoint that is only notified of the values
+     * passing the given filter. Filters are applied before events are queued,
+     * so suppressed values cost the listener nothing.
+     *
+     * @param el Listener that will receive incoming data
+     * @param filter The filter to apply, or null to receive all values.
+     * @since 2.2
+     */
+    void addListener(EndpointListener<T> el, NotificationFilter filter);
     
     /** Remove a listener from the endpoint.
      * 
@@ -69,6 +83,43 @@ public interface Endpoint<T> extends Comparable<Endpoint<T>> {
      */
     void removeListener(EndpointListener<T> el);
     
+    /**
+     * Get a publisher for the values received for this endpoint, converted to
+     * the endpoint's current unit.
+     *
+     * @return The publisher.
+     * @since 2.2
+     */
+    Flow.Publisher<T> getPublisher();
+
+    /**
+     * Get the current value as a double in the current unit. This does not
+     * allocate or throw; non-numeric endpoints and endpoints without a value
+     * return NaN. Use hasValue() to tell a missing value from a NaN reading.
+     *
+     * @return The value.
+     * @since 2.2
+     */
+    double getDouble();
+
+    /**
+     * Get the current value as a long in the current unit. This does not
+     * allocate or throw; endpoints without a value return 0.
+     *
+     * @return The value.
+     * @since 2.2
+     */
+    long getLong();
+
+    /**
+     * Get the current value as a boolean, which is true for non-zero numbers.
+     * This does not allocate or throw; endpoints without a value return false.
+     *
+     * @return The value.
+     * @since 2.2
+     */
+    boolean getBoolean();
+
     /** 
      * Checks if the endpoint has a value available.
      * @return True if the endpoint has a value 
@@ -92,6 +143,55 @@ public interface Endpoint<T> extends Comparable<Endpoint<T>> {
      */
     T getValue() throws NetworkException;
 
+    /**
+     * Returns the value of the endpoint if it was received within the given
+     * age, or else queries the device for it and waits for the answer. A
+     * query made while another one is waiting for an answer shares it. The
+     * wait is as long as the query and its retries take, so a powered down
+     * device must wake up in that time; use
+     * {@link #getValue(long, long, java.util.concurrent.TimeUnit)} to wait
+     * longer.
+     *
+     * @param maxAge The maximum age of the value.
+     * @param unit The unit of the age.
+     * @return The value
+     * @throws me.legrange.panstamp.NetworkException Thrown if the device did
+     * not answer the query in time.
+     * @see Network#setQueryTimeout(long, java.util.concurrent.TimeUnit)
+     * @see Network#setQueryRetries(int)
+     * @since 2.2
+     */
+    T getValue(long maxAge, TimeUnit unit) throws NetworkException;
+
+    /**
+     * Returns the value of the endpoint if it was received within the given
+     * age, or else queries the device for it and waits at most the given
+     * time for the answer, which includes the time a query for a powered
+     * down device is held until it wakes up.
+     *
+     * @param maxAge The maximum age of the value.
+     * @param timeout The maximum time to wait.
+     * @param unit The unit of the age and the time.
+     * @return The value
+     * @throws me.legrange.panstamp.NetworkException Thrown if the device did
+     * not answer the query in time.
+     * @since 2.2
+     */
+    T getValue(long maxAge, long timeout, TimeUnit unit) throws NetworkException;
+
+    /**
+     * Returns the value of the endpoint if it was received within the given
+     * age, or else queries the device for it, without waiting.
+     *
+     * @see #getValue(long, java.util.concurrent.TimeUnit)
+     * @param maxAge The maximum age of the value.
+     * @param unit The unit of the age.
+     * @return The future value, which fails if the device did not answer the
+     * query.
+     * @since 2.2
+     */
+    Future<T> getValueAsync(long maxAge, TimeUnit unit);
+
     /**
      * set the value of the endpoint
      *
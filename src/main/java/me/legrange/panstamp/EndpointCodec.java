@@ -0,0 +1,176 @@
+package me.legrange.panstamp;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import me.legrange.panstamp.definition.EndpointDefinition;
+import me.legrange.panstamp.definition.Type;
+import me.legrange.panstamp.definition.Unit;
+
+/**
+ * An endpoint definition compiled into the offsets, masks and unit
+ * coefficients needed to decode and encode endpoint values. Codecs are
+ * immutable and work on primitives, so decoding a value does not allocate.
+ * <p>
+ * Units are referred to by index, with {@link #NO_UNIT} meaning the raw value.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+final class EndpointCodec {
+
+    static final int NO_UNIT = -1;
+
+    EndpointCodec(EndpointDefinition def) {
+        bytePos = def.getPosition().getBytePos();
+        bitMask = 1 << def.getPosition().getBitPos();
+        size = def.getSize().getBytes();
+        binary = def.getType() == Type.BINARY;
+        List<Unit> units = def.getUnits();
+        names = new String[units.size()];
+        factors = new double[units.size()];
+        offsets = new double[units.size()];
+        index = new HashMap<>();
+        for (int i = 0; i < names.length; ++i) {
+            Unit u = units.get(i);
+            names[i] = u.getName();
+            factors[i] = u.getFactor();
+            offsets[i] = u.getOffset();
+            if (!index.containsKey(names[i])) {
+                index.put(names[i], i);
+            }
+        }
+    }
+
+    /**
+     * Read the unsigned big-endian value of the endpoint's bytes.
+     */
+    long raw(byte value[]) {
+        long val = 0;
+        for (int i = bytePos; i < bytePos + size; ++i) {
+            val = (val << 8) | (value[i] & 0xFF);
+        }
+        return val;
+    }
+
+    /**
+     * Write a raw value into the endpoint's bytes.
+     */
+    void raw(byte value[], long val) {
+        for (int i = bytePos + size - 1; i >= bytePos; --i) {
+            value[i] = (byte) (val & 0xFF);
+            val = val >>> 8;
+        }
+    }
+
+    /**
+     * Convert a raw value to the given unit.
+     */
+    double toUnit(long raw, int unit) {
+        if (unit == NO_UNIT) {
+            return raw;
+        }
+        return raw * factors[unit] + offsets[unit];
+    }
+
+    /**
+     * Convert a value in the given unit to a raw value.
+     */
+    double fromUnit(double value, int unit) {
+        if (unit == NO_UNIT) {
+            return value;
+        }
+        return (value - offsets[unit]) / factors[unit];
+    }
+
+    /**
+     * Read the endpoint's bit.
+     */
+    boolean bit(byte value[]) {
+        return (value[bytePos] & bitMask) != 0;
+    }
+
+    /**
+     * Set or clear the endpoint's bit.
+     */
+    void bit(byte value[], boolean on) {
+        value[bytePos] = (byte) (on ? (value[bytePos] | bitMask) : (value[bytePos] & ~bitMask));
+    }
+
+    /**
+     * Determine if the endpoint's bits are set in the XOR of the old and new
+     * register values.
+     *
+     * @param diff The XOR of the values, or null if all bits changed.
+     */
+    boolean changed(byte diff[]) {
+        if (diff == null) {
+            return true;
+        }
+        if (binary) {
+            return (bytePos < diff.length) && ((diff[bytePos] & bitMask) != 0);
+        }
+        int end = Math.min(bytePos + Math.max(size, 1), diff.length);
+        for (int i = bytePos; i < end; ++i) {
+            if (diff[i] != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Set the endpoint's bits in a mask of changed bits.
+     */
+    void mask(byte mask[]) {
+        if (binary) {
+            if (bytePos < mask.length) {
+                mask[bytePos] = (byte) (mask[bytePos] | bitMask);
+            }
+            return;
+        }
+        int end = Math.min(bytePos + Math.max(size, 1), mask.length);
+        for (int i = bytePos; i < end; ++i) {
+            mask[i] = (byte) 0xFF;
+        }
+    }
+
+    int getBytePos() {
+        return bytePos;
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Get the index of the unit with the given name.
+     *
+     * @return The index, or NO_UNIT if the unit is not known.
+     */
+    int unitIndex(String name) {
+        Integer idx = index.get(name);
+        return (idx != null) ? idx : NO_UNIT;
+    }
+
+    /**
+     * Get the index of the default unit.
+     */
+    int defaultUnit() {
+        return (names.length > 0) ? 0 : NO_UNIT;
+    }
+
+    String unitName(int unit) {
+        return (unit != NO_UNIT) ? names[unit] : "";
+    }
+
+    private final int bytePos;
+    private final int bitMask;
+    private final int size;
+    private final boolean binary;
+    private final String names[];
+    private final double factors[];
+    private final double offsets[];
+    private final Map<String, Integer> index;
+
+}
@@ -0,0 +1,89 @@
+package me.legrange.panstamp;
+
+/**
+ * An immutable record of an endpoint value decoded from a register value
+ * received from the network.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public final class EndpointUpdate {
+
+    /**
+     * Get the address of the device that sent the value.
+     *
+     * @return The device address.
+     */
+    public int getAddress() {
+        return address;
+    }
+
+    /**
+     * Get the ID of the register containing the endpoint.
+     *
+     * @return The register ID.
+     */
+    public int getRegisterId() {
+        return registerId;
+    }
+
+    /**
+     * Get the name of the endpoint.
+     *
+     * @return The endpoint name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the unit in which the value was decoded. This is always the default
+     * unit of the endpoint, whatever unit is set on the endpoint itself.
+     *
+     * @return The unit, or an empty string if the endpoint has no units.
+     */
+    public String getUnit() {
+        return unit;
+    }
+
+    /**
+     * Get the decoded value. The type of the value depends on the type of the
+     * endpoint.
+     *
+     * @return The value.
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * Get the time at which the register value was received.
+     *
+     * @return The time in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "EndpointUpdate{" + "address=" + address + ", registerId=" + registerId + ", name=" + name + ", value=" + value + ", unit=" + unit + ", timestamp=" + timestamp + '}';
+    }
+
+    EndpointUpdate(int address, int registerId, String name, String unit, Object value, long timestamp) {
+        this.address = address;
+        this.registerId = registerId;
+        this.name = name;
+        this.unit = unit;
+        this.value = value;
+        this.timestamp = timestamp;
+    }
+
+    private final int address;
+    private final int registerId;
+    private final String name;
+    private final String unit;
+    private final Object value;
+    private final long timestamp;
+
+}
@@ -0,0 +1,426 @@
+package me.legrange.panstamp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An arithmetic expression over named variables, compiled once into a tree
+ * of nodes that is evaluated against an array of variable values. Supported
+ * are numbers, the operators + - * / % and ^ (power), parentheses and the
+ * functions abs, sqrt, exp, ln, log10, pow, min, max, floor, ceil, round
+ * (half up) and delta. A variable is an identifier, or any name in square
+ * brackets, such as <code>[Binary 0]</code>. Parts of the expression that do
+ * not depend on a variable are calculated when it is compiled.
+ * <p>
+ * The delta function is the change of its argument since the expression was
+ * last evaluated, and has no value the first time. It keeps state, so an
+ * expression must not be evaluated by more than one thread at a time.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+final class Expression {
+
+    /**
+     * Compile an expression.
+     *
+     * @param text The expression text.
+     * @return The compiled expression.
+     * @throws IllegalArgumentException Thrown if the expression is invalid.
+     */
+    static Expression compile(String text) {
+        Parser parser = new Parser(text);
+        Node root = parser.parse();
+        return new Expression(text, root, parser.variables);
+    }
+
+    /**
+     * Get the variable names in the order of their indexes in the value
+     * array.
+     */
+    List<String> getVariables() {
+        return variables;
+    }
+
+    /**
+     * Evaluate the expression. This updates the state of delta functions.
+     *
+     * @param values The variable values, in the order of getVariables().
+     * @return The result.
+     */
+    double evaluate(double values[]) {
+        return root.eval(values);
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    private Expression(String text, Node root, List<String> variables) {
+        this.text = text;
+        this.root = root;
+        this.variables = Collections.unmodifiableList(variables);
+    }
+
+    private final String text;
+    private final Node root;
+    private final List<String> variables;
+
+    private static abstract class Node {
+
+        abstract double eval(double v[]);
+
+        boolean isConstant() {
+            return false;
+        }
+    }
+
+    private static final class Constant extends Node {
+
+        private Constant(double value) {
+            this.value = value;
+        }
+
+        @Override
+        double eval(double v[]) {
+            return value;
+        }
+
+        @Override
+        boolean isConstant() {
+            return true;
+        }
+
+        private final double value;
+    }
+
+    private static final class Variable extends Node {
+
+        private Variable(int idx) {
+            this.idx = idx;
+        }
+
+        @Override
+        double eval(double v[]) {
+            return v[idx];
+        }
+
+        private final int idx;
+    }
+
+    private static final class Operation extends Node {
+
+        private Operation(char op, Node args[]) {
+            this.op = op;
+            this.args = args;
+        }
+
+        @Override
+        double eval(double v[]) {
+            double a = args[0].eval(v);
+            switch (op) {
+                case 'n':
+                    return -a;
+                case '+':
+                    return a + args[1].eval(v);
+                case '-':
+                    return a - args[1].eval(v);
+                case '*':
+                    return a * args[1].eval(v);
+                case '/':
+                    return a / args[1].eval(v);
+                case '%':
+                    return a % args[1].eval(v);
+                case '^':
+                    return Math.pow(a, args[1].eval(v));
+                case 'a':
+                    return Math.abs(a);
+                case 's':
+                    return Math.sqrt(a);
+                case 'e':
+                    return Math.exp(a);
+                case 'l':
+                    return Math.log(a);
+                case 'L':
+                    return Math.log10(a);
+                case 'f':
+                    return Math.floor(a);
+                case 'c':
+                    return Math.ceil(a);
+                case 'r':
+                    // values this large are whole numbers already, and must not be clamped to a long
+                    return (Math.abs(a) < 0x1p52) ? Math.round(a) : a;
+                case '<':
+                    return Math.min(a, args[1].eval(v));
+                case '>':
+                    return Math.max(a, args[1].eval(v));
+                default:
+                    throw new IllegalStateException(String.format("Unknown operation '%c'", op));
+            }
+        }
+
+        private final char op;
+        private final Node args[];
+    }
+
+    /**
+     * The change of its argument since the previous evaluation.
+     */
+    private static final class Delta extends Node {
+
+        private Delta(Node arg) {
+            this.arg = arg;
+        }
+
+        @Override
+        double eval(double v[]) {
+            double a = arg.eval(v);
+            double res = a - last;
+            if (!Double.isNaN(a)) {
+                last = a;
+            }
+            return res;
+        }
+
+        private final Node arg;
+        private double last = Double.NaN;
+    }
+
+    /**
+     * A recursive descent parser for expressions.
+     */
+    private static final class Parser {
+
+        private Parser(String text) {
+            this.text = text;
+        }
+
+        private Node parse() {
+            Node node = sum();
+            skipSpace();
+            if (pos < text.length()) {
+                throw error("Unexpected '%c'", text.charAt(pos));
+            }
+            return node;
+        }
+
+        private Node sum() {
+            Node node = product();
+            while (true) {
+                if (accept('+')) {
+                    node = operation('+', node, product());
+                } else if (accept('-')) {
+                    node = operation('-', node, product());
+                } else {
+                    return node;
+                }
+            }
+        }
+
+        private Node product() {
+            Node node = unary();
+            while (true) {
+                if (accept('*')) {
+                    node = operation('*', node, unary());
+                } else if (accept('/')) {
+                    node = operation('/', node, unary());
+                } else if (accept('%')) {
+                    node = operation('%', node, unary());
+                } else {
+                    return node;
+                }
+            }
+        }
+
+        private Node unary() {
+            if (accept('-')) {
+                return operation('n', unary());
+            }
+            if (accept('+')) {
+                return unary();
+            }
+            Node node = primary();
+            if (accept('^')) {
+                node = operation('^', node, unary());
+            }
+            return node;
+        }
+
+        private Node primary() {
+            skipSpace();
+            if (pos >= text.length()) {
+                throw error("Unexpected end of expression");
+            }
+            char c = text.charAt(pos);
+            if (accept('(')) {
+                Node node = sum();
+                expect(')');
+                return node;
+            }
+            if (accept('[')) {
+                int end = text.indexOf(']', pos);
+                if (end < 0) {
+                    throw error("Missing ']'");
+                }
+                String name = text.substring(pos, end).trim();
+                pos = end + 1;
+                return variable(name);
+            }
+            if (Character.isDigit(c) || (c == '.')) {
+                return number();
+            }
+            if (Character.isLetter(c) || (c == '_')) {
+                int start = pos;
+                while ((pos < text.length()) && (Character.isLetterOrDigit(text.charAt(pos)) || (text.charAt(pos) == '_'))) {
+                    pos++;
+                }
+                String name = text.substring(start, pos);
+                if (accept('(')) {
+                    return function(name);
+                }
+                return variable(name);
+            }
+            throw error("Unexpected '%c'", c);
+        }
+
+        private Node number() {
+            int start = pos;
+            while ((pos < text.length()) && (Character.isDigit(text.charAt(pos)) || (text.charAt(pos) == '.'))) {
+                pos++;
+            }
+            if ((pos < text.length()) && ((text.charAt(pos) == 'e') || (text.charAt(pos) == 'E'))) {
+                pos++;
+                if ((pos < text.length()) && ((text.charAt(pos) == '-') || (text.charAt(pos) == '+'))) {
+                    pos++;
+                }
+                while ((pos < text.length()) && Character.isDigit(text.charAt(pos))) {
+                    pos++;
+                }
+            }
+            try {
+                return new Constant(Double.parseDouble(text.substring(start, pos)));
+            } catch (NumberFormatException ex) {
+                throw error("Invalid number '%s'", text.substring(start, pos));
+            }
+        }
+
+        private Node function(String name) {
+            List<Node> args = new ArrayList<>();
+            if (!accept(')')) {
+                do {
+                    args.add(sum());
+                } while (accept(','));
+                expect(')');
+            }
+            char op;
+            int count = 1;
+            switch (name) {
+                case "abs":
+                    op = 'a';
+                    break;
+                case "sqrt":
+                    op = 's';
+                    break;
+                case "exp":
+                    op = 'e';
+                    break;
+                case "ln":
+                    op = 'l';
+                    break;
+                case "log10":
+                    op = 'L';
+                    break;
+                case "floor":
+                    op = 'f';
+                    break;
+                case "ceil":
+                    op = 'c';
+                    break;
+                case "round":
+                    op = 'r';
+                    break;
+                case "delta":
+                    if (args.size() != 1) {
+                        throw error("Function '%s' takes %d argument(s)", name, 1);
+                    }
+                    return new Delta(args.get(0));
+                case "pow":
+                    op = '^';
+                    count = 2;
+                    break;
+                case "min":
+                    op = '<';
+                    count = 2;
+                    break;
+                case "max":
+                    op = '>';
+                    count = 2;
+                    break;
+                default:
+                    throw error("Unknown function '%s'", name);
+            }
+            if (args.size() != count) {
+                throw error("Function '%s' takes %d argument(s)", name, count);
+            }
+            return operation(op, args.toArray(new Node[args.size()]));
+        }
+
+        private Node variable(String name) {
+            if (name.isEmpty()) {
+                throw error("Empty variable name");
+            }
+            int idx = variables.indexOf(name);
+            if (idx < 0) {
+                idx = variables.size();
+                variables.add(name);
+            }
+            return new Variable(idx);
+        }
+
+        /**
+         * create an operation, calculating it now if all its arguments are
+         * constant
+         */
+        private Node operation(char op, Node... args) {
+            Node node = new Operation(op, args);
+            for (Node arg : args) {
+                if (!arg.isConstant()) {
+                    return node;
+                }
+            }
+            return new Constant(node.eval(null));
+        }
+
+        private boolean accept(char c) {
+            skipSpace();
+            if ((pos < text.length()) && (text.charAt(pos) == c)) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!accept(c)) {
+                throw error("Expected '%c'", c);
+            }
+        }
+
+        private void skipSpace() {
+            while ((pos < text.length()) && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private IllegalArgumentException error(String fmt, Object... args) {
+            return new IllegalArgumentException(String.format("%s at position %d in expression '%s'", String.format(fmt, args), pos, text));
+        }
+
+        private final String text;
+        private final List<String> variables = new ArrayList<>();
+        private int pos;
+    }
+
+}
@@ -0,0 +1,77 @@
+package me.legrange.panstamp;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * The state kept for one filtered listener: the last value delivered to it
+ * and the direction of the last delivered change.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+final class FilterState {
+
+    /**
+     * Decide if a value must be delivered, and remember it if it is.
+     *
+     * @param value The decoded value.
+     * @return True if the listener must be notified.
+     */
+    synchronized boolean accept(Object value) {
+        if (!hasLast) {
+            remember(value, 0);
+            return true;
+        }
+        if (!filter.isChangesOnly() && (value instanceof Number) && (last instanceof Number)) {
+            return acceptNumber(((Number) value).doubleValue(), ((Number) last).doubleValue(), value);
+        }
+        if (equal(value, last)) {
+            return false;
+        }
+        remember(value, 0);
+        return true;
+    }
+
+    FilterState(NotificationFilter filter) {
+        this.filter = filter;
+    }
+
+    private boolean acceptNumber(double v, double prev, Object value) {
+        double delta = v - prev;
+        double band = filter.getBand();
+        double hysteresis = filter.getHysteresis();
+        if (filter.isPercent()) {
+            band = Math.abs(prev) * band / 100;
+            hysteresis = Math.abs(prev) * hysteresis / 100;
+        }
+        int dir = (int) Math.signum(delta);
+        if ((direction != 0) && (dir != direction)) {
+            band = band + hysteresis;
+        }
+        if (!(Math.abs(delta) > band)) {
+            return false;
+        }
+        remember(value, dir);
+        return true;
+    }
+
+    private void remember(Object value, int dir) {
+        last = value;
+        hasLast = true;
+        direction = dir;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        if ((a instanceof byte[]) && (b instanceof byte[])) {
+            return Arrays.equals((byte[]) a, (byte[]) b);
+        }
+        return Objects.equals(a, b);
+    }
+
+    private final NotificationFilter filter;
+    private Object last;
+    private boolean hasLast;
+    private int direction;
+
+}
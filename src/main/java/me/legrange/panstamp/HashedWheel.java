@@ -0,0 +1,138 @@
+package me.legrange.panstamp;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed wheel timer for large numbers of imprecise timeouts. Timeouts are
+ * kept in a ring of buckets that is advanced one bucket per tick, so adding
+ * and expiring a timeout costs the same no matter how many there are. The
+ * wheel is advanced by a task on the library timer, which is only started
+ * when the first timeout is added. Tasks run on the timer thread and must be
+ * short.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+final class HashedWheel {
+
+    /**
+     * Create a new wheel.
+     *
+     * @param timer The timer that advances the wheel.
+     * @param tick The time per bucket, in milliseconds.
+     * @param size The number of buckets, a power of two.
+     */
+    HashedWheel(ScheduledExecutorService timer, long tick, int size) {
+        if ((size <= 0) || ((size & (size - 1)) != 0)) {
+            throw new IllegalArgumentException(String.format("Invalid wheel size %d", size));
+        }
+        this.timer = timer;
+        this.tick = tick;
+        this.mask = size - 1;
+        buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            buckets.add(new ArrayList<Timeout>());
+        }
+    }
+
+    /**
+     * Run a task after a delay, rounded up to whole ticks.
+     *
+     * @param task The task to run.
+     * @param delay The delay in milliseconds.
+     * @return The timeout, which can be cancelled.
+     */
+    Timeout schedule(Runnable task, long delay) {
+        start();
+        Timeout t = new Timeout(task, System.currentTimeMillis() - started + Math.max(delay, 0));
+        added.add(t);
+        return t;
+    }
+
+    private synchronized void start() {
+        if (!running) {
+            running = true;
+            started = System.currentTimeMillis();
+            timer.scheduleAtFixedRate(new Runnable() {
+
+                @Override
+                public void run() {
+                    advance();
+                }
+            }, tick, tick, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * move to the next bucket and run the timeouts that expired in it
+     */
+    private void advance() {
+        ticks++;
+        Timeout t;
+        while ((t = added.poll()) != null) {
+            if (!t.cancelled) {
+                long due = (t.deadline + tick - 1) / tick;
+                t.rounds = Math.max(due - ticks, 0) / buckets.size();
+                buckets.get((int) (Math.max(due, ticks) & mask)).add(t);
+            }
+        }
+        Iterator<Timeout> it = buckets.get((int) (ticks & mask)).iterator();
+        while (it.hasNext()) {
+            t = it.next();
+            if (t.cancelled) {
+                it.remove();
+            } else if (t.rounds > 0) {
+                t.rounds--;
+            } else {
+                it.remove();
+                try {
+                    t.task.run();
+                } catch (RuntimeException ex) {
+                    logger.log(Level.SEVERE, ex.getMessage(), ex);
+                }
+            }
+        }
+    }
+
+    private final ScheduledExecutorService timer;
+    private final long tick;
+    private final int mask;
+    private final List<List<Timeout>> buckets;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private boolean running;
+    private long started;
+    private long ticks;
+    private static final Logger logger = Logger.getLogger(HashedWheel.class.getName());
+
+    /**
+     * A task waiting in the wheel.
+     */
+    static final class Timeout {
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the timeout. The task is not run if it has not started yet.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private volatile boolean cancelled;
+    }
+
+}
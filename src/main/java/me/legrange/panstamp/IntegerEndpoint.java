@@ -1,7 +1,6 @@
 package me.legrange.panstamp;
 
 import me.legrange.panstamp.definition.EndpointDefinition;
-import me.legrange.panstamp.definition.Unit;
 
 /**
  * An endpoint that supports integer values for endpoint data and maps values to
@@ -12,8 +11,8 @@ import me.legrange.panstamp.definition.Unit;
  */
 final class IntegerEndpoint extends AbstractEndpoint<Integer> {
 
-    IntegerEndpoint(Register reg, EndpointDefinition epDef) {
-        super(reg, epDef);
+    IntegerEndpoint(Register reg, EndpointDefinition epDef, EndpointCodec codec) {
+        super(reg, epDef, codec);
     }
 
     @Override
@@ -22,40 +21,34 @@ final class IntegerEndpoint extends AbstractEndpoint<Integer> {
     }
 
     @Override
-    protected Integer read(Unit unit) throws NoValueException {
-        byte bytes[] = reg.getValue();
+    Class<Integer> getValueClass() {
+        return Integer.class;
+    }
+
+    @Override
+    protected Integer read(int unit, byte bytes[]) {
         if (bytes.length > 0) {
-            int val = 0;
-            for (int i = 0; i < epDef.getSize().getBytes(); ++i) {
-                val = val << 8;
-                val = val | (bytes[epDef.getPosition().getBytePos() + i]) & 0xFF;
-            }
-            if (unit != null) {
-                Double d = (val * unit.getFactor() + unit.getOffset());
-                return d.intValue();
-            }
-            return val;
+            return (int) toLong(unit, bytes);
         }
         return null;
     }
 
     @Override
-    protected void write(Unit unit, Integer value) throws NetworkException {
-        if (unit != null) {
-            Double d = (value - unit.getOffset()) / unit.getFactor();
-            value = d.intValue();
+    protected long toLong(int unit, byte bytes[]) {
+        long val = codec.raw(bytes);
+        if (unit != EndpointCodec.NO_UNIT) {
+            return (int) codec.toUnit(val, unit);
         }
-        byte bytes[];
-        if (reg.hasValue()) {
-            bytes = reg.getValue();
-        } else {
-            bytes = new byte[epDef.getRegister().getByteSize()];
-        }
-        long val = value.longValue();
-        for (int i = epDef.getSize().getBytes() - 1; i >= 0; --i) {
-            bytes[epDef.getPosition().getBytePos() + i] = (byte) (val & 0xFF);
-            val = val >>> 8;
-        }
-        reg.setValue(bytes);
+        return (int) val;
+    }
+
+    @Override
+    protected double toDouble(int unit, byte bytes[]) {
+        return toLong(unit, bytes);
+    }
+
+    @Override
+    protected void write(int unit, Integer value, byte bytes[]) {
+        codec.raw(bytes, (int) codec.fromUnit(value, unit));
     }
 }
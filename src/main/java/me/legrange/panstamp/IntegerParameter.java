@@ -19,6 +19,11 @@ final class IntegerParameter extends AbstractParameter<Integer> {
     public Type getType() {
         return Type.INTEGER;
     }
+
+    @Override
+    Class<Integer> getValueClass() {
+        return Integer.class;
+    }
     
     @Override
     public Integer getValue() throws NetworkException {
@@ -32,14 +37,14 @@ final class IntegerParameter extends AbstractParameter<Integer> {
     }
 
     @Override
-    public void setValue(Integer value) throws NetworkException {
+    byte[] encode(Integer value) throws NetworkException {
         long val = value.longValue();
         byte bytes[] = new byte[par.getSize().getBytes()];
         for (int i = par.getSize().getBytes() - 1; i >= 0; --i) {
             bytes[i] = (byte) (val & 0xFF);
             val = val >>> 8;
         }
-        reg.setValue(bytes);
+        return bytes;
     }
 
     @Override
@@ -0,0 +1,103 @@
+package me.legrange.panstamp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A thread owned by the library, such as a receive worker, the timer or a
+ * listener pool thread. The timer and the pool must never wait for a
+ * listener, so events they produce for a full listener queue with the BLOCK
+ * policy drop the oldest event instead. Receive workers produce the device
+ * events, so they wait for the listener to catch up like application
+ * threads, which holds up the messages of the devices they handle. As a
+ * worker may hold locks while it produces events, it queues them past
+ * capacity and waits once it has handled the message.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+final class LibraryThread extends Thread {
+
+    /**
+     * Determine if the current thread is owned by the library.
+     *
+     * @return True if it is a library thread.
+     */
+    static boolean isCurrent() {
+        return Thread.currentThread() instanceof LibraryThread;
+    }
+
+    /**
+     * Remember that the current receive worker queued an event past capacity
+     * for a listener, so that it waits for the listener later.
+     *
+     * @param queue The full listener queue.
+     * @return False if the current thread is not a receive worker and may
+     * not wait.
+     */
+    static boolean holdUp(ListenerQueue queue) {
+        Thread t = Thread.currentThread();
+        if (!(t instanceof LibraryThread) || !((LibraryThread) t).blockable) {
+            return false;
+        }
+        List<ListenerQueue> full = ((LibraryThread) t).full;
+        if (!full.contains(queue)) {
+            full.add(queue);
+        }
+        return true;
+    }
+
+    /**
+     * Wait for the listeners the current receive worker queued events past
+     * capacity for. Must be called without holding any locks.
+     */
+    static void awaitListeners() {
+        Thread t = Thread.currentThread();
+        if (t instanceof LibraryThread) {
+            List<ListenerQueue> full = ((LibraryThread) t).full;
+            for (ListenerQueue queue : full) {
+                queue.awaitSpace();
+            }
+            full.clear();
+        }
+    }
+
+    /**
+     * Get a factory for daemon library threads with the given name.
+     *
+     * @param name The thread name.
+     * @return The factory.
+     */
+    static ThreadFactory factory(String name) {
+        return factory(name, false);
+    }
+
+    /**
+     * Get a factory for daemon library threads with the given name.
+     *
+     * @param name The thread name.
+     * @param blockable True if the threads may wait for listeners with the
+     * BLOCK policy.
+     * @return The factory.
+     */
+    static ThreadFactory factory(final String name, final boolean blockable) {
+        return new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new LibraryThread(r, name, blockable);
+            }
+        };
+    }
+
+    private LibraryThread(Runnable r, String name, boolean blockable) {
+        super(r, name);
+        this.blockable = blockable;
+        setDaemon(true);
+    }
+
+    private final boolean blockable;
+    private final List<ListenerQueue> full = new ArrayList<>();
+
+}
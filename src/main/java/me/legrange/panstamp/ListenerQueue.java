@@ -0,0 +1,306 @@
+package me.legrange.panstamp;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded backlog of events for one listener. Events are delivered in order,
+ * one at a time, so a slow listener occupies at most one library thread no
+ * matter how many events are waiting for it. A queue created for a stream
+ * subscription only delivers events for which the subscriber has signalled
+ * demand.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+final class ListenerQueue implements Runnable {
+
+    /**
+     * Queue an event for the listener, applying the overflow policy if the
+     * backlog is full.
+     *
+     * @param key The key used to conflate events, or null if the event cannot
+     * be conflated.
+     * @param task The task that delivers the event.
+     * @return False if the listener has been disconnected.
+     */
+    boolean offer(Object key, Runnable task) {
+        synchronized (this) {
+            if (disconnected) {
+                return false;
+            }
+            if ((policy == OverflowPolicy.CONFLATE) && (key != null) && conflate(key, task)) {
+                return true;
+            }
+            if (queue.size() >= capacity) {
+                switch (policy) {
+                    case BLOCK:
+                        if (LibraryThread.isCurrent()) {
+                            if (LibraryThread.holdUp(this)) {
+                                // a receive worker may hold locks now, so it waits
+                                // for the listener once it has handled the message
+                                break;
+                            }
+                            // the timer and listener callbacks must not wait for a
+                            // listener, so drop instead
+                            queue.removeFirst();
+                            dropped++;
+                            break;
+                        }
+                        while ((queue.size() >= capacity) && !disconnected) {
+                            try {
+                                wait();
+                            } catch (InterruptedException ex) {
+                                Thread.currentThread().interrupt();
+                                dropped++;
+                                return true;
+                            }
+                        }
+                        if (disconnected) {
+                            return false;
+                        }
+                        break;
+                    case DROP_OLDEST:
+                    case CONFLATE:
+                        queue.removeFirst();
+                        dropped++;
+                        break;
+                    case DISCONNECT:
+                        dropped = dropped + queue.size() + 1;
+                        queue.clear();
+                        disconnected = true;
+                        notifyAll();
+                        logger.warning(String.format("Listener %s disconnected after %d events were dropped", listener, dropped));
+                        return false;
+                }
+            }
+            queue.addLast(new Event(key, task));
+            schedule();
+            return true;
+        }
+    }
+
+    /**
+     * Add demand for events from a stream subscriber.
+     *
+     * @param n The number of additional events the subscriber can handle.
+     */
+    synchronized void request(long n) {
+        demand = demand + n;
+        if (demand < 0) {
+            demand = Long.MAX_VALUE; // overflowed, demand is effectively unbounded
+        }
+        schedule();
+    }
+
+    /**
+     * Discard the backlog and stop delivering events.
+     */
+    synchronized void cancel() {
+        queue.clear();
+        last = null;
+        disconnected = true;
+        notifyAll();
+    }
+
+    /**
+     * Stop accepting events and deliver a final event after as much of the
+     * backlog as the subscriber has demand for. The final event does not need
+     * demand, so a stream subscriber is told about errors and completion
+     * without asking for it.
+     *
+     * @param task The task that delivers the final event.
+     * @param discard True to discard the backlog first.
+     */
+    synchronized void finish(Runnable task, boolean discard) {
+        if (discard) {
+            queue.clear();
+        }
+        last = task;
+        disconnected = true;
+        notifyAll();
+        schedule();
+    }
+
+    @Override
+    public void run() {
+        int count = 0;
+        while (count < BATCH) {
+            Event ev;
+            synchronized (this) {
+                ev = (demand > 0) ? queue.pollFirst() : null;
+                if ((ev == null) && (last != null)) {
+                    queue.clear();
+                    ev = new Event(null, last);
+                    last = null;
+                } else if (ev == null) {
+                    scheduled = false;
+                    return;
+                } else if (demand != Long.MAX_VALUE) {
+                    demand--;
+                }
+                notifyAll();
+            }
+            long start = System.nanoTime();
+            busySince = start;
+            try {
+                ev.task.run();
+            } catch (Throwable ex) {
+                logger.log(Level.SEVERE, String.format("Listener %s threw an exception", listener), ex);
+            } finally {
+                long latency = System.nanoTime() - start;
+                busySince = 0;
+                synchronized (this) {
+                    delivered++;
+                    if (latency > maxLatency) {
+                        maxLatency = latency;
+                    }
+                    if (latency > windowLatency) {
+                        windowLatency = latency;
+                    }
+                }
+            }
+            count++;
+        }
+        // give other listeners a turn on the pool before continuing
+        pool.execute(this);
+    }
+
+    /**
+     * Wait until the backlog is below capacity again. This is used by receive
+     * workers that queued events past capacity for a listener with the BLOCK
+     * policy.
+     */
+    synchronized void awaitSpace() {
+        while ((queue.size() >= capacity) && (policy == OverflowPolicy.BLOCK) && !disconnected) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    synchronized void setCapacity(int capacity) {
+        this.capacity = capacity;
+        notifyAll();
+    }
+
+    synchronized void setPolicy(OverflowPolicy policy) {
+        this.policy = policy;
+        notifyAll();
+    }
+
+    Object getListener() {
+        return listener;
+    }
+
+    /**
+     * Get the time in nanoseconds that the listener has been busy with the
+     * current event, or 0 if it is idle.
+     */
+    long getBusyNanos() {
+        long since = busySince;
+        return (since == 0) ? 0 : System.nanoTime() - since;
+    }
+
+    /**
+     * Get the longest time in nanoseconds the listener took to handle an event
+     * since the previous call to this method.
+     */
+    synchronized long takeWindowLatency() {
+        long latency = windowLatency;
+        windowLatency = 0;
+        return latency;
+    }
+
+    synchronized long getDropped() {
+        return dropped;
+    }
+
+    synchronized ListenerStatus getStatus() {
+        return new ListenerStatus(listener, capacity, policy, queue.size(), delivered, dropped,
+                maxLatency / 1000000, getBusyNanos() / 1000000, disconnected);
+    }
+
+    void retain() {
+        refs++;
+    }
+
+    int release() {
+        return --refs;
+    }
+
+    ListenerQueue(Object listener, ExecutorService pool, int capacity, OverflowPolicy policy) {
+        this(listener, pool, capacity, policy, Long.MAX_VALUE);
+    }
+
+    ListenerQueue(Object listener, ExecutorService pool, int capacity, OverflowPolicy policy, long demand) {
+        this.listener = listener;
+        this.pool = pool;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.demand = demand;
+    }
+
+    /**
+     * start draining the queue if there is something to deliver. Must be
+     * called while holding the lock.
+     */
+    private void schedule() {
+        if (!scheduled && (((demand > 0) && !queue.isEmpty()) || (last != null))) {
+            scheduled = true;
+            pool.execute(this);
+        }
+    }
+
+    /**
+     * replace the task of a queued event with the same key
+     */
+    private boolean conflate(Object key, Runnable task) {
+        Iterator<Event> it = queue.descendingIterator();
+        while (it.hasNext()) {
+            Event ev = it.next();
+            if (ev.key == key) {
+                ev.task = task;
+                dropped++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final int BATCH = 64;
+    private final Object listener;
+    private final ExecutorService pool;
+    private final ArrayDeque<Event> queue = new ArrayDeque<>();
+    private int capacity;
+    private OverflowPolicy policy;
+    private boolean scheduled;
+    private long demand;
+    private boolean disconnected;
+    private Runnable last;
+    private long delivered;
+    private long dropped;
+    private long maxLatency;
+    private long windowLatency;
+    private volatile long busySince;
+    private int refs;
+    private static final Logger logger = Logger.getLogger(ListenerQueue.class.getName());
+
+    private static class Event {
+
+        private Event(Object key, Runnable task) {
+            this.key = key;
+            this.task = task;
+        }
+
+        private final Object key;
+        private Runnable task;
+    }
+
+}
@@ -0,0 +1,121 @@
+package me.legrange.panstamp;
+
+/**
+ * A snapshot of the state of the event backlog kept for a listener.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public final class ListenerStatus {
+
+    /**
+     * Get the listener this status applies to.
+     *
+     * @return The listener.
+     */
+    public Object getListener() {
+        return listener;
+    }
+
+    /**
+     * Get the maximum number of events that can be queued for the listener.
+     *
+     * @return The capacity.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the overflow policy applied to the listener.
+     *
+     * @return The policy.
+     */
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Get the number of events currently waiting to be delivered.
+     *
+     * @return The number of queued events.
+     */
+    public int getQueued() {
+        return queued;
+    }
+
+    /**
+     * Get the number of events delivered to the listener.
+     *
+     * @return The number of delivered events.
+     */
+    public long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * Get the number of events dropped or conflated because the backlog was
+     * full.
+     *
+     * @return The number of dropped events.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Get the longest time the listener took to handle an event.
+     *
+     * @return The latency in milliseconds.
+     */
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+
+    /**
+     * Get the time the listener has been busy with the event it is currently
+     * handling.
+     *
+     * @return The time in milliseconds, or 0 if the listener is idle.
+     */
+    public long getBusyTime() {
+        return busyTime;
+    }
+
+    /**
+     * Check if the listener was disconnected by the DISCONNECT overflow policy.
+     *
+     * @return True if the listener was disconnected.
+     */
+    public boolean isDisconnected() {
+        return disconnected;
+    }
+
+    @Override
+    public String toString() {
+        return "ListenerStatus{" + "listener=" + listener + ", capacity=" + capacity + ", policy=" + policy + ", queued=" + queued + ", delivered=" + delivered + ", dropped=" + dropped + ", maxLatency=" + maxLatency + ", busyTime=" + busyTime + ", disconnected=" + disconnected + '}';
+    }
+
+    ListenerStatus(Object listener, int capacity, OverflowPolicy policy, int queued, long delivered, long dropped, long maxLatency, long busyTime, boolean disconnected) {
+        this.listener = listener;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.queued = queued;
+        this.delivered = delivered;
+        this.dropped = dropped;
+        this.maxLatency = maxLatency;
+        this.busyTime = busyTime;
+        this.disconnected = disconnected;
+    }
+
+    private final Object listener;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final int queued;
+    private final long delivered;
+    private final long dropped;
+    private final long maxLatency;
+    private final long busyTime;
+    private final boolean disconnected;
+
+}
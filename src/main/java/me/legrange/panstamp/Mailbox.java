@@ -0,0 +1,114 @@
+package me.legrange.panstamp;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the messages for a device that is powered down until it wakes up.
+ * Only the latest command value is kept for each register, and a query is
+ * kept once for each register, so repeated writes don't crowd the short
+ * time the device listens. When the device reports that it is awake all
+ * held messages are sent in one burst, commands first. A query for a
+ * register that is also commanded is dropped, as the device answers the
+ * command with the register value.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+final class Mailbox {
+
+    Mailbox(PanStamp dev) {
+        this.dev = dev;
+    }
+
+    /**
+     * Hold a command, replacing an older command for the same register.
+     *
+     * @return True if the mailbox was empty.
+     */
+    synchronized boolean putCommand(int id, byte value[]) {
+        boolean wasEmpty = isEmpty();
+        commands.put(id, value);
+        return wasEmpty;
+    }
+
+    /**
+     * Hold a query.
+     *
+     * @return True if the mailbox was empty.
+     */
+    synchronized boolean putQuery(int id) {
+        boolean wasEmpty = isEmpty();
+        queries.add(id);
+        return wasEmpty;
+    }
+
+    synchronized boolean isEmpty() {
+        return commands.isEmpty() && queries.isEmpty();
+    }
+
+    synchronized void clear() {
+        commands.clear();
+        queries.clear();
+    }
+
+    /**
+     * Send all held messages to the device, which is awake. Messages that
+     * could not be sent are held for the next time the device wakes up.
+     */
+    void drain() {
+        Map<Integer, byte[]> cmds;
+        List<Integer> qrys;
+        synchronized (this) {
+            if (isEmpty()) {
+                return;
+            }
+            cmds = new LinkedHashMap<>(commands);
+            qrys = new ArrayList<>(queries);
+            qrys.removeAll(cmds.keySet());
+            commands.clear();
+            queries.clear();
+        }
+        Network nw = dev.getNetwork();
+        try {
+            for (Map.Entry<Integer, byte[]> e : new ArrayList<>(cmds.entrySet())) {
+                nw.sendCommandMessage(dev, e.getKey(), e.getValue());
+                cmds.remove(e.getKey());
+                dev.commandTransmitted(e.getKey());
+                // a held query for the register is answered by the command
+                dev.queryTransmitted(e.getKey());
+            }
+            for (Integer id : new ArrayList<>(qrys)) {
+                nw.sendQueryMessage(dev, id);
+                qrys.remove(id);
+                dev.queryTransmitted(id);
+            }
+        } catch (ModemException ex) {
+            Logger.getLogger(Mailbox.class.getName()).log(Level.SEVERE, String.format("Could not send held messages to device %d", dev.getAddress()), ex);
+            restore(cmds, qrys);
+        }
+    }
+
+    /**
+     * hold messages that were not sent again, unless newer ones arrived
+     */
+    private synchronized void restore(Map<Integer, byte[]> cmds, List<Integer> qrys) {
+        for (Map.Entry<Integer, byte[]> e : cmds.entrySet()) {
+            if (!commands.containsKey(e.getKey())) {
+                commands.put(e.getKey(), e.getValue());
+            }
+        }
+        queries.addAll(qrys);
+    }
+
+    private final PanStamp dev;
+    private final Map<Integer, byte[]> commands = new LinkedHashMap<>();
+    private final Set<Integer> queries = new LinkedHashSet<>();
+
+}
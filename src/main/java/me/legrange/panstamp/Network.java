@@ -3,17 +3,29 @@ package me.legrange.panstamp;
 import me.legrange.panstamp.xml.ClassLoaderLibrary;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import me.legrange.panstamp.definition.DeviceDefinition;
+import me.legrange.panstamp.definition.RegisterDefinition;
+import me.legrange.panstamp.stream.Flow;
 import me.legrange.swap.MessageListener;
 import me.legrange.swap.SwapException;
 import me.legrange.swap.SwapModem;
@@ -94,6 +106,7 @@ public final class Network implements AutoCloseable {
      * @throws NetworkException Thrown if there is a problem opening the modem.
      */
     public void open() throws NetworkException {
+        startWorkers();
         modem.addListener(receiver);
         try {
             if (!modem.isOpen()) {
@@ -121,6 +134,12 @@ public final class Network implements AutoCloseable {
 
         } finally {
             modem.removeListener(receiver);
+            stopWorkers();
+            messagePublisher.complete();
+            registerPublisher.complete();
+            for (PanStamp dev : devices.values()) {
+                dev.completeStreams();
+            }
         }
         fireNetworkClosed();
     }
@@ -132,9 +151,7 @@ public final class Network implements AutoCloseable {
      * @return True if a device with the given address is known
      */
     public boolean hasDevice(int address) {
-        synchronized (devices) {
-            return devices.get(address) != null;
-        }
+        return devices.get(address) != null;
     }
 
     /**
@@ -146,13 +163,11 @@ public final class Network implements AutoCloseable {
      * with the given address cannot be found.
      */
     public PanStamp getDevice(int address) throws NodeNotFoundException {
-        synchronized (devices) {
-            PanStamp dev = devices.get(address);
-            if (dev == null) {
-                throw new NodeNotFoundException(String.format("No device found for address %02x", address));
-            }
-            return dev;
+        PanStamp dev = devices.get(address);
+        if (dev == null) {
+            throw new NodeNotFoundException(String.format("No device found for address %02x", address));
         }
+        return dev;
     }
 
     /**
@@ -161,9 +176,176 @@ public final class Network implements AutoCloseable {
      * @return The list of devices
      */
     public List<PanStamp> getDevices() {
-        List<PanStamp> res = new ArrayList<>();
-        res.addAll(devices.values());
-        return res;
+        return devices.values();
+    }
+
+    /**
+     * Return all the devices of a product. The devices are found through an
+     * index rather than by looking at every device.
+     *
+     * @param manufacturerId The manufacturer ID of the product.
+     * @param productId The product ID.
+     * @return The devices, which may be empty.
+     * @since 2.2
+     */
+    public List<PanStamp> getDevices(int manufacturerId, int productId) {
+        return index.getDevicesByProduct(manufacturerId, productId);
+    }
+
+    /**
+     * Return all the endpoints with the given name on all devices in the
+     * network.
+     *
+     * @param name The endpoint name.
+     * @return The endpoints, which may be empty.
+     * @since 2.2
+     */
+    public List<Endpoint<?>> getEndpoints(String name) {
+        return index.getEndpointsByName(name);
+    }
+
+    /**
+     * Return all the endpoints that support the given unit on all devices in
+     * the network.
+     *
+     * @param unit The unit name.
+     * @return The endpoints, which may be empty.
+     * @since 2.2
+     */
+    public List<Endpoint<?>> getEndpointsWithUnit(String unit) {
+        return index.getEndpointsByUnit(unit);
+    }
+
+    /**
+     * Return all the endpoints of the registers with the given ID on all
+     * devices in the network.
+     *
+     * @param registerId The register ID.
+     * @return The endpoints, which may be empty.
+     * @since 2.2
+     */
+    public List<Endpoint<?>> getEndpoints(int registerId) {
+        return index.getEndpointsByRegister(registerId);
+    }
+
+    /**
+     * Add a virtual endpoint calculated from endpoints on any devices in the
+     * network. The expression refers to the inputs by the names they are
+     * given in the inputs map, for example "v * i" with v and i mapped to a
+     * voltage and a current endpoint. See
+     * {@link VirtualEndpoint#getExpression()} for the syntax.
+     *
+     * @param name The name of the virtual endpoint.
+     * @param expression The expression calculating the value.
+     * @param inputs The endpoints used by the expression, by name.
+     * @return The new endpoint.
+     * @throws EndpointNotFoundException Thrown if the expression uses a name
+     * that is not in the inputs map.
+     * @throws IllegalArgumentException Thrown if the expression is invalid.
+     * @since 2.2
+     */
+    public VirtualEndpoint addVirtualEndpoint(String name, String expression, Map<String, ? extends Endpoint<?>> inputs) throws EndpointNotFoundException {
+        VirtualEndpoint vep = VirtualEndpoint.create(name, Expression.compile(expression), inputs, dispatcher);
+        VirtualEndpoint old = virtuals.put(name, vep);
+        if (old != null) {
+            old.detach();
+        }
+        vep.attach();
+        return vep;
+    }
+
+    /**
+     * Add a rule to the network. The rule is evaluated whenever the register
+     * of its endpoint receives a value, and the listener is told when it is
+     * triggered or cleared. Adding a rule again replaces its listener.
+     * <p>
+     * Rule listeners use the BLOCK policy unless configured otherwise with
+     * {@link #configureListener(Object, int, OverflowPolicy)}, so a slow
+     * listener holds up the receive workers instead of losing events. A rule
+     * with a duration that triggers on time is told by the timer, which can't
+     * wait, so that event replaces the oldest waiting event if the listener is
+     * behind; events lost are reported by {@link #getListenerStatus()}.
+     *
+     * @param rule The rule to add.
+     * @param l The listener to tell.
+     * @throws IllegalArgumentException Thrown if the rule's endpoint is not a
+     * register endpoint.
+     * @since 2.2
+     */
+    public void addRule(Rule rule, RuleListener l) {
+        rules.add(rule, l);
+    }
+
+    /**
+     * Remove a rule from the network.
+     *
+     * @param rule The rule to remove.
+     * @since 2.2
+     */
+    public void removeRule(Rule rule) {
+        rules.remove(rule);
+    }
+
+    /**
+     * Get the reconciler that keeps endpoints and parameters in the network at
+     * their target values.
+     *
+     * @return The reconciler.
+     * @since 2.2
+     */
+    public Reconciler getReconciler() {
+        return reconciler;
+    }
+
+    /**
+     * Create a job that sends configurations to many devices.
+     *
+     * @return The new job.
+     * @since 2.2
+     */
+    public ProvisioningJob createProvisioningJob() {
+        return new ProvisioningJob(this);
+    }
+
+    /**
+     * Get the poller that queries registers which devices don't transmit by
+     * themselves.
+     *
+     * @return The poller.
+     * @since 2.2
+     */
+    public Poller getPoller() {
+        return poller;
+    }
+
+    /**
+     * Get a network-wide virtual endpoint.
+     *
+     * @param name The name of the virtual endpoint.
+     * @return The endpoint.
+     * @throws EndpointNotFoundException Thrown if there is no such virtual
+     * endpoint.
+     * @since 2.2
+     */
+    public VirtualEndpoint getVirtualEndpoint(String name) throws EndpointNotFoundException {
+        VirtualEndpoint vep = virtuals.get(name);
+        if (vep == null) {
+            throw new EndpointNotFoundException(String.format("Could not find virtual endpoint '%s'", name));
+        }
+        return vep;
+    }
+
+    /**
+     * Remove a network-wide virtual endpoint.
+     *
+     * @param name The name of the virtual endpoint.
+     * @since 2.2
+     */
+    public void removeVirtualEndpoint(String name) {
+        VirtualEndpoint vep = virtuals.remove(name);
+        if (vep != null) {
+            vep.detach();
+        }
     }
 
     /**
@@ -172,18 +354,11 @@ public final class Network implements AutoCloseable {
      * @param dev The device to add.
      */
     public void addDevice(final PanStamp dev) {
-        synchronized(devices) {
-                devices.put(dev.getAddress(), dev);
-                for (StandardRegister sr : StandardRegister.ALL) {
-                    Register reg = dev.getRegister(sr.getId());
-                    if (!reg.hasValue()) {
-                        if (store.hasRegisterValue(reg)) {
-                            reg.valueReceived(store.getRegisterValue(reg));
-                        }
-                    }
-                }
-                fireDeviceDetected(dev);    
+        PanStamp old = devices.put(dev);
+        if ((old != null) && (old != dev)) {
+            index.remove(old);
         }
+        deviceAdded(dev);
     }
     
     /**
@@ -192,10 +367,11 @@ public final class Network implements AutoCloseable {
      * @param address The address of the device to remove.
      */
     public void removeDevice(int address) {
-        final PanStamp ps = devices.get(address);
+        final PanStamp ps = devices.remove(address);
         if (ps != null) {
+            index.remove(ps);
+            poller.remove(ps);
             ps.destroy();
-            devices.remove(address);
             fireDeviceRemoved(ps);
         }
     }
@@ -206,7 +382,9 @@ public final class Network implements AutoCloseable {
      * @param l The listener to add
      */
     public void addListener(NetworkListener l) {
-        listeners.add(l);
+        if (listeners.add(l)) {
+            dispatcher.register(l);
+        }
     }
 
     /**
@@ -215,7 +393,320 @@ public final class Network implements AutoCloseable {
      * @param l The listener to remove
      */
     public void removeListener(NetworkListener l) {
-        listeners.remove(l);
+        if (listeners.remove(l)) {
+            dispatcher.unregister(l);
+        }
+    }
+
+    /**
+     * Add a listener that receives register updates in batches. A batch is
+     * delivered when it contains maxSize updates or when the oldest update in
+     * it is maxDelay old, whichever comes first.
+     * <p>
+     * Batch listeners use the BLOCK policy unless configured otherwise with
+     * {@link #configureListener(Object, int, OverflowPolicy)}, so a slow
+     * listener holds up the receive workers instead of losing updates. A batch
+     * completed by its delay is delivered by the timer, which can't wait, so it
+     * replaces the oldest waiting batch if the listener is behind; the number
+     * of batches lost is reported by {@link #getListenerStatus()}.
+     *
+     * @param l The listener to add.
+     * @param maxSize The maximum number of updates in a batch.
+     * @param maxDelay The maximum time an update waits before it is delivered.
+     * @param unit The unit of maxDelay.
+     * @since 2.2
+     */
+    public void addRegisterBatchListener(BatchListener<RegisterUpdate> l, int maxSize, long maxDelay, TimeUnit unit) {
+        Batcher<RegisterUpdate> b = new Batcher<>(this, l, maxSize, maxDelay, unit);
+        dispatcher.register(l, OverflowPolicy.BLOCK);
+        registerBatchers.add(b);
+    }
+
+    /**
+     * Add a listener that receives decoded endpoint values in batches. A batch
+     * is delivered when it contains maxSize updates or when the oldest update
+     * in it is maxDelay old, whichever comes first. Values are always decoded
+     * in the default unit of the endpoint, not the unit set on the endpoint,
+     * and are delivered with the same policy as register batches.
+     *
+     * @param l The listener to add.
+     * @param maxSize The maximum number of updates in a batch.
+     * @param maxDelay The maximum time an update waits before it is delivered.
+     * @param unit The unit of maxDelay.
+     * @since 2.2
+     */
+    public void addEndpointBatchListener(BatchListener<EndpointUpdate> l, int maxSize, long maxDelay, TimeUnit unit) {
+        Batcher<EndpointUpdate> b = new Batcher<>(this, l, maxSize, maxDelay, unit);
+        dispatcher.register(l, OverflowPolicy.BLOCK);
+        endpointBatchers.add(b);
+    }
+
+    /**
+     * Remove a batch listener. Updates already collected for the listener are
+     * delivered.
+     *
+     * @param l The listener to remove.
+     * @since 2.2
+     */
+    public void removeBatchListener(BatchListener<?> l) {
+        for (Batcher<RegisterUpdate> b : registerBatchers) {
+            if ((b.getListener() == l) && registerBatchers.remove(b)) {
+                b.close();
+                dispatcher.unregister(l);
+            }
+        }
+        for (Batcher<EndpointUpdate> b : endpointBatchers) {
+            if ((b.getListener() == l) && endpointBatchers.remove(b)) {
+                b.close();
+                dispatcher.unregister(l);
+            }
+        }
+    }
+
+    /**
+     * Get a publisher for the raw SWAP messages received from the network.
+     * Messages from one device are published in the order they were received.
+     *
+     * @return The publisher.
+     * @since 2.2
+     */
+    public Flow.Publisher<SwapMessage> getMessagePublisher() {
+        return messagePublisher;
+    }
+
+    /**
+     * Get a publisher for the register values received from the network.
+     *
+     * @return The publisher.
+     * @since 2.2
+     */
+    public Flow.Publisher<RegisterUpdate> getRegisterPublisher() {
+        return registerPublisher;
+    }
+
+    /**
+     * Get a consistent snapshot of all the register values in the network.
+     * The snapshot is normally taken without locking the registers, and
+     * contains exactly the values with a sequence number up to that of the
+     * snapshot. If updates keep arriving while it is taken, new updates are
+     * briefly held off to finish it.
+     *
+     * @return The snapshot.
+     * @since 2.2
+     */
+    public NetworkSnapshot snapshot() {
+        return snapshot(0);
+    }
+
+    /**
+     * Get the register values that changed after the given sequence number,
+     * as a consistent snapshot. Use the sequence number of the returned
+     * snapshot in the next call to receive only new changes.
+     *
+     * @param seq The sequence number of the last snapshot seen, or 0 to get
+     * all values.
+     * @return The snapshot of changed values.
+     * @since 2.2
+     */
+    public NetworkSnapshot changesSince(long seq) {
+        return snapshot(seq);
+    }
+
+    /**
+     * Set the maximum number of events that can be queued for a listener
+     * before the overflow policy is applied. This applies to all listeners
+     * that have not been configured individually.
+     *
+     * @param size The maximum number of queued events.
+     * @since 2.2
+     */
+    public void setListenerQueueSize(int size) {
+        dispatcher.setCapacity(size);
+    }
+
+    /**
+     * Get the maximum number of events that can be queued for a listener.
+     *
+     * @return The maximum number of queued events.
+     * @since 2.2
+     */
+    public int getListenerQueueSize() {
+        return dispatcher.getCapacity();
+    }
+
+    /**
+     * Set the policy applied when a listener's queue is full. This applies to
+     * all listeners that have not been configured individually.
+     *
+     * @param policy The policy to apply.
+     * @since 2.2
+     */
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        dispatcher.setPolicy(policy);
+    }
+
+    /**
+     * Get the policy applied when a listener's queue is full.
+     *
+     * @return The policy.
+     * @since 2.2
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return dispatcher.getPolicy();
+    }
+
+    /**
+     * Set the queue size and overflow policy for a specific listener. The
+     * listener can be any network, device, register or endpoint listener.
+     *
+     * @param listener The listener to configure.
+     * @param size The maximum number of queued events.
+     * @param policy The policy to apply when the queue is full.
+     * @since 2.2
+     */
+    public void configureListener(Object listener, int size, OverflowPolicy policy) {
+        dispatcher.configure(listener, size, policy);
+    }
+
+    /**
+     * Set the time a listener can take to handle an event before it is
+     * reported as a slow listener.
+     *
+     * @param time The threshold time.
+     * @param unit The unit of the threshold time.
+     * @since 2.2
+     */
+    public void setSlowListenerThreshold(long time, TimeUnit unit) {
+        dispatcher.setSlowThreshold(time, unit);
+    }
+
+    /**
+     * Set the time to wait for the answer to a register query before it is
+     * sent again. Every retry waits twice as long as the one before.
+     *
+     * @param time The time to wait.
+     * @param unit The unit of the time.
+     * @since 2.2
+     */
+    public void setQueryTimeout(long time, TimeUnit unit) {
+        if (time <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid query timeout %d", time));
+        }
+        queryTimeout = unit.toMillis(time);
+    }
+
+    /**
+     * Get the time to wait for the answer to a register query.
+     *
+     * @return The time in milliseconds.
+     * @since 2.2
+     */
+    public long getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    /**
+     * Set the number of times an unanswered register query is sent again.
+     *
+     * @param retries The number of retries.
+     * @since 2.2
+     */
+    public void setQueryRetries(int retries) {
+        if (retries < 0) {
+            throw new IllegalArgumentException(String.format("Invalid number of query retries %d", retries));
+        }
+        queryRetries = retries;
+    }
+
+    /**
+     * Get the number of times an unanswered register query is sent again.
+     *
+     * @return The number of retries.
+     * @since 2.2
+     */
+    public int getQueryRetries() {
+        return queryRetries;
+    }
+
+    /**
+     * Get the time a query and its retries take to fail once it is sent,
+     * with every retry waiting twice as long as the one before.
+     *
+     * @return The time in milliseconds.
+     */
+    long getQueryTime() {
+        return queryTimeout * ((1L << (Math.min(queryRetries, 30) + 1)) - 1);
+    }
+
+    /**
+     * Set the time to wait for a device to confirm a register value set on
+     * it before the value is sent again. Every retry waits twice as long as
+     * the one before.
+     *
+     * @param time The time to wait.
+     * @param unit The unit of the time.
+     * @since 2.2
+     */
+    public void setCommandTimeout(long time, TimeUnit unit) {
+        if (time <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid command timeout %d", time));
+        }
+        commandTimeout = unit.toMillis(time);
+    }
+
+    /**
+     * Get the time to wait for a device to confirm a register value.
+     *
+     * @return The time in milliseconds.
+     * @since 2.2
+     */
+    public long getCommandTimeout() {
+        return commandTimeout;
+    }
+
+    /**
+     * Set the number of times an unconfirmed register value is sent again.
+     *
+     * @param retries The number of retries.
+     * @since 2.2
+     */
+    public void setCommandRetries(int retries) {
+        if (retries < 0) {
+            throw new IllegalArgumentException(String.format("Invalid number of command retries %d", retries));
+        }
+        commandRetries = retries;
+    }
+
+    /**
+     * Get the number of times an unconfirmed register value is sent again.
+     *
+     * @return The number of retries.
+     * @since 2.2
+     */
+    public int getCommandRetries() {
+        return commandRetries;
+    }
+
+    /**
+     * Get the status of the event queues of all listeners known to the
+     * network.
+     *
+     * @return The list of listener states.
+     * @since 2.2
+     */
+    public List<ListenerStatus> getListenerStatus() {
+        return dispatcher.getStatus();
+    }
+
+    /**
+     * Get the number of received messages that were dropped because the
+     * receive workers could not keep up.
+     *
+     * @return The number of dropped messages.
+     * @since 2.2
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
     }
 
     /**
@@ -364,10 +855,75 @@ public final class Network implements AutoCloseable {
         send(msg);
     }
 
+    /**
+     * Check if there are batch listeners that need decoded endpoint values.
+     */
+    boolean hasEndpointBatchListeners() {
+        return !endpointBatchers.isEmpty();
+    }
+
+    /**
+     * A register value was received. Pass it on to the batch listeners.
+     */
+    void registerUpdated(Register reg, RegisterState state, List<EndpointUpdate> updates) {
+        if (!registerBatchers.isEmpty() || registerPublisher.hasSubscribers()) {
+            RegisterUpdate update = new RegisterUpdate(reg.getDevice().getAddress(), reg.getId(), state);
+            for (Batcher<RegisterUpdate> b : registerBatchers) {
+                b.add(update);
+            }
+            registerPublisher.publish(reg, update);
+        }
+        if ((updates != null) && !updates.isEmpty()) {
+            for (Batcher<EndpointUpdate> b : endpointBatchers) {
+                b.addAll(updates);
+            }
+        }
+    }
+
+    /**
+     * Start a register update and return its sequence number. Every call must
+     * be followed by a call to endUpdate() once the new state is visible.
+     */
+    long beginUpdate() {
+        updateLock.readLock().lock();
+        updating.incrementAndGet();
+        return sequence.incrementAndGet();
+    }
+
+    void endUpdate() {
+        updating.decrementAndGet();
+        updateLock.readLock().unlock();
+    }
+
     DeviceDefinition getDeviceDefinition(int manId, int prodId) throws NetworkException {
         return lib.getDeviceDefinition(manId, prodId);
     }
 
+    /**
+     * The product code or definition of a device changed.
+     */
+    void deviceDefinitionChanged(PanStamp dev) {
+        if (devices.get(dev.getAddress()) == dev) {
+            index.add(dev);
+        }
+    }
+
+    /**
+     * Get the layout for a register definition. Layouts are shared by all
+     * devices with the same definition.
+     */
+    RegisterLayout layoutFor(RegisterDefinition def) {
+        RegisterLayout layout = layouts.get(def);
+        if (layout == null) {
+            layout = new RegisterLayout(def);
+            RegisterLayout had = layouts.putIfAbsent(def, layout);
+            if (had != null) {
+                layout = had;
+            }
+        }
+        return layout;
+    }
+
     /**
      * Get the executor service used to service library threads
      */
@@ -375,6 +931,27 @@ public final class Network implements AutoCloseable {
         return pool;
     }
 
+    /**
+     * Get the dispatcher used to deliver events to listeners
+     */
+    Dispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Get the rule engine evaluating the rules of the network
+     */
+    RuleEngine getRuleEngine() {
+        return rules;
+    }
+
+    /**
+     * Get the timer used to schedule library tasks
+     */
+    ScheduledExecutorService getTimer() {
+        return timer;
+    }
+
     /**
      * Create an new network implementation using the given modem
      * implementation, XML library and data store.
@@ -389,9 +966,48 @@ public final class Network implements AutoCloseable {
         receiver = new Receiver();
     }
 
+    /**
+     * start the receive workers, each with a bounded queue. Messages that
+     * arrive while a worker's queue is full are dropped.
+     */
+    private synchronized void startWorkers() {
+        if (workers != null) {
+            return;
+        }
+        ExecutorService ws[] = new ExecutorService[Math.max(1, Runtime.getRuntime().availableProcessors())];
+        for (int i = 0; i < ws.length; ++i) {
+            final String name = String.format("PanStamp Receiver %d", i);
+            ws[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(RECEIVE_QUEUE_SIZE),
+                    LibraryThread.factory(name, true), new RejectedExecutionHandler() {
+
+                @Override
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                    long n = droppedMessages.incrementAndGet();
+                    if ((n == 1) || ((n % 1000) == 0)) {
+                        logger.warning(String.format("%s is behind, %d received messages dropped", name, n));
+                    }
+                }
+            });
+        }
+        workers = ws;
+    }
+
+    /**
+     * stop the receive workers once they have processed the messages already
+     * queued
+     */
+    private synchronized void stopWorkers() {
+        if (workers != null) {
+            for (ExecutorService w : workers) {
+                w.shutdown();
+            }
+            workers = null;
+        }
+    }
+
     private void fireDeviceDetected(final PanStamp dev) {
         for (final NetworkListener l : listeners) {
-            getPool().submit(new Runnable() {
+            dispatch(l, new Runnable() {
 
                 @Override
                 public void run() {
@@ -403,7 +1019,7 @@ public final class Network implements AutoCloseable {
 
     private void fireDeviceRemoved(final PanStamp dev) {
         for (final NetworkListener l : listeners) {
-            getPool().submit(new Runnable() {
+            dispatch(l, new Runnable() {
 
                 @Override
                 public void run() {
@@ -415,7 +1031,7 @@ public final class Network implements AutoCloseable {
 
     private void fireNetworkOpened() {
         for (final NetworkListener l : listeners) {
-            getPool().submit(new Runnable() {
+            dispatch(l, new Runnable() {
 
                 @Override
                 public void run() {
@@ -427,7 +1043,7 @@ public final class Network implements AutoCloseable {
 
     private void fireNetworkClosed() {
         for (final NetworkListener l : listeners) {
-            getPool().submit(new Runnable() {
+            dispatch(l, new Runnable() {
 
                 @Override
                 public void run() {
@@ -437,6 +1053,16 @@ public final class Network implements AutoCloseable {
         }
     }
 
+    /**
+     * dispatch an event to a listener, removing the listener if it was
+     * disconnected
+     */
+    private void dispatch(NetworkListener l, Runnable task) {
+        if (!dispatcher.dispatch(l, null, task)) {
+            removeListener(l);
+        }
+    }
+
     /**
      * send a message to a mote
      */
@@ -449,13 +1075,35 @@ public final class Network implements AutoCloseable {
     }
 
     /**
-     * update the network based on a received message
+     * restore the stored state of a newly added device and tell listeners
+     * about it
+     */
+    private void deviceAdded(PanStamp dev) {
+        index.add(dev);
+        for (StandardRegister sr : StandardRegister.ALL) {
+            // only keep the register if there is a value to restore
+            Register reg = dev.newRegister(sr.getId());
+            if (store.hasRegisterValue(reg)) {
+                reg = dev.addRegister(reg);
+                if (!reg.hasValue()) {
+                    reg.valueReceived(store.getRegisterValue(reg));
+                }
+            }
+        }
+        fireDeviceDetected(dev);
+    }
+
+    /**
+     * update the network based on a received message. Messages from one
+     * address are only ever processed by one receive worker, so a device is
+     * never created twice for the same address.
      */
     private void updateNetwork(SwapMessage msg) throws NetworkException {
         int address = msg.getSender();
-        synchronized (devices) {
-            if (!hasDevice(address)) {
-                addDevice(new PanStamp(this, address));
+        if (devices.get(address) == null) {
+            PanStamp dev = new PanStamp(this, address);
+            if (devices.putIfAbsent(dev) == null) {
+                deviceAdded(dev);
             }
         }
     }
@@ -464,18 +1112,74 @@ public final class Network implements AutoCloseable {
      * process a status message received from the modem
      */
     private void processStatusMessage(SwapMessage msg) {
-        try {
-            PanStamp dev = (PanStamp) getDevice(msg.getRegisterAddress());
-            dev.statusMessageReceived(msg);
-            if (msg.isStandardRegister()) {
-                StandardRegister sr = StandardRegister.forId(msg.getRegisterID());
-                Register reg = dev.getRegister(msg.getRegisterID());
+        PanStamp dev = devices.get(msg.getRegisterAddress());
+        if (dev == null) {
+            logger.warning(String.format("Status message received for unknown device %02x", msg.getRegisterAddress()));
+            return;
+        }
+        dev.statusMessageReceived(msg);
+        if (msg.isStandardRegister()) {
+            Register reg = dev.getRegister(msg.getRegisterID());
+            try {
                 store.setRegisterValue(reg, reg.getValue());
+            } catch (NoValueException ex) {
+                logger.log(Level.SEVERE, null, ex);
             }
-        } catch (NetworkException ex) {
-            java.util.logging.Logger.getLogger(Network.class.getName()).log(Level.SEVERE, null, ex);
         }
+    }
 
+    /**
+     * take a snapshot of the register values changed after since. A sequence
+     * number is only used once no update that could have been given a lower
+     * number is still in flight, and registers updated after that number are
+     * read from the state they replaced. If a register was updated twice
+     * while the snapshot was taken, it is taken again, and if that keeps
+     * happening updates are held off while it is taken once more.
+     */
+    private NetworkSnapshot snapshot(long since) {
+        for (int tries = 0; tries < SNAPSHOT_TRIES; ++tries) {
+            long at = sequence.get();
+            if (updating.get() != 0) {
+                Thread.yield();
+                continue;
+            }
+            NetworkSnapshot snap = collect(at, since);
+            if (snap != null) {
+                return snap;
+            }
+        }
+        updateLock.writeLock().lock();
+        try {
+            return collect(sequence.get(), since);
+        } finally {
+            updateLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * collect the register states as they were at the given sequence number.
+     *
+     * @return The snapshot, or null if a register was updated twice after the
+     * sequence number.
+     */
+    private NetworkSnapshot collect(long at, long since) {
+        List<RegisterUpdate> res = new ArrayList<>();
+        for (PanStamp dev : devices.values()) {
+            for (Register reg : dev.getLoadedRegisters()) {
+                RegisterState st = reg.getState();
+                if (st == null) {
+                    continue;
+                }
+                st = st.at(at);
+                if (st == RegisterState.STALE) {
+                    return null;
+                }
+                if ((st != null) && (st.getSequence() > since)) {
+                    res.add(new RegisterUpdate(dev.getAddress(), reg.getId(), st));
+                }
+            }
+        }
+        return new NetworkSnapshot(at, res);
     }
 
     private synchronized ModemSetup getSetup() throws ModemException {
@@ -491,29 +1195,66 @@ public final class Network implements AutoCloseable {
 
     private final SwapModem modem;
     private final Receiver receiver;
+    private volatile ExecutorService workers[];
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private static final int RECEIVE_QUEUE_SIZE = 10000;
     private DeviceLibrary lib;
     private DeviceStateStore store;
-    private final Map<Integer, PanStamp> devices = new HashMap<>();
+    private final DeviceRegistry devices = new DeviceRegistry();
+    private final NetworkIndex index = new NetworkIndex();
+    private final Map<String, VirtualEndpoint> virtuals = new ConcurrentHashMap<>();
     private final Set<NetworkListener> listeners = new CopyOnWriteArraySet<>();
+    private final List<Batcher<RegisterUpdate>> registerBatchers = new CopyOnWriteArrayList<>();
+    private final List<Batcher<EndpointUpdate>> endpointBatchers = new CopyOnWriteArrayList<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger updating = new AtomicInteger();
+    private final ReadWriteLock updateLock = new ReentrantReadWriteLock();
+    private static final int SNAPSHOT_TRIES = 64;
+    private final ConcurrentMap<RegisterDefinition, RegisterLayout> layouts = new ConcurrentHashMap<>();
     private static final Logger logger = Logger.getLogger(Network.class.getName());
     private ModemSetup setup;
-    private final ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
-
-        @Override
-        public Thread newThread(Runnable r) {
-            Thread t = new Thread(r, "PanStamp Library Task");
-            t.setDaemon(true);
-            return t;
-        }
-    });
+    private final ExecutorService pool = Executors.newCachedThreadPool(LibraryThread.factory("PanStamp Library Task"));
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(LibraryThread.factory("PanStamp Library Timer"));
+    private final Dispatcher dispatcher = new Dispatcher(pool, timer);
+    private final RuleEngine rules = new RuleEngine(dispatcher, timer);
+    private final Reconciler reconciler = new Reconciler(timer);
+    private final Poller poller = new Poller(timer);
+    private volatile long queryTimeout = 2000;
+    private volatile int queryRetries = 2;
+    private volatile long commandTimeout = 2000;
+    private volatile int commandRetries = 2;
+    private final StreamPublisher<SwapMessage> messagePublisher = new StreamPublisher<>(dispatcher);
+    private final StreamPublisher<RegisterUpdate> registerPublisher = new StreamPublisher<>(dispatcher);
 
     /**
-     * A receiver for incoming messages
+     * A receiver for incoming messages. Messages are partitioned by sender
+     * address over a fixed set of single threaded workers, so that messages
+     * from one device are processed in the order they were received while
+     * messages from different devices are processed in parallel.
      */
     private class Receiver implements MessageListener {
 
         @Override
-        public void messageReceived(SwapMessage msg) {
+        public void messageReceived(final SwapMessage msg) {
+            ExecutorService ws[] = workers;
+            if (ws == null) {
+                return; // the network was closed
+            }
+            ws[msg.getSender() % ws.length].execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        process(msg);
+                    } finally {
+                        LibraryThread.awaitListeners();
+                    }
+                }
+            });
+        }
+
+        private void process(SwapMessage msg) {
+            messagePublisher.publish(null, msg);
             try {
                 updateNetwork(msg);
             } catch (NetworkException ex) {
@@ -522,7 +1263,6 @@ public final class Network implements AutoCloseable {
             if (msg.getType() == SwapMessage.Type.STATUS) {
                 processStatusMessage(msg);
             }
-
         }
 
         @Override
@@ -0,0 +1,177 @@
+package me.legrange.panstamp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import me.legrange.panstamp.definition.DeviceDefinition;
+import me.legrange.panstamp.definition.EndpointDefinition;
+import me.legrange.panstamp.definition.RegisterDefinition;
+import me.legrange.panstamp.definition.Unit;
+
+/**
+ * An index of the endpoints in a network by endpoint name, unit and register
+ * ID, and of the devices by product. The index is updated when devices are
+ * added or removed and when a device definition is loaded, so queries don't
+ * have to walk the devices. It refers to endpoints by device, register and
+ * name, and only creates the endpoints a query returns.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+final class NetworkIndex {
+
+    /**
+     * Add a device to the index, or re-index it if it is already indexed.
+     */
+    synchronized void add(PanStamp dev) {
+        remove(dev);
+        List<Handle> handles = new ArrayList<>();
+        for (StandardRegister sr : StandardRegister.ALL) {
+            index(dev, sr, handles);
+        }
+        DeviceDefinition def = dev.getDefinition();
+        if (def != null) {
+            for (RegisterDefinition rd : def.getRegisters()) {
+                index(dev, rd, handles);
+            }
+        }
+        indexed.put(dev, handles);
+        long product = product(dev);
+        if (product != 0) {
+            setFor(byProduct, product).add(dev);
+            products.put(dev, product);
+        }
+    }
+
+    /**
+     * Remove a device from the index.
+     */
+    synchronized void remove(PanStamp dev) {
+        List<Handle> handles = indexed.remove(dev);
+        if (handles != null) {
+            for (Handle h : handles) {
+                removeFrom(byName, h.name, h);
+                removeFrom(byRegister, h.registerId, h);
+                for (String unit : h.units) {
+                    removeFrom(byUnit, unit, h);
+                }
+            }
+        }
+        Long product = products.remove(dev);
+        if (product != null) {
+            removeFrom(byProduct, product, dev);
+        }
+    }
+
+    List<Endpoint<?>> getEndpointsByName(String name) {
+        return resolve(byName.get(name));
+    }
+
+    List<Endpoint<?>> getEndpointsByUnit(String unit) {
+        return resolve(byUnit.get(unit));
+    }
+
+    List<Endpoint<?>> getEndpointsByRegister(int registerId) {
+        return resolve(byRegister.get(registerId));
+    }
+
+    List<PanStamp> getDevicesByProduct(int manufacturerId, int productId) {
+        Set<PanStamp> devs = byProduct.get(product(manufacturerId, productId));
+        if (devs == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(devs);
+    }
+
+    private void index(PanStamp dev, RegisterDefinition rd, List<Handle> handles) {
+        for (EndpointDefinition ed : rd.getEndpoints()) {
+            List<String> units = new ArrayList<>();
+            for (Unit unit : ed.getUnits()) {
+                units.add(unit.getName());
+            }
+            Handle h = new Handle(dev, rd.getId(), ed.getName(), units);
+            handles.add(h);
+            setFor(byName, h.name).add(h);
+            setFor(byRegister, h.registerId).add(h);
+            for (String unit : units) {
+                setFor(byUnit, unit).add(h);
+            }
+        }
+    }
+
+    private static List<Endpoint<?>> resolve(Collection<Handle> handles) {
+        if (handles == null) {
+            return Collections.emptyList();
+        }
+        List<Endpoint<?>> res = new ArrayList<>(handles.size());
+        for (Handle h : handles) {
+            try {
+                res.add(h.dev.getRegister(h.registerId).getEndpoint(h.name));
+            } catch (EndpointNotFoundException ex) {
+                // the device definition changed while we were looking
+            }
+        }
+        return res;
+    }
+
+    private static long product(PanStamp dev) {
+        try {
+            return product(dev.getManufacturerId(), dev.getProductId());
+        } catch (NetworkException ex) {
+            return 0;
+        }
+    }
+
+    private static long product(int manufacturerId, int productId) {
+        return ((long) manufacturerId << 32) | (productId & 0xFFFFFFFFL);
+    }
+
+    private static <K, V> Set<V> setFor(Map<K, Set<V>> map, K key) {
+        Set<V> set = map.get(key);
+        if (set == null) {
+            set = Collections.newSetFromMap(new ConcurrentHashMap<V, Boolean>());
+            map.put(key, set);
+        }
+        return set;
+    }
+
+    private static <K, V> void removeFrom(Map<K, Set<V>> map, K key, V value) {
+        Set<V> set = map.get(key);
+        if (set != null) {
+            set.remove(value);
+            if (set.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+
+    private final Map<String, Set<Handle>> byName = new ConcurrentHashMap<>();
+    private final Map<String, Set<Handle>> byUnit = new ConcurrentHashMap<>();
+    private final Map<Integer, Set<Handle>> byRegister = new ConcurrentHashMap<>();
+    private final Map<Long, Set<PanStamp>> byProduct = new ConcurrentHashMap<>();
+    private final Map<PanStamp, List<Handle>> indexed = new ConcurrentHashMap<>();
+    private final Map<PanStamp, Long> products = new ConcurrentHashMap<>();
+
+    /**
+     * A reference to an endpoint that does not need the endpoint to exist.
+     */
+    private static final class Handle {
+
+        private Handle(PanStamp dev, int registerId, String name, List<String> units) {
+            this.dev = dev;
+            this.registerId = registerId;
+            this.name = name;
+            this.units = units;
+        }
+
+        private final PanStamp dev;
+        private final int registerId;
+        private final String name;
+        private final List<String> units;
+    }
+
+}
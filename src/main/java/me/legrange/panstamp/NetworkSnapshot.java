@@ -0,0 +1,76 @@
+package me.legrange.panstamp;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable, consistent view of the register values in a network at a
+ * specific sequence number. A snapshot contains every register value with a
+ * sequence number up to and including that of the snapshot, and no later
+ * ones. Snapshots returned by
+ * {@link Network#changesSince(long)} only contain the values that changed
+ * after the given sequence number.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public final class NetworkSnapshot {
+
+    /**
+     * Get the sequence number of the snapshot. Pass it to
+     * {@link Network#changesSince(long)} to get the changes made after this
+     * snapshot.
+     *
+     * @return The sequence number.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Get the register values in the snapshot, ordered by device address and
+     * register ID.
+     *
+     * @return The register values.
+     */
+    public List<RegisterUpdate> getRegisters() {
+        return registers;
+    }
+
+    /**
+     * Get the value of a register in the snapshot.
+     *
+     * @param address The device address.
+     * @param registerId The register ID.
+     * @return The register value, or null if the snapshot has no value for
+     * the register.
+     */
+    public RegisterUpdate getRegister(int address, int registerId) {
+        return index.get(key(address, registerId));
+    }
+
+    @Override
+    public String toString() {
+        return "NetworkSnapshot{" + "sequence=" + sequence + ", registers=" + registers.size() + '}';
+    }
+
+    NetworkSnapshot(long sequence, List<RegisterUpdate> registers) {
+        this.sequence = sequence;
+        this.registers = Collections.unmodifiableList(registers);
+        index = new HashMap<>();
+        for (RegisterUpdate reg : registers) {
+            index.put(key(reg.getAddress(), reg.getRegisterId()), reg);
+        }
+    }
+
+    private static int key(int address, int registerId) {
+        return (address << 8) | (registerId & 0xFF);
+    }
+
+    private final long sequence;
+    private final List<RegisterUpdate> registers;
+    private final Map<Integer, RegisterUpdate> index;
+
+}
@@ -0,0 +1,131 @@
+package me.legrange.panstamp;
+
+/**
+ * A filter deciding which received values are delivered to a listener. A
+ * filter can suppress values that did not change, or numeric values that moved
+ * less than an absolute or percentage deadband from the last value delivered.
+ * <p>
+ * Hysteresis widens the deadband for movements that reverse the direction of
+ * the last delivered change, so a value hovering around a level does not
+ * cause a stream of alternating notifications.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public final class NotificationFilter {
+
+    /**
+     * Create a filter that only delivers values that differ from the previous
+     * value.
+     *
+     * @return The filter.
+     */
+    public static NotificationFilter changesOnly() {
+        return CHANGES_ONLY;
+    }
+
+    /**
+     * Create a filter that only delivers numeric values that differ by more
+     * than the given amount from the last value delivered. Non-numeric values
+     * are delivered when they change.
+     *
+     * @param band The deadband in the endpoint's unit.
+     * @return The filter.
+     */
+    public static NotificationFilter absoluteDeadband(double band) {
+        return new NotificationFilter(false, checkBand(band), 0);
+    }
+
+    /**
+     * Create a filter that only delivers numeric values that differ by more
+     * than the given percentage of the last value delivered. Non-numeric
+     * values are delivered when they change.
+     *
+     * @param percent The deadband as a percentage of the last value.
+     * @return The filter.
+     */
+    public static NotificationFilter percentDeadband(double percent) {
+        return new NotificationFilter(true, checkBand(percent), 0);
+    }
+
+    /**
+     * Return a copy of this filter with the given hysteresis, expressed in the
+     * same terms as the deadband.
+     *
+     * @param hysteresis The extra movement needed to reverse direction.
+     * @return The new filter.
+     */
+    public NotificationFilter withHysteresis(double hysteresis) {
+        return new NotificationFilter(percent, band, checkBand(hysteresis));
+    }
+
+    /**
+     * Check if this filter only compares values for equality.
+     *
+     * @return True if this is a change-only filter.
+     */
+    public boolean isChangesOnly() {
+        return (band == 0) && (hysteresis == 0);
+    }
+
+    /**
+     * Check if the deadband is a percentage of the last value.
+     *
+     * @return True if the deadband is a percentage.
+     */
+    public boolean isPercent() {
+        return percent;
+    }
+
+    /**
+     * Get the deadband.
+     *
+     * @return The deadband.
+     */
+    public double getBand() {
+        return band;
+    }
+
+    /**
+     * Get the hysteresis.
+     *
+     * @return The hysteresis.
+     */
+    public double getHysteresis() {
+        return hysteresis;
+    }
+
+    @Override
+    public String toString() {
+        if (isChangesOnly()) {
+            return "NotificationFilter{changesOnly}";
+        }
+        return "NotificationFilter{" + "band=" + band + (percent ? "%" : "") + ", hysteresis=" + hysteresis + '}';
+    }
+
+    /**
+     * Create the per-listener state needed to apply this filter.
+     */
+    FilterState newState() {
+        return new FilterState(this);
+    }
+
+    private static double checkBand(double band) {
+        if (!(band >= 0)) {
+            throw new IllegalArgumentException(String.format("Invalid deadband %f, must be zero or positive", band));
+        }
+        return band;
+    }
+
+    private NotificationFilter(boolean percent, double band, double hysteresis) {
+        this.percent = percent;
+        this.band = band;
+        this.hysteresis = hysteresis;
+    }
+
+    private static final NotificationFilter CHANGES_ONLY = new NotificationFilter(false, 0, 0);
+    private final boolean percent;
+    private final double band;
+    private final double hysteresis;
+
+}
@@ -1,7 +1,6 @@
 package me.legrange.panstamp;
 
 import me.legrange.panstamp.definition.EndpointDefinition;
-import me.legrange.panstamp.definition.Unit;
 
 /**
  * An endpoint that supports the "num" type from the XML definitions and maps
@@ -12,8 +11,8 @@ import me.legrange.panstamp.definition.Unit;
  */
 final class NumberEndpoint extends AbstractEndpoint<Double> {
 
-    NumberEndpoint(Register reg, EndpointDefinition epDef) {
-        super(reg, epDef);
+    NumberEndpoint(Register reg, EndpointDefinition epDef, EndpointCodec codec) {
+        super(reg, epDef, codec);
     }
 
     @Override
@@ -21,37 +20,24 @@ final class NumberEndpoint extends AbstractEndpoint<Double> {
         return Type.NUMBER;
     }
 
+    @Override
+    Class<Double> getValueClass() {
+        return Double.class;
+    }
+
+
+    @Override
+    protected Double read(int unit, byte bytes[]) {
+        return toDouble(unit, bytes);
+    }
 
     @Override
-    protected Double read(Unit unit) throws NoValueException {
-        byte bytes[] = reg.getValue();
-        long val = 0;
-        for (int i = 0; i < epDef.getSize().getBytes(); ++i) {
-            val = val << 8;
-            val = val | (bytes[epDef.getPosition().getBytePos() + i]) & 0xFF;
-        }
-        if (unit != null) {
-            return ((double) val) * unit.getFactor() + unit.getOffset();
-        }
-        return (double)val;
+    protected double toDouble(int unit, byte bytes[]) {
+        return codec.toUnit(codec.raw(bytes), unit);
     }
 
     @Override
-    protected void write(Unit unit, Double value) throws NetworkException {
-        if (unit != null) {
-           value = (value - unit.getOffset()) / unit.getFactor();
-        }
-        long val = value.longValue();
-        byte bytes[];
-        if (reg.hasValue()) {
-            bytes = reg.getValue();
-        } else {
-            bytes = new byte[epDef.getRegister().getByteSize()];
-        }
-        for (int i = epDef.getSize().getBytes() - 1; i >= 0; --i) {
-            bytes[epDef.getPosition().getBytePos() + i] = (byte) (val & 0xFF);
-            val = val >>> 8;
-        }
-        reg.setValue(bytes);
+    protected void write(int unit, Double value, byte bytes[]) {
+        codec.raw(bytes, (long) codec.fromUnit(value, unit));
     }
 }
@@ -23,14 +23,14 @@ final class NumberParameter extends AbstractParameter<Double> {
     }
 
     @Override
-    public void setValue(Double value) throws NetworkException {
+    byte[] encode(Double value) throws NetworkException {
         long val = value.longValue();
         byte bytes[] = new byte[par.getSize().getBytes()];
         for (int i = par.getSize().getBytes() - 1; i >= 0; --i) {
             bytes[i] = (byte) (val & 0xFF);
             val = val >>> 8;
         }
-        reg.setValue(bytes);
+        return bytes;
     }
 
     @Override
@@ -38,6 +38,11 @@ final class NumberParameter extends AbstractParameter<Double> {
         return Type.NUMBER;
     }
 
+    @Override
+    Class<Double> getValueClass() {
+        return Double.class;
+    }
+
     NumberParameter(Register reg, ParameterDefinition par) {
         super(reg, par);
     }
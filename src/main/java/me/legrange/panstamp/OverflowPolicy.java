@@ -0,0 +1,38 @@
+package me.legrange.panstamp;
+
+/**
+ * The policy applied when the backlog of events waiting for a listener is
+ * full.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Block the thread producing the event until the listener has caught up.
+     * Application threads and the receive workers are blocked, so received
+     * messages wait for a slow listener, and are dropped at the receive
+     * queue if the modem keeps sending. A receive worker finishes the message
+     * it is handling before it waits, so the backlog can briefly exceed the
+     * capacity by the events of one message. Events produced by the library timer
+     * and listener callbacks are handled as for DROP_OLDEST, as those threads
+     * are shared by all listeners.
+     */
+    BLOCK,
+    /**
+     * Discard the oldest queued event to make space for the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * Replace a queued event for the same register or endpoint with the new
+     * one, so that the listener only sees the latest value. If nothing can be
+     * conflated the oldest event is discarded.
+     */
+    CONFLATE,
+    /**
+     * Discard the backlog and remove the listener.
+     */
+    DISCONNECT;
+
+}
@@ -1,21 +1,17 @@
 package me.legrange.panstamp;
 
-import me.legrange.panstamp.event.AbstractPanStampListener;
-import me.legrange.panstamp.event.AbstractRegisterListener;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import me.legrange.panstamp.definition.DeviceDefinition;
-import me.legrange.panstamp.definition.EndpointDefinition;
-import me.legrange.panstamp.definition.ParameterDefinition;
 import me.legrange.panstamp.definition.RegisterDefinition;
 import me.legrange.swap.SwapMessage;
 
@@ -205,30 +201,74 @@ public final class PanStamp {
     }
 
     /**
-     * Get the register with the given register ID for this device.
+     * Get the register with the given register ID for this device. Registers
+     * are created when they are first needed.
      *
      *
      * @return the register for the given id
      * @param id ID of register to return
      */
     public Register getRegister(int id) {
-        Register reg;
-        synchronized (registers) {
-            reg = registers.get(id);
-            if (reg == null) {
-                reg = new Register(this, id);
-                registers.put(id, reg);
+        Register reg = registers.get(id);
+        if (reg == null) {
+            synchronized (registers) {
+                reg = registers.get(id);
+                if (reg == null) {
+                    reg = new Register(this, id, layoutFor(id));
+                    registers.put(id, reg);
+                }
             }
         }
         return reg;
     }
 
+    /**
+     * Create a register without adding it to the device, so that it can be
+     * looked at before deciding to keep it with addRegister().
+     */
+    Register newRegister(int id) {
+        return new Register(this, id, layoutFor(id));
+    }
+
+    /**
+     * Add a register made by newRegister(), unless the device got a register
+     * with the same ID in the meantime.
+     *
+     * @return The register the device has for the ID.
+     */
+    Register addRegister(Register reg) {
+        synchronized (registers) {
+            Register cur = registers.get(reg.getId());
+            if (cur != null) {
+                return cur;
+            }
+            registers.put(reg.getId(), reg);
+            return reg;
+        }
+    }
+
     /**
      * Get the list of registers defined for this device
      *
      * @return The list of registers.
      */
     public List<Register> getRegisters() {
+        for (StandardRegister sr : StandardRegister.ALL) {
+            getRegister(sr.getId());
+        }
+        DeviceDefinition def = this.def;
+        if (def != null) {
+            for (RegisterDefinition rpDef : def.getRegisters()) {
+                getRegister(rpDef.getId());
+            }
+        }
+        return getLoadedRegisters();
+    }
+
+    /**
+     * Get the registers that have been created so far, ordered by ID.
+     */
+    List<Register> getLoadedRegisters() {
         List<Register> all = new ArrayList<>();
         all.addAll(registers.values());
         Collections.sort(all, new Comparator() {
@@ -248,7 +288,66 @@ public final class PanStamp {
      * @return True if the panStamp has the register.
      */
     public boolean hasRegister(int id) {
-        return registers.get(id) != null;
+        return (registers.get(id) != null) || (layoutFor(id) != null);
+    }
+
+    /**
+     * Add a virtual endpoint calculated from the endpoints of this device,
+     * and from its other virtual endpoints. Endpoints are referred to by name
+     * in the expression, for example "Temperature - (100 - Humidity) / 5".
+     * See {@link VirtualEndpoint#getExpression()} for the syntax.
+     *
+     * @param name The name of the virtual endpoint.
+     * @param expression The expression calculating the value.
+     * @return The new endpoint.
+     * @throws EndpointNotFoundException Thrown if the expression uses an
+     * endpoint that the device doesn't have.
+     * @throws IllegalArgumentException Thrown if the expression is invalid.
+     * @since 2.2
+     */
+    public VirtualEndpoint addVirtualEndpoint(String name, String expression) throws EndpointNotFoundException {
+        Expression expr = Expression.compile(expression);
+        Map<String, Endpoint<?>> inputs = new HashMap<>();
+        for (String var : expr.getVariables()) {
+            inputs.put(var, findEndpoint(var));
+        }
+        VirtualEndpoint vep = VirtualEndpoint.create(name, expr, inputs, getDispatcher());
+        VirtualEndpoint old = virtuals.put(name, vep);
+        if (old != null) {
+            old.detach();
+        }
+        vep.attach();
+        return vep;
+    }
+
+    /**
+     * Get a virtual endpoint of this device.
+     *
+     * @param name The name of the virtual endpoint.
+     * @return The endpoint.
+     * @throws EndpointNotFoundException Thrown if there is no such virtual
+     * endpoint.
+     * @since 2.2
+     */
+    public VirtualEndpoint getVirtualEndpoint(String name) throws EndpointNotFoundException {
+        VirtualEndpoint vep = virtuals.get(name);
+        if (vep == null) {
+            throw new EndpointNotFoundException(String.format("Could not find virtual endpoint '%s' on device %d", name, address));
+        }
+        return vep;
+    }
+
+    /**
+     * Remove a virtual endpoint from this device.
+     *
+     * @param name The name of the virtual endpoint.
+     * @since 2.2
+     */
+    public void removeVirtualEndpoint(String name) {
+        VirtualEndpoint vep = virtuals.remove(name);
+        if (vep != null) {
+            vep.detach();
+        }
     }
 
     /**
@@ -257,7 +356,9 @@ public final class PanStamp {
      * @param l The listener to add
      */
     public void addListener(PanStampListener l) {
-        listeners.add(l);
+        if (listeners.add(l)) {
+            getDispatcher().register(l);
+        }
     }
 
     /**
@@ -266,7 +367,9 @@ public final class PanStamp {
      * @param l The listener to remove
      */
     public void removeListener(PanStampListener l) {
-        listeners.remove(l);
+        if (listeners.remove(l)) {
+            getDispatcher().unregister(l);
+        }
     }
 
     /**
@@ -281,20 +384,34 @@ public final class PanStamp {
         this.nw = gw;
         this.address = address;
         extended = address > 255;
-        for (StandardRegister reg : StandardRegister.ALL) {
-            Register impl = new Register(this, reg);
-            registers.put(reg.getId(), impl);
+    }
+
+    /**
+     * Tell the stream subscribers of the device's endpoints that no more
+     * values will be published.
+     */
+    void completeStreams() {
+        for (Register reg : registers.values()) {
+            reg.completeStreams();
+        }
+        for (VirtualEndpoint vep : virtuals.values()) {
+            vep.completeStreams();
         }
-        getRegister(StandardRegister.PRODUCT_CODE.getId()).addListener(productCodeListener());
-        getRegister(StandardRegister.SYSTEM_STATE.getId()).getEndpoint(StandardEndpoint.SYSTEM_STATE.getName()).addListener(systemStateListener());
     }
 
     void destroy() {
+        for (VirtualEndpoint vep : virtuals.values()) {
+            vep.detach();
+        }
+        virtuals.clear();
         for (Register reg : registers.values()) {
             reg.destroy();
         }
-        listeners.clear();
+        for (PanStampListener l : listeners) {
+            removeListener(l);
+        }
         registers.clear();
+        mailbox.clear();
     }
 
     DeviceDefinition getDefinition() {
@@ -302,25 +419,68 @@ public final class PanStamp {
     }
 
     /**
-     * send a query message to the remote node
+     * send a query message to the remote node. Queries for a device that is
+     * powered down are held until it wakes up.
      * @param id register
      * @throws ModemException
      */
     public void sendQueryMessage(int id) throws ModemException {
+        sendQuery(id);
+    }
+
+    /**
+     * Send a query message, or hold it if the device is powered down.
+     *
+     * @return True if the query was sent now, false if it is held.
+     */
+    boolean sendQuery(int id) throws ModemException {
+        if (!isAwake()) {
+            if (mailbox.putQuery(id)) {
+                fireSyncRequired();
+            }
+            return false;
+        }
         nw.sendQueryMessage(this, id);
+        return true;
+    }
+
+    /**
+     * A held message that the device answers with the value of a register
+     * was sent.
+     */
+    void queryTransmitted(int id) {
+        Register reg = registers.get(id);
+        if (reg != null) {
+            reg.queryTransmitted();
+        }
     }
 
     /**
-     * send a command message to the remote node
+     * A held command was sent.
+     */
+    void commandTransmitted(int id) {
+        Register reg = registers.get(id);
+        if (reg != null) {
+            reg.commandTransmitted();
+        }
+    }
+
+    /**
+     * send a command message to the remote node. Commands for a device that
+     * is powered down are held until it wakes up.
      *
      * @param value Value to send
+     * @return True if the command was sent now, false if it is held.
      */
-    void sendCommandMessage(int id, byte[] value) throws NetworkException {
-        if (isSleeper()) {
-            queue(id, value);
-        } else {
-            nw.sendCommandMessage(this, id, value);
+    boolean sendCommandMessage(int id, byte[] value) throws NetworkException {
+        if (!isAwake()) {
+            if (mailbox.putCommand(id, value)) {
+                fireSyncRequired();
+            }
+            return false;
         }
+        nw.sendCommandMessage(this, id, value);
+        return true;
     }
 
     /**
@@ -335,17 +495,58 @@ public final class PanStamp {
         }
     }
 
+    /**
+     * A register received a value. The device tracks its product code and
+     * system state itself rather than listening to its registers, so those
+     * registers are only created when a value arrives.
+     */
+    void valueReceived(Register reg, byte value[]) {
+        if (reg.getId() == StandardRegister.PRODUCT_CODE.getId()) {
+            productCodeUpdated();
+        } else if (reg.getId() == StandardRegister.SYSTEM_STATE.getId()) {
+            int state = (int) SYSTEM_STATE.raw(value);
+            rxOn = (state == 1);
+            if ((state == 1) || (state == 3)) {
+                awakeUntil = System.currentTimeMillis() + wakeWindow(state);
+                mailbox.drain();
+            } else {
+                awakeUntil = 0;
+            }
+            fireSyncStateChanged(state);
+        } else if (rxOn) {
+            // a device that stays on is still on while it keeps reporting
+            awakeUntil = System.currentTimeMillis() + wakeWindow(1);
+        }
+    }
+
+    /**
+     * A value was set on a register.
+     */
+    void valueSet(Register reg) {
+        if (reg.getId() == StandardRegister.PRODUCT_CODE.getId()) {
+            productCodeUpdated();
+        }
+    }
+
+    /**
+     * Determine if the device is listening, which a powered down device only
+     * does for a while after it reported that it woke up.
+     */
+    boolean isAwake() {
+        return !isSleeper() || (System.currentTimeMillis() < awakeUntil);
+    }
+
     boolean hasExtendedAddress() {
         return extended;
     }
 
-    ExecutorService getPool() {
-        return nw.getPool();
+    Dispatcher getDispatcher() {
+        return nw.getDispatcher();
     }
 
     private void fireRegisterDetected(final Register reg) {
         for (final PanStampListener l : listeners) {
-            getPool().submit(new Runnable() {
+            dispatch(l, new Runnable() {
 
                 @Override
                 public void run() {
@@ -355,6 +556,16 @@ public final class PanStamp {
         }
     }
 
+    /**
+     * dispatch an event to a listener, removing the listener if it was
+     * disconnected
+     */
+    private void dispatch(PanStampListener l, Runnable task) {
+        if (!getDispatcher().dispatch(l, null, task)) {
+            removeListener(l);
+        }
+    }
+
     private int getIntValue(StandardEndpoint epDef, int defaultValue) throws NetworkException {
         Integer v = getIntValue(epDef);
         if (v != null) {
@@ -379,37 +590,73 @@ public final class PanStamp {
         return null;
     }
 
-    private void queue(int id, byte[] value) {
-        addListener(new UpdateOnSync(id, value));
-        fireSyncRequired();
+    /**
+     * how long a powered down device listens after it reported the given
+     * state: the sync window, or for a device that stays on, until it misses
+     * two transmissions
+     */
+    private long wakeWindow(int state) {
+        if (state == 1) {
+            Register reg = registers.get(StandardRegister.PERIODIC_TX_INTERVAL.getId());
+            byte value[] = (reg != null) ? reg.currentValue() : null;
+            if ((value != null) && (value.length >= 2)) {
+                return Math.max(SYNC_WINDOW, 2000 * TX_INTERVAL.raw(value));
+            }
+        }
+        return SYNC_WINDOW;
     }
 
-    private boolean isSleeper() throws NetworkException {
+    private boolean isSleeper() {
         if (def != null) {
             return def.isPowerDownMode();
         } else {
-            Endpoint<Integer> ep = getRegister(StandardRegister.SYSTEM_STATE.getId()).getEndpoint(StandardEndpoint.SYSTEM_STATE.getName());
-            if (!ep.hasValue()) { // if we can't confirm sleep mode, we assume it is true so we rather ask for sync
+            byte value[] = getRegister(StandardRegister.SYSTEM_STATE.getId()).currentValue();
+            if (value == null) { // if we can't confirm sleep mode, we assume it is true so we rather ask for sync
                 return true;
             }
-            int v = ep.getValue();
+            int v = (int) SYSTEM_STATE.raw(value);
             return (v != 3) && (v != 1);
         }
     }
 
-    private EndpointListener systemStateListener() {
-        return new EndpointListener<Integer>() {
-
-            @Override
-            public void valueReceived(Endpoint<Integer> ep, Integer syncState) {
-                fireSyncStateChanged(syncState);
+    /**
+     * find an endpoint or virtual endpoint of this device by name
+     */
+    private Endpoint<?> findEndpoint(String name) throws EndpointNotFoundException {
+        VirtualEndpoint vep = virtuals.get(name);
+        if (vep != null) {
+            return vep;
+        }
+        for (Register reg : getRegisters()) {
+            try {
+                if (reg.hasEndpoint(name)) {
+                    return reg.getEndpoint(name);
+                }
+            } catch (NetworkException ex) {
+                throw new EndpointNotFoundException(ex.getMessage(), ex);
             }
-        };
+        }
+        throw new EndpointNotFoundException(String.format("Could not find endpoint '%s' on device %d", name, address));
+    }
+
+    /**
+     * get the layout of the register with the given ID, or null if the
+     * register is not known
+     */
+    private RegisterLayout layoutFor(int id) {
+        DeviceDefinition def = this.def;
+        if ((def != null) && def.hasRegister(id)) {
+            return nw.layoutFor(def.getRegister(id));
+        }
+        if ((id >= 0) && (id <= StandardRegister.MAX.getId())) {
+            return nw.layoutFor(StandardRegister.forId(id));
+        }
+        return null;
     }
 
     private void fireSyncRequired() {
         for (final PanStampListener l : listeners) {
-            getPool().submit(new Runnable() {
+            dispatch(l, new Runnable() {
 
                 @Override
                 public void run() {
@@ -421,7 +668,7 @@ public final class PanStamp {
 
     private void fireSyncStateChanged(final int syncState) {
         for (final PanStampListener l : listeners) {
-            getPool().submit(new Runnable() {
+            dispatch(l, new Runnable() {
 
                 @Override
                 public void run() {
@@ -433,7 +680,7 @@ public final class PanStamp {
 
     private void fireProductCodeChange(final int manufacturerId, final int productId) {
         for (final PanStampListener l : listeners) {
-            getPool().submit(new Runnable() {
+            dispatch(l, new Runnable() {
 
                 @Override
                 public void run() {
@@ -443,52 +690,40 @@ public final class PanStamp {
         }
     }
 
-    private RegisterListener productCodeListener() {
-        return new AbstractRegisterListener() {
-            @Override
-            public void valueReceived(Register reg, byte value[]) {
-                updated(reg, value);
-            }
-
-            @Override
-            public void valueSet(Register reg, byte[] value) {
-                updated(reg, value);
-            }
-
-            private void updated(Register reg, byte[] value) {
+    /**
+     * the product code register was updated
+     */
+    private void productCodeUpdated() {
+        try {
+            int mfId = getManufacturerIdFromRegister();
+            int pdId = getProductIdFromRegister();
+            if ((mfId != manufacturerId) || (pdId != productId)) {
+                manufacturerId = mfId;
+                productId = pdId;
                 try {
-                    int mfId = getManufacturerIdFromRegister();
-                    int pdId = getProductIdFromRegister();
-                    if ((mfId != manufacturerId) || (pdId != productId)) {
-                        manufacturerId = mfId;
-                        productId = pdId;
-                        if ((manufacturerId != 0) && (productId != 0)) {
-                            loadDefinition();
-                        }
-                        fireProductCodeChange(manufacturerId, productId);
+                    if ((manufacturerId != 0) && (productId != 0)) {
+                        loadDefinition();
                     }
+                } finally {
+                    nw.deviceDefinitionChanged(this);
                 }
-                catch (NetworkException ex) {
-                    Logger.getLogger(PanStamp.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
-                }
+                fireProductCodeChange(manufacturerId, productId);
             }
-        };
-
+        } catch (NetworkException ex) {
+            Logger.getLogger(PanStamp.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+        }
     }
 
     /**
-     * load all endpoints and parameters
+     * load the device definition. Registers that already exist get their
+     * layout from the definition, the rest are created when needed.
      */
     private void loadDefinition() throws NetworkException {
         def = nw.getDeviceDefinition(getManufacturerId(), getProductId());
-        List<RegisterDefinition> rpDefs = def.getRegisters();
-        for (RegisterDefinition rpDef : rpDefs) {
-            Register reg = (Register) getRegister(rpDef.getId());
-            for (EndpointDefinition epDef : rpDef.getEndpoints()) {
-                reg.addEndpoint(epDef);
-            }
-            for (ParameterDefinition par : rpDef.getParameters()) {
-                reg.addParameter(par);
+        for (RegisterDefinition rpDef : def.getRegisters()) {
+            Register reg = registers.get(rpDef.getId());
+            if (reg != null) {
+                reg.setLayout(nw.layoutFor(rpDef));
             }
         }
     }
@@ -518,39 +753,19 @@ public final class PanStamp {
     }
 
     private final int address;
-    private DeviceDefinition def;
+    private volatile DeviceDefinition def;
     private final Network nw;
     private int manufacturerId;
     private int productId;
     private int syncState;
     private final boolean extended;
     private final Map<Integer, Register> registers = new ConcurrentHashMap<>();
+    private final Map<String, VirtualEndpoint> virtuals = new ConcurrentHashMap<>();
+    private final Mailbox mailbox = new Mailbox(this);
+    private volatile long awakeUntil;
+    private volatile boolean rxOn;
     private transient final Set<PanStampListener> listeners = new CopyOnWriteArraySet<>(); // wish I knew why this was transient...
-
-    private class UpdateOnSync extends AbstractPanStampListener {
-
-        private UpdateOnSync(int id, byte[] val) {
-            this.id = id;
-            this.val = val;
-        }
-        private final int id;
-        private final byte[] val;
-
-        @Override
-        public void syncStateChange(PanStamp dev, int syncState) {
-            switch (syncState) {
-                case 1:
-                case 3:
-                    try {
-                        nw.sendCommandMessage(PanStamp.this, id, val);
-                    } catch (ModemException ex) {
-                        Logger.getLogger(PanStamp.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
-                    } finally {
-                        removeListener(this);
-                    }
-                    break;
-                default:
-            }
-        }
-    }
+    private static final EndpointCodec SYSTEM_STATE = new EndpointCodec(StandardEndpoint.SYSTEM_STATE);
+    private static final EndpointCodec TX_INTERVAL = new EndpointCodec(StandardEndpoint.PERIODIC_TX_INTERVAL);
+    private static final long SYNC_WINDOW = 10000;
 }
@@ -0,0 +1,74 @@
+package me.legrange.panstamp;
+
+import java.util.Arrays;
+
+/**
+ * A register value set by the application that the device has not confirmed
+ * yet, with a mask of the bits the application changed. The other bits
+ * belong to the device, so the value is always rebased on the latest value
+ * received before it is used, and any value with the changed bits set as
+ * wanted confirms it.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+final class PendingValue {
+
+    /**
+     * Create a pending value that replaces the whole register value.
+     */
+    static PendingValue of(byte value[]) {
+        byte mask[] = new byte[value.length];
+        Arrays.fill(mask, (byte) 0xFF);
+        return new PendingValue(value, mask);
+    }
+
+    PendingValue(byte value[], byte mask[]) {
+        this.value = value;
+        this.mask = mask;
+    }
+
+    /**
+     * Get the value rebased on the given current value: the changed bits
+     * from this value and the rest from the current value.
+     *
+     * @param current The current register value, or null if none is known.
+     * @return A new array with the rebased value.
+     */
+    byte[] on(byte current[]) {
+        byte res[] = value.clone();
+        if ((current != null) && (current.length == value.length)) {
+            for (int i = 0; i < res.length; ++i) {
+                res[i] = (byte) ((current[i] & ~mask[i]) | (value[i] & mask[i]));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Determine if a value received from the device has the changed bits set
+     * as wanted.
+     */
+    boolean isConfirmedBy(byte received[]) {
+        if (received.length != value.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; ++i) {
+            if (((received[i] ^ value[i]) & mask[i]) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get a copy of the mask of changed bits, to add more changes to.
+     */
+    byte[] getMask() {
+        return mask.clone();
+    }
+
+    private final byte value[];
+    private final byte mask[];
+
+}
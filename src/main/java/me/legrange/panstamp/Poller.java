@@ -0,0 +1,203 @@
+package me.legrange.panstamp;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queries registers that devices don't transmit by themselves. Each polled
+ * register has a minimum and maximum interval. The poller starts at the
+ * minimum, waits longer while the value stays the same, and goes back
+ * towards the minimum when the value changes. Every interval is randomly
+ * varied a little so that registers polled at the same rate don't all query
+ * the radio at the same time. No query is sent if the register received a
+ * value recently anyway, or if the device is powered down. Get the poller of
+ * a network with {@link Network#getPoller()}.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public final class Poller {
+
+    /**
+     * Poll a register. The interval starts at the given interval and grows
+     * up to eight times as long for values that don't change.
+     *
+     * @param reg The register to poll.
+     * @param interval The shortest time between queries.
+     * @param unit The unit of the interval.
+     */
+    public void poll(Register reg, long interval, TimeUnit unit) {
+        poll(reg, interval, interval * MAX_SLOWDOWN, unit);
+    }
+
+    /**
+     * Poll a register, replacing the intervals if it is already polled.
+     *
+     * @param reg The register to poll.
+     * @param minInterval The shortest time between queries, used while the
+     * value changes.
+     * @param maxInterval The longest time between queries, used while the
+     * value stays the same.
+     * @param unit The unit of the intervals.
+     */
+    public void poll(Register reg, long minInterval, long maxInterval, TimeUnit unit) {
+        long min = unit.toMillis(minInterval);
+        long max = unit.toMillis(maxInterval);
+        if ((min <= 0) || (max < min)) {
+            throw new IllegalArgumentException(String.format("Invalid poll intervals %d to %d", minInterval, maxInterval));
+        }
+        Poll p = new Poll(reg, min, max);
+        Poll old = polls.put(reg, p);
+        if (old != null) {
+            old.cancel();
+        }
+        // spread the first queries over the first interval
+        p.schedule(random.nextInt((int) Math.min(min, Integer.MAX_VALUE)));
+    }
+
+    /**
+     * Stop polling a register.
+     *
+     * @param reg The register.
+     */
+    public void stop(Register reg) {
+        Poll p = polls.remove(reg);
+        if (p != null) {
+            p.cancel();
+        }
+    }
+
+    /**
+     * Determine if a register is polled.
+     *
+     * @param reg The register.
+     * @return True if the register is polled.
+     */
+    public boolean isPolling(Register reg) {
+        return polls.containsKey(reg);
+    }
+
+    /**
+     * Get the current interval at which a register is polled.
+     *
+     * @param reg The register.
+     * @param unit The unit in which to return the interval.
+     * @return The interval, or 0 if the register is not polled.
+     */
+    public long getInterval(Register reg, TimeUnit unit) {
+        Poll p = polls.get(reg);
+        return (p != null) ? unit.convert(p.interval, TimeUnit.MILLISECONDS) : 0;
+    }
+
+    /**
+     * Get the number of queries sent by the poller.
+     *
+     * @return The number of queries.
+     */
+    public long getQueriesSent() {
+        return sent.get();
+    }
+
+    Poller(ScheduledExecutorService timer) {
+        wheel = new HashedWheel(timer, TICK, WHEEL_SIZE);
+    }
+
+    /**
+     * Stop polling the registers of a device that was removed.
+     */
+    void remove(PanStamp dev) {
+        for (Register reg : polls.keySet()) {
+            if (reg.getDevice() == dev) {
+                stop(reg);
+            }
+        }
+    }
+
+    /**
+     * vary an interval by up to a tenth either way
+     */
+    private long jitter(long interval) {
+        int spread = (int) Math.min(interval / 5, Integer.MAX_VALUE);
+        return (spread > 0) ? interval - spread / 2 + random.nextInt(spread) : interval;
+    }
+
+    private final HashedWheel wheel;
+    private final Map<Register, Poll> polls = new ConcurrentHashMap<>();
+    private final AtomicLong sent = new AtomicLong();
+    private final Random random = new Random();
+    private static final long MAX_SLOWDOWN = 8;
+    private static final long TICK = 50;
+    private static final int WHEEL_SIZE = 512;
+    private static final Logger logger = Logger.getLogger(Poller.class.getName());
+
+    /**
+     * The polling of one register. Only run on the timer thread.
+     */
+    private final class Poll implements Runnable {
+
+        private Poll(Register reg, long min, long max) {
+            this.reg = reg;
+            this.min = min;
+            this.max = max;
+            this.interval = min;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            RegisterState st = reg.getState();
+            if ((st != null) && (st.getSequence() != lastSequence)) {
+                if ((lastValue != null) && !Arrays.equals(lastValue, st.getValue())) {
+                    interval = Math.max(min, interval / 2);
+                } else if (lastValue != null) {
+                    interval = Math.min(max, interval + interval / 2);
+                }
+                lastSequence = st.getSequence();
+                lastValue = st.getValue();
+            }
+            boolean fresh = (st != null) && (System.currentTimeMillis() - st.getTime() < interval / 2);
+            PanStamp dev = reg.getDevice();
+            if (!fresh && dev.isAwake()) {
+                try {
+                    dev.sendQueryMessage(reg.getId());
+                    sent.incrementAndGet();
+                } catch (ModemException ex) {
+                    logger.log(Level.SEVERE, String.format("Could not poll register %d of device %d", reg.getId(), dev.getAddress()), ex);
+                }
+            }
+            schedule(jitter(interval));
+        }
+
+        private synchronized void schedule(long delay) {
+            if (!cancelled) {
+                timeout = wheel.schedule(this, delay);
+            }
+        }
+
+        private synchronized void cancel() {
+            cancelled = true;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+
+        private final Register reg;
+        private final long min;
+        private final long max;
+        private volatile long interval;
+        private long lastSequence = -1;
+        private byte lastValue[];
+        private HashedWheel.Timeout timeout;
+        private volatile boolean cancelled;
+    }
+
+}
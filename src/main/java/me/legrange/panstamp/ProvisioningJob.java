@@ -0,0 +1,552 @@
+package me.legrange.panstamp;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import me.legrange.panstamp.event.AbstractPanStampListener;
+
+/**
+ * Sends a configuration to many devices. Register values are sent to
+ * several devices at the same time, up to a maximum number of values waiting
+ * for confirmation, and each value counts as written once the device
+ * reports it back. Powered-down devices are only written to after they
+ * report that they are awake. Registers whose current value is not known are
+ * queried first, as the configuration is written into the current values,
+ * and a device fails if they don't answer. Registers that already have
+ * their configured value are not sent, so a job that was stopped, or that failed on some
+ * devices, can be started again and only sends what is still missing. Get a
+ * job from {@link Network#createProvisioningJob()}:
+ * <pre>
+ * ProvisioningJob job = nw.createProvisioningJob();
+ * job.setConfig(manufacturerId, productId, new DeviceConfig().setTxInterval(300));
+ * job.start();
+ * job.awaitFinished(10, TimeUnit.MINUTES);
+ * </pre>
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public final class ProvisioningJob {
+
+    /**
+     * The progress of a device.
+     */
+    public enum Status {
+        /** Not started yet. */
+        PENDING,
+        /** Waiting for a powered-down device to wake up. */
+        WAITING,
+        /** Register values are being sent. */
+        RUNNING,
+        /** All register values were confirmed. */
+        DONE,
+        /** The device could not be provisioned. */
+        FAILED
+    }
+
+    /**
+     * Set the configuration of a device. This overrides the configuration of
+     * its product.
+     *
+     * @param address The address of the device.
+     * @param cfg The configuration.
+     * @return This job.
+     */
+    public synchronized ProvisioningJob setConfig(int address, DeviceConfig cfg) {
+        byAddress.put(address, cfg);
+        return this;
+    }
+
+    /**
+     * Set the configuration of all the devices of a product that are in the
+     * network when the job is started.
+     *
+     * @param manufacturerId The manufacturer ID.
+     * @param productId The product ID.
+     * @param cfg The configuration.
+     * @return This job.
+     */
+    public synchronized ProvisioningJob setConfig(int manufacturerId, int productId, DeviceConfig cfg) {
+        byProduct.put(((long) manufacturerId << 32) | (productId & 0xFFFFFFFFL), cfg);
+        return this;
+    }
+
+    /**
+     * Set the maximum number of register values waiting for confirmation.
+     *
+     * @param max The maximum.
+     * @return This job.
+     */
+    public synchronized ProvisioningJob setMaxInFlight(int max) {
+        if (max <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid number of values in flight %d", max));
+        }
+        maxInFlight = max;
+        return this;
+    }
+
+    /**
+     * Add a listener that is told about the progress of the job.
+     *
+     * @param l The listener.
+     */
+    public void addListener(ProvisioningListener l) {
+        if (listeners.add(l)) {
+            nw.getDispatcher().register(l);
+        }
+    }
+
+    /**
+     * Remove a listener.
+     *
+     * @param l The listener.
+     */
+    public void removeListener(ProvisioningListener l) {
+        if (listeners.remove(l)) {
+            nw.getDispatcher().unregister(l);
+        }
+    }
+
+    /**
+     * Start the job, or start it again after it was stopped or finished.
+     * Devices that failed are tried again, and devices that are done are
+     * left alone.
+     */
+    public synchronized void start() {
+        for (Map.Entry<Integer, DeviceConfig> e : byAddress.entrySet()) {
+            PanStamp dev;
+            try {
+                dev = nw.getDevice(e.getKey());
+            } catch (NodeNotFoundException ex) {
+                dev = null;
+            }
+            add(e.getKey(), dev, e.getValue());
+        }
+        for (Map.Entry<Long, DeviceConfig> e : byProduct.entrySet()) {
+            for (PanStamp dev : nw.getDevices((int) (e.getKey() >>> 32), (int) (long) e.getKey())) {
+                if (!byAddress.containsKey(dev.getAddress())) {
+                    add(dev.getAddress(), dev, e.getValue());
+                }
+            }
+        }
+        running = true;
+        schedulePump();
+    }
+
+    /**
+     * Stop the job. No more values are sent, but values already sent are
+     * still confirmed.
+     */
+    public synchronized void stop() {
+        running = false;
+        for (Progress p : devices.values()) {
+            stopWaiting(p);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Get the progress of a device.
+     *
+     * @param address The address of the device.
+     * @return The status, or null if the device is not part of the job.
+     */
+    public synchronized Status getStatus(int address) {
+        Progress p = devices.get(address);
+        return (p != null) ? p.status : null;
+    }
+
+    /**
+     * Get the reason a device failed.
+     *
+     * @param address The address of the device.
+     * @return The error, or null if the device did not fail.
+     */
+    public synchronized Throwable getError(int address) {
+        Progress p = devices.get(address);
+        return (p != null) ? p.error : null;
+    }
+
+    /**
+     * Get the progress of all the devices in the job.
+     *
+     * @return The status of each device by address.
+     */
+    public synchronized Map<Integer, Status> getProgress() {
+        Map<Integer, Status> res = new LinkedHashMap<>();
+        for (Map.Entry<Integer, Progress> e : devices.entrySet()) {
+            res.put(e.getKey(), e.getValue().status);
+        }
+        return res;
+    }
+
+    /**
+     * Determine if all devices are done or failed.
+     *
+     * @return True if the job is finished.
+     */
+    public synchronized boolean isFinished() {
+        for (Progress p : devices.values()) {
+            if ((p.status != Status.DONE) && (p.status != Status.FAILED)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wait for the job to finish, or to be stopped.
+     *
+     * @param time The time to wait.
+     * @param unit The unit of the time.
+     * @return True if the job finished, false if the time ran out or the job
+     * was stopped first.
+     * @throws InterruptedException Thrown if the thread was interrupted.
+     */
+    public synchronized boolean awaitFinished(long time, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(time);
+        while (!isFinished()) {
+            if (!running) {
+                return false;
+            }
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return true;
+    }
+
+    ProvisioningJob(Network nw) {
+        this.nw = nw;
+    }
+
+    private void add(int address, PanStamp dev, DeviceConfig cfg) {
+        Progress p = devices.get(address);
+        if ((p == null) || (p.status == Status.FAILED) || (p.dev != dev)) {
+            if (p != null) {
+                stopWaiting(p);
+            }
+            p = new Progress(dev, cfg);
+            devices.put(address, p);
+            if (dev == null) {
+                p.status = Status.FAILED;
+                p.error = new NodeNotFoundException(String.format("Device %d is not in the network", address));
+            }
+        } else if ((p.status != Status.DONE) && (p.inFlight == 0) && (p.querying == 0)) {
+            // work out what is missing again, as the device may have changed
+            p.todo = null;
+            p.queried = false;
+        }
+    }
+
+    private void schedulePump() {
+        nw.getTimer().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                pump();
+            }
+        });
+    }
+
+    /**
+     * send register values to awake devices until the maximum number is in
+     * flight
+     */
+    private synchronized void pump() {
+        if (running) {
+            for (Progress p : devices.values()) {
+                if (inFlight >= maxInFlight) {
+                    break;
+                }
+                if ((p.status == Status.DONE) || (p.status == Status.FAILED)) {
+                    continue;
+                }
+                if (!p.dev.isAwake()) {
+                    startWaiting(p);
+                    continue;
+                }
+                stopWaiting(p);
+                if (p.todo == null) {
+                    if (p.querying > 0) {
+                        continue;
+                    }
+                    try {
+                        if (!p.queried && query(p)) {
+                            p.status = Status.RUNNING;
+                            continue;
+                        }
+                        p.todo = new ArrayDeque<>(p.cfg.resolve(p.dev).entrySet());
+                        p.total = p.done + p.todo.size();
+                    } catch (NetworkException | RuntimeException ex) {
+                        failed(p, ex);
+                        continue;
+                    }
+                }
+                p.status = Status.RUNNING;
+                while ((inFlight < maxInFlight) && !p.todo.isEmpty()) {
+                    Map.Entry<Register, byte[]> w = p.todo.poll();
+                    try {
+                        ResultFuture<byte[]> f = w.getKey().send(w.getValue());
+                        inFlight++;
+                        p.inFlight++;
+                        f.whenDone(new Written(p, w, f));
+                    } catch (NetworkException ex) {
+                        failed(p, ex);
+                        break;
+                    }
+                }
+                if ((p.status == Status.RUNNING) && p.todo.isEmpty() && (p.inFlight == 0)) {
+                    provisioned(p);
+                }
+            }
+        }
+        if (isFinished()) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * a register value sent to a device was confirmed or failed
+     */
+    private synchronized void written(Progress p, Map.Entry<Register, byte[]> w, ResultFuture<byte[]> f) {
+        inFlight--;
+        p.inFlight--;
+        if ((p.status != Status.DONE) && (p.status != Status.FAILED)) {
+            try {
+                f.get();
+                p.done++;
+                fireRegisterConfirmed(p);
+                if (p.todo.isEmpty() && (p.inFlight == 0)) {
+                    provisioned(p);
+                }
+            } catch (ExecutionException ex) {
+                if (p.dev.isAwake()) {
+                    failed(p, ex.getCause());
+                } else {
+                    // the device went to sleep, so send it again when it wakes up
+                    p.todo.addFirst(w);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        pump();
+    }
+
+    /**
+     * query the registers with settings whose current value is not known
+     *
+     * @return True if queries were sent, or held for the device.
+     */
+    private boolean query(Progress p) throws NetworkException {
+        p.queried = true;
+        for (Register reg : p.cfg.unknownRegisters(p.dev)) {
+            ResultFuture<byte[]> f = reg.startQuery();
+            p.querying++;
+            f.whenDone(new Answered(p, reg, f));
+        }
+        return p.querying > 0;
+    }
+
+    /**
+     * a register queried for its current value answered or failed
+     */
+    private synchronized void answered(Progress p, Register reg, ResultFuture<byte[]> f) {
+        p.querying--;
+        if ((p.status != Status.DONE) && (p.status != Status.FAILED)) {
+            try {
+                f.get();
+            } catch (ExecutionException ex) {
+                if (p.dev.isAwake()) {
+                    failed(p, new MoteException(String.format("Could not read register %d of device %d, current value unknown", reg.getId(), p.dev.getAddress()), ex.getCause()));
+                } else {
+                    // the device went to sleep, so ask again when it wakes up
+                    p.queried = false;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        pump();
+    }
+
+    private void provisioned(Progress p) {
+        p.status = Status.DONE;
+        p.todo = null;
+        stopWaiting(p);
+        fireDeviceProvisioned(p);
+    }
+
+    private void failed(Progress p, Throwable error) {
+        p.status = Status.FAILED;
+        p.error = error;
+        p.todo = null;
+        stopWaiting(p);
+        fireDeviceFailed(p, error);
+    }
+
+    private void startWaiting(final Progress p) {
+        p.status = Status.WAITING;
+        if (p.waker == null) {
+            p.waker = new AbstractPanStampListener() {
+
+                @Override
+                public void syncStateChange(PanStamp dev, int syncState) {
+                    if (dev.isAwake()) {
+                        schedulePump();
+                    }
+                }
+            };
+            p.dev.addListener(p.waker);
+        }
+    }
+
+    private void stopWaiting(Progress p) {
+        if (p.waker != null) {
+            p.dev.removeListener(p.waker);
+            p.waker = null;
+        }
+    }
+
+    private void fireRegisterConfirmed(final Progress p) {
+        final int done = p.done;
+        final int total = p.total;
+        for (final ProvisioningListener l : listeners) {
+            dispatch(l, new Runnable() {
+
+                @Override
+                public void run() {
+                    l.registerConfirmed(ProvisioningJob.this, p.dev, done, total);
+                }
+            });
+        }
+    }
+
+    private void fireDeviceProvisioned(final Progress p) {
+        for (final ProvisioningListener l : listeners) {
+            dispatch(l, new Runnable() {
+
+                @Override
+                public void run() {
+                    l.deviceProvisioned(ProvisioningJob.this, p.dev);
+                }
+            });
+        }
+    }
+
+    private void fireDeviceFailed(final Progress p, final Throwable error) {
+        for (final ProvisioningListener l : listeners) {
+            dispatch(l, new Runnable() {
+
+                @Override
+                public void run() {
+                    l.deviceFailed(ProvisioningJob.this, p.dev, error);
+                }
+            });
+        }
+    }
+
+    private void dispatch(ProvisioningListener l, Runnable task) {
+        if (!nw.getDispatcher().dispatch(l, null, task)) {
+            removeListener(l);
+        }
+    }
+
+    private final Network nw;
+    private final Map<Integer, DeviceConfig> byAddress = new LinkedHashMap<>();
+    private final Map<Long, DeviceConfig> byProduct = new LinkedHashMap<>();
+    private final Map<Integer, Progress> devices = new LinkedHashMap<>();
+    private final Set<ProvisioningListener> listeners = new CopyOnWriteArraySet<>();
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private int inFlight;
+    private boolean running;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 8;
+
+    /**
+     * The progress of one device.
+     */
+    private static final class Progress {
+
+        private Progress(PanStamp dev, DeviceConfig cfg) {
+            this.dev = dev;
+            this.cfg = cfg;
+        }
+
+        private final PanStamp dev;
+        private final DeviceConfig cfg;
+        private Status status = Status.PENDING;
+        private Throwable error;
+        private Deque<Map.Entry<Register, byte[]>> todo;
+        private int done;
+        private int total;
+        private int inFlight;
+        private boolean queried;
+        private int querying;
+        private AbstractPanStampListener waker;
+    }
+
+    /**
+     * Passes a finished write back to the job. It runs on the timer, as the
+     * future may be completed while a register lock is held.
+     */
+    private final class Written implements Runnable {
+
+        private Written(Progress p, Map.Entry<Register, byte[]> w, ResultFuture<byte[]> f) {
+            this.p = p;
+            this.w = w;
+            this.f = f;
+        }
+
+        @Override
+        public void run() {
+            nw.getTimer().execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    written(p, w, f);
+                }
+            });
+        }
+
+        private final Progress p;
+        private final Map.Entry<Register, byte[]> w;
+        private final ResultFuture<byte[]> f;
+    }
+
+    /**
+     * Passes a finished query back to the job, on the timer like
+     * {@link Written}.
+     */
+    private final class Answered implements Runnable {
+
+        private Answered(Progress p, Register reg, ResultFuture<byte[]> f) {
+            this.p = p;
+            this.reg = reg;
+            this.f = f;
+        }
+
+        @Override
+        public void run() {
+            nw.getTimer().execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    answered(p, reg, f);
+                }
+            });
+        }
+
+        private final Progress p;
+        private final Register reg;
+        private final ResultFuture<byte[]> f;
+    }
+
+}
@@ -0,0 +1,39 @@
+package me.legrange.panstamp;
+
+/**
+ * A listener that is told about the progress of a {@link ProvisioningJob}.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public interface ProvisioningListener {
+
+    /**
+     * Called when a device confirmed a register value.
+     *
+     * @param job The job.
+     * @param dev The device.
+     * @param done The number of registers confirmed by the device.
+     * @param total The number of registers to send to the device.
+     */
+    void registerConfirmed(ProvisioningJob job, PanStamp dev, int done, int total);
+
+    /**
+     * Called when a device confirmed its whole configuration.
+     *
+     * @param job The job.
+     * @param dev The device.
+     */
+    void deviceProvisioned(ProvisioningJob job, PanStamp dev);
+
+    /**
+     * Called when a device could not be provisioned. Starting the job again
+     * retries it.
+     *
+     * @param job The job.
+     * @param dev The device.
+     * @param error The reason.
+     */
+    void deviceFailed(ProvisioningJob job, PanStamp dev, Throwable error);
+
+}
@@ -0,0 +1,367 @@
+package me.legrange.panstamp;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps output endpoints and parameters at target values. Instead of
+ * setting a value over and over, declare the value it should have, and the
+ * reconciler compares it with the values the devices report. All the targets
+ * on a register are written into one copy of the reported value, and a
+ * command is only sent if that differs from the reported value (drift). A
+ * single command then sets all the targets on the register, leaving the rest
+ * of the value as the device reported it. If no value of the register is
+ * known yet, it is queried first. If the device does not report the new
+ * value, the command is repeated at most once per retry interval. Get the
+ * reconciler of a network with {@link Network#getReconciler()}.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public final class Reconciler {
+
+    /**
+     * Set the target value of an endpoint, in the endpoint's current unit.
+     *
+     * @param <T> The type of the endpoint value.
+     * @param ep The endpoint.
+     * @param value The target value.
+     * @throws NetworkException Thrown if a command could not be sent.
+     */
+    public <T> void setTarget(Endpoint<T> ep, T value) throws NetworkException {
+        if (!(ep instanceof AbstractEndpoint)) {
+            throw new IllegalArgumentException(String.format("Endpoint '%s' has no register to reconcile", ep.getName()));
+        }
+        AbstractEndpoint<T> aep = (AbstractEndpoint<T>) ep;
+        Targets t = targetsFor(ep.getRegister());
+        synchronized (t) {
+            t.targets.put(aep, new EndpointTarget<>(aep, aep.currentUnit(), value));
+        }
+        reconcile(t);
+    }
+
+    /**
+     * Set the target value of a parameter.
+     *
+     * @param <T> The type of the parameter value.
+     * @param par The parameter.
+     * @param value The target value.
+     * @throws NetworkException Thrown if a command could not be sent.
+     */
+    public <T> void setTarget(Parameter<T> par, T value) throws NetworkException {
+        if (!(par instanceof AbstractParameter)) {
+            throw new IllegalArgumentException(String.format("Parameter '%s' has no register to reconcile", par.getName()));
+        }
+        AbstractParameter<T> apar = (AbstractParameter<T>) par;
+        // fail on a value that can't be written now, not on every update
+        apar.write(value, new byte[apar.end()]);
+        Targets t = targetsFor(par.getRegister());
+        synchronized (t) {
+            t.targets.put(apar, new ParameterTarget<>(apar, value));
+        }
+        reconcile(t);
+    }
+
+    /**
+     * Remove the target value of an endpoint.
+     *
+     * @param ep The endpoint.
+     */
+    public void clearTarget(Endpoint<?> ep) {
+        Targets t = targets.get(ep.getRegister());
+        if (t != null) {
+            synchronized (t) {
+                t.targets.remove(ep);
+                removeIfEmpty(t);
+            }
+        }
+    }
+
+    /**
+     * Remove the target value of a parameter.
+     *
+     * @param par The parameter.
+     */
+    public void clearTarget(Parameter<?> par) {
+        Targets t = targets.get(par.getRegister());
+        if (t != null) {
+            synchronized (t) {
+                t.targets.remove(par);
+                removeIfEmpty(t);
+            }
+        }
+    }
+
+    /**
+     * Determine if the reported value of a register matches all the targets
+     * set on it.
+     *
+     * @param reg The register.
+     * @return True if there is no drift.
+     */
+    public boolean isInSync(Register reg) {
+        Targets t = targets.get(reg);
+        if (t == null) {
+            return true;
+        }
+        synchronized (t) {
+            try {
+                return !t.hasDrift();
+            } catch (NetworkException ex) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Set the minimum time between commands sent to correct the same
+     * register.
+     *
+     * @param time The time.
+     * @param unit The unit of the time.
+     */
+    public void setRetryInterval(long time, TimeUnit unit) {
+        if (time <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid retry interval %d", time));
+        }
+        retryInterval = unit.toMillis(time);
+    }
+
+    /**
+     * Get the number of commands sent to correct drift.
+     *
+     * @return The number of commands.
+     */
+    public long getCommandsSent() {
+        return sent.get();
+    }
+
+    Reconciler(ScheduledExecutorService timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * A register received a value, so check it for drift.
+     */
+    void registerUpdated(Register reg) {
+        if (targets.isEmpty()) {
+            return;
+        }
+        Targets t = targets.get(reg);
+        if (t != null) {
+            try {
+                reconcile(t);
+            } catch (NetworkException ex) {
+                logger.log(Level.SEVERE, String.format("Could not reconcile register %d of device %d", reg.getId(), reg.getDevice().getAddress()), ex);
+            }
+        }
+    }
+
+    private Targets targetsFor(Register reg) {
+        Targets t = targets.get(reg);
+        if (t == null) {
+            t = new Targets(reg);
+            Targets had = targets.putIfAbsent(reg, t);
+            if (had != null) {
+                t = had;
+            }
+        }
+        return t;
+    }
+
+    private void removeIfEmpty(Targets t) {
+        if (t.targets.isEmpty()) {
+            t.cancel();
+            targets.remove(t.reg, t);
+        }
+    }
+
+    /**
+     * send a command if the register drifted from its targets, and the last
+     * command was sent long enough ago, or query it if its value is not known
+     */
+    private void reconcile(Targets t) throws NetworkException {
+        synchronized (t) {
+            if (!t.hasDrift()) {
+                t.cancel();
+                return;
+            }
+            if (t.reg.currentValue() == null) {
+                // the targets only replace parts of the value, so get it first
+                t.reg.startQuery();
+                t.schedule(retryInterval);
+                return;
+            }
+            long wait = t.lastSent + retryInterval - System.currentTimeMillis();
+            if (wait > 0) {
+                t.schedule(wait);
+                return;
+            }
+            t.lastSent = System.currentTimeMillis();
+            t.schedule(retryInterval);
+            t.send();
+        }
+    }
+
+    private final ScheduledExecutorService timer;
+    private final ConcurrentMap<Register, Targets> targets = new ConcurrentHashMap<>();
+    private final AtomicLong sent = new AtomicLong();
+    private volatile long retryInterval = DEFAULT_RETRY_INTERVAL;
+    private static final long DEFAULT_RETRY_INTERVAL = 5000;
+    private static final Logger logger = Logger.getLogger(Reconciler.class.getName());
+
+    /**
+     * The targets on one register.
+     */
+    private final class Targets {
+
+        private Targets(Register reg) {
+            this.reg = reg;
+        }
+
+        /**
+         * write all the targets into a copy of the register value
+         */
+        private byte[] image(byte cur[]) throws NetworkException {
+            byte want[] = cur.clone();
+            for (Target target : targets.values()) {
+                if (want.length < target.end()) {
+                    want = Arrays.copyOf(want, target.end());
+                }
+                target.apply(want);
+            }
+            return want;
+        }
+
+        private boolean hasDrift() throws NetworkException {
+            byte cur[] = reg.currentValue();
+            return (cur == null) || !Arrays.equals(cur, image(cur));
+        }
+
+        /**
+         * send one command with all the targets
+         */
+        private void send() throws NetworkException {
+            RegisterEdit edit = reg.edit();
+            for (Target target : targets.values()) {
+                target.addTo(edit);
+            }
+            edit.commit();
+            sent.incrementAndGet();
+        }
+
+        private void schedule(long delay) {
+            if ((retry != null) && !retry.isDone()) {
+                return;
+            }
+            retry = timer.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    synchronized (Targets.this) {
+                        retry = null;
+                    }
+                    registerUpdated(reg);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void cancel() {
+            if (retry != null) {
+                retry.cancel(false);
+                retry = null;
+            }
+        }
+
+        private final Register reg;
+        // the targets by endpoint or parameter
+        private final Map<Object, Target> targets = new LinkedHashMap<>();
+        private long lastSent;
+        private ScheduledFuture<?> retry;
+    }
+
+    /**
+     * A target value written into the register value.
+     */
+    private abstract static class Target {
+
+        abstract void apply(byte bytes[]) throws NetworkException;
+
+        abstract void addTo(RegisterEdit edit);
+
+        /**
+         * the position after the last byte of the target
+         */
+        abstract int end();
+    }
+
+    /**
+     * The target value of an endpoint.
+     */
+    private static final class EndpointTarget<T> extends Target {
+
+        private EndpointTarget(AbstractEndpoint<T> ep, int unit, T value) {
+            this.ep = ep;
+            this.unit = unit;
+            this.value = value;
+        }
+
+        @Override
+        void apply(byte bytes[]) {
+            ep.write(unit, value, bytes);
+        }
+
+        @Override
+        void addTo(RegisterEdit edit) {
+            edit.set(ep, unit, value);
+        }
+
+        @Override
+        int end() {
+            return ep.codec.getBytePos() + Math.max(ep.codec.getSize(), 1);
+        }
+
+        private final AbstractEndpoint<T> ep;
+        private final int unit;
+        private final T value;
+    }
+
+    /**
+     * The target value of a parameter.
+     */
+    private static final class ParameterTarget<T> extends Target {
+
+        private ParameterTarget(AbstractParameter<T> par, T value) {
+            this.par = par;
+            this.value = value;
+        }
+
+        @Override
+        void apply(byte bytes[]) throws NetworkException {
+            par.write(value, bytes);
+        }
+
+        @Override
+        void addTo(RegisterEdit edit) {
+            edit.set(par, value);
+        }
+
+        @Override
+        int end() {
+            return par.end();
+        }
+
+        private final AbstractParameter<T> par;
+        private final T value;
+    }
+
+}
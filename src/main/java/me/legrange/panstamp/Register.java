@@ -1,13 +1,19 @@
 package me.legrange.panstamp;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.ExecutorService;
-import me.legrange.panstamp.definition.DeviceDefinition;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import me.legrange.panstamp.definition.EndpointDefinition;
 import me.legrange.panstamp.definition.ParameterDefinition;
 
@@ -33,13 +39,8 @@ public final class Register {
      * @return The name of the register.
      */
     public String getName() {
-        DeviceDefinition def = dev.getDefinition();
-        if (def != null) {
-            if (def.hasRegister(id)) {
-                return def.getRegister(id).getName();
-            }
-        }
-        return name;
+        RegisterLayout lay = layout;
+        return (lay != null) ? lay.getName() : "";
     }
     
     /** Get the device to which this register belongs. 
@@ -57,7 +58,12 @@ public final class Register {
      */
     public List<Endpoint> getEndpoints() {
         List<Endpoint> all = new ArrayList<>();
-        all.addAll(endpoints.values());
+        RegisterLayout lay = layout;
+        if (lay != null) {
+            for (int i = 0; i < lay.getEndpointCount(); ++i) {
+                all.add(endpoint(lay, i));
+            }
+        }
         return all;
     }
 
@@ -67,7 +73,41 @@ public final class Register {
      * @param l listener to add
      */
     public void addListener(RegisterListener l) {
-        listeners.add(l);
+        addListener(l, null);
+    }
+
+    /**
+     * Add a listener to receive register updates, filtering the updates it
+     * receives. Registers compare raw bytes, so only change-only filters are
+     * supported; a listener added with one is only notified when the register
+     * bytes differ from the previous value received.
+     *
+     * @param l listener to add
+     * @param filter The filter to apply, or null to receive all updates.
+     * @since 2.2
+     */
+    public void addListener(RegisterListener l, NotificationFilter filter) {
+        if ((filter != null) && !filter.isChangesOnly()) {
+            throw new IllegalArgumentException(String.format("Register listeners only support change-only filters, not %s", filter));
+        }
+        boolean added;
+        synchronized (this) {
+            if (filter != null) {
+                if (changesOnly.isEmpty()) {
+                    changesOnly = new CopyOnWriteArraySet<>();
+                }
+                changesOnly.add(l);
+            } else {
+                changesOnly.remove(l);
+            }
+            if (listeners.isEmpty()) {
+                listeners = new CopyOnWriteArraySet<>();
+            }
+            added = listeners.add(l);
+        }
+        if (added) {
+            getDispatcher().register(l);
+        }
     }
 
 
@@ -77,42 +117,310 @@ public final class Register {
      * @param l listener to remove
      */
     public void removeListener(RegisterListener l) {
-        listeners.remove(l);
+        if (listeners.remove(l)) {
+            changesOnly.remove(l);
+            getDispatcher().unregister(l);
+        }
     }
 
     /**
-     * set the register value and send to remote node
+     * add a listener that is told which bits of the register flipped
+     *
+     * @param l listener to add
+     * @since 2.2
+     */
+    public void addBitChangeListener(BitChangeListener l) {
+        boolean added;
+        synchronized (this) {
+            if (bitListeners.isEmpty()) {
+                bitListeners = new CopyOnWriteArraySet<>();
+            }
+            if (queuedBits == null) {
+                queuedBits = new ConcurrentHashMap<>();
+            }
+            added = bitListeners.add(l);
+        }
+        if (added) {
+            getDispatcher().register(l);
+        }
+    }
+
+    /**
+     * remove a bit change listener
+     *
+     * @param l listener to remove
+     * @since 2.2
+     */
+    public void removeBitChangeListener(BitChangeListener l) {
+        if (bitListeners.remove(l)) {
+            queuedBits.remove(l);
+            getDispatcher().unregister(l);
+        }
+    }
+
+    /**
+     * set the register value and send to remote node. The returned future
+     * completes when the device confirms the value with a status message. If
+     * the device does not confirm it in time the value is sent again,
+     * waiting twice as long each time, and the future fails once the retries
+     * run out. Until then the value is available from
+     * {@link #getPendingValue()}.
      *
      * @param value the new value
+     * @return The future confirmed value.
      * @throws me.legrange.panstamp.NetworkException Thrown if there is a
      * problem updating the register
+     * @see Network#setCommandTimeout(long, TimeUnit)
+     * @see Network#setCommandRetries(int)
      */
-    public void setValue(byte value[]) throws NetworkException {
-        try {
-            if (dev.getNetwork().isOpen()) {
-                dev.sendCommandMessage(id, value);
-            } else {
-                this.value = value;
+    public Future<byte[]> setValue(byte value[]) throws NetworkException {
+        return send(value);
+    }
+
+    /**
+     * Get the value set on the register that the device has not confirmed
+     * yet, so that it can be read back before the device confirms it.
+     *
+     * @return The value, or null if there is no unconfirmed value.
+     * @since 2.2
+     */
+    public byte[] getPendingValue() {
+        PendingValue p = pending.get();
+        return (p != null) ? p.on(currentValue()) : null;
+    }
+
+    /**
+     * Query the device for the register value. The returned future completes
+     * with the value in the next status message for this register. If the
+     * device does not answer in time the query is sent again, waiting twice
+     * as long each time, and the future fails once the retries run out.
+     * Queries for a powered down device are held until it wakes up, and the
+     * time only starts once the query is sent. Queries for the register made
+     * while one is waiting for an answer share it, so only one query is
+     * sent.
+     *
+     * @return The future register value.
+     * @see Network#setQueryTimeout(long, TimeUnit)
+     * @see Network#setQueryRetries(int)
+     * @since 2.2
+     */
+    public Future<byte[]> query() {
+        return startQuery();
+    }
+
+    /**
+     * Query the device for the register value, or join the query waiting for
+     * an answer.
+     *
+     * @return The future register value.
+     */
+    ResultFuture<byte[]> startQuery() {
+        while (true) {
+            RegisterQuery q;
+            boolean fresh = false;
+            synchronized (queryLock) {
+                q = query;
+                if (q == null) {
+                    Network nw = dev.getNetwork();
+                    q = new RegisterQuery(this, nw.getQueryTimeout(), nw.getQueryRetries());
+                    query = q;
+                    fresh = true;
+                }
+            }
+            ResultFuture<byte[]> f = q.join();
+            if (f != null) {
+                if (fresh) {
+                    q.start();
+                }
+                return f;
             }
-            fireValueSet(value);
-        } catch (ModemException e) {
-            throw new MoteException(e.getMessage(), e);
+            queryDone(q);
         }
     }
 
+    /**
+     * Start an edit that sets several endpoints of this register in one
+     * update.
+     *
+     * @return The new edit.
+     * @since 2.2
+     */
+    public RegisterEdit edit() {
+        return new RegisterEdit(this);
+    }
+
        /**
      * get the value of the register
      *
-     * @return The value of the register
+     * @return A copy of the value of the register
      * @throws me.legrange.panstamp.NoValueException Thrown if the register value is requested but no value is available.
      */
     public byte[] getValue() throws NoValueException { 
-        synchronized (this) {
-            if (value == null) {
-                throw new NoValueException(String.format("No value received for register %d", id));
+        return readValue().clone();
+    }
+
+    /**
+     * Get the current value without copying it. The array must not be
+     * modified.
+     *
+     * @return The value.
+     * @throws NoValueException Thrown if no value is known.
+     */
+    byte[] readValue() throws NoValueException {
+        RegisterState st = state;
+        if (st == null) {
+            throw new NoValueException(String.format("No value received for register %d", id));
+        }
+        return st.getValue();
+    }
+
+    /**
+     * Get the current value without copying it or checking that it is known.
+     * The array must not be modified.
+     *
+     * @return The value, or null if no value is known.
+     */
+    byte[] currentValue() {
+        RegisterState st = state;
+        return (st != null) ? st.getValue() : null;
+    }
+
+    /**
+     * Get the value set by the application that was not yet confirmed by the
+     * device.
+     *
+     * @return The value, or null if there is none.
+     */
+    PendingValue pendingValue() {
+        return pending.get();
+    }
+
+    /**
+     * Replace the pending value if it is still the expected one.
+     *
+     * @return True if the value was replaced.
+     */
+    boolean replacePendingValue(PendingValue expect, PendingValue value) {
+        return pending.compareAndSet(expect, value);
+    }
+
+    /**
+     * Drop the pending value if the device never confirmed it.
+     */
+    void pendingFailed(PendingValue value) {
+        pending.compareAndSet(value, null);
+    }
+
+    /**
+     * Send the pending value to the device. Sends are serialized and always
+     * send the latest pending value, so the device ends up with the last
+     * committed value even if commits race to transmit.
+     *
+     * @return The future completed when the device confirms the value.
+     */
+    ResultFuture<byte[]> transmit() throws NetworkException {
+        synchronized (sendLock) {
+            PendingValue p = pending.get();
+            if (p == null) {
+                // a status message confirmed the value before we got here
+                ResultFuture<byte[]> f = new ResultFuture<>();
+                f.set(currentValue());
+                return f;
+            }
+            if (command == null) {
+                command = new RegisterCommand(this);
+            }
+            ResultFuture<byte[]> f = command.join();
+            if (p == sent) {
+                return f;
             }
+            byte value[] = p.on(currentValue());
+            try {
+                Network nw = dev.getNetwork();
+                if (nw.isOpen()) {
+                    boolean now;
+                    try {
+                        now = dev.sendCommandMessage(id, value);
+                    } catch (NetworkException ex) {
+                        // nothing was sent, so nothing will confirm the value
+                        pending.compareAndSet(p, null);
+                        command.failed(ex);
+                        throw ex;
+                    }
+                    sent = p;
+                    command.sent(p, nw.getCommandTimeout(), nw.getCommandRetries(), now);
+                } else {
+                    update(value, System.currentTimeMillis());
+                    pending.compareAndSet(p, null);
+                    command.completed(value);
+                }
+                fireValueSet(value.clone());
+                dev.valueSet(this);
+            } catch (ModemException e) {
+                throw new MoteException(e.getMessage(), e);
+            }
+            return f;
+        }
+    }
+
+    /**
+     * Make a value the pending value and send it.
+     *
+     * @return The future completed when the device confirms the value.
+     */
+    ResultFuture<byte[]> send(byte value[]) throws NetworkException {
+        pending.set(PendingValue.of(value.clone()));
+        return transmit();
+    }
+
+    /**
+     * Send a value again if it is still the pending value, rebased on the
+     * latest value received.
+     */
+    void resend(PendingValue value) {
+        synchronized (sendLock) {
+            if (pending.get() != value) {
+                return;
+            }
+            try {
+                if (!dev.sendCommandMessage(id, value.on(currentValue()))) {
+                    return; // timed once the mailbox sends it
+                }
+            } catch (NetworkException ex) {
+                // counts as an attempt, so it is retried or expires
+                logger.log(Level.WARNING, String.format("Could not resend register %d of device %d", id, dev.getAddress()), ex);
+            }
+            command.transmitted();
+        }
+    }
+
+    /**
+     * A command held for the powered down device was sent.
+     */
+    void commandTransmitted() {
+        RegisterCommand cmd = command;
+        if (cmd != null) {
+            cmd.transmitted();
         }
-        return value;
+    }
+
+    /**
+     * Get the size of the register value in bytes as defined.
+     *
+     * @return The size, or 0 if the register is not defined.
+     */
+    int getByteSize() {
+        RegisterLayout lay = layout;
+        return (lay != null) ? lay.getByteSize() : 0;
+    }
+
+    /**
+     * Get the current versioned state.
+     *
+     * @return The state, or null if no value is known.
+     */
+    RegisterState getState() {
+        return state;
     }
 
     /**
@@ -120,9 +428,7 @@ public final class Register {
      * @return True if the register's value is known.
      */
     public boolean hasValue() {
-        synchronized (this) {
-            return value != null;
-        }
+        return state != null;
     }
 
     /**
@@ -133,11 +439,12 @@ public final class Register {
      * @throws me.legrange.panstamp.EndpointNotFoundException Thrown if an endpoint with that name could not be found.
      */
     public Endpoint getEndpoint(String name) throws EndpointNotFoundException {
-        Endpoint ep = endpoints.get(name);
-        if (ep == null) {
+        RegisterLayout lay = layout;
+        int idx = (lay != null) ? lay.indexOf(name) : -1;
+        if (idx < 0) {
             throw new EndpointNotFoundException(String.format("Could not find endpoint '%s' in register %d", name, id));
         }
-        return ep;
+        return endpoint(lay, idx);
     }
 
 
@@ -150,7 +457,8 @@ public final class Register {
      * experienced
      */
     public boolean hasEndpoint(String name) throws NetworkException {
-        return endpoints.get(name) != null;
+        RegisterLayout lay = layout;
+        return (lay != null) && (lay.indexOf(name) >= 0);
     }
     
     /** 
@@ -159,7 +467,7 @@ public final class Register {
      */
     public List<Parameter> getParameters() {
         List<Parameter> all = new ArrayList<>();
-        all.addAll(parameters.values());
+        all.addAll(parameters());
         return all;
     }
 
@@ -173,136 +481,399 @@ public final class Register {
         return (id <= StandardRegister.MAX.getId());
     }
 
+    /**
+     * Tell the stream subscribers of the endpoints that no more values will
+     * be published.
+     */
+    void completeStreams() {
+        for (AbstractEndpoint<?> ep : loadedEndpoints(endpoints)) {
+            ep.completeStreams();
+        }
+    }
+
     void destroy() {
-        for (AbstractEndpoint ep : endpoints.values()) {
+        for (AbstractEndpoint<?> ep : loadedEndpoints(endpoints)) {
             ep.destroy();
         }
-        listeners.clear();
-        endpoints.clear();
-        parameters.clear();
+        for (RegisterListener l : listeners) {
+            removeListener(l);
+        }
+        for (BitChangeListener l : bitListeners) {
+            removeBitChangeListener(l);
+        }
+        synchronized (this) {
+            endpoints = null;
+            parameters = null;
+        }
     }
 
     /**
      * update the abstracted register value and notify listeners
      */
     void valueReceived(final byte value[]) {
-        synchronized (this) {
-            this.value = value;
+        long time = System.currentTimeMillis();
+        RegisterState old = state;
+        RegisterState st = update(value.clone(), time);
+        byte diff[] = diff(old, value);
+        boolean changed = (diff == null) || !isZero(diff);
+        // a value that does not confirm the pending value leaves it pending,
+        // and the bits it did not change follow the device from now on
+        PendingValue expect = pending.get();
+        if ((expect != null) && expect.isConfirmedBy(value)) {
+            pending.compareAndSet(expect, null);
+        }
+        RegisterCommand cmd = command;
+        if (cmd != null) {
+            cmd.received(value);
+        }
+        RegisterQuery q;
+        synchronized (queryLock) {
+            q = query;
+            query = null;
+        }
+        if (q != null) {
+            q.answered(value);
         }
-        fireValueReceived(value);
+        Network nw = dev.getNetwork();
+        nw.getRuleEngine().evaluate(this, value, time);
+        RegisterLayout lay = layout;
+        List<EndpointUpdate> updates = null;
+        if ((lay != null) && nw.hasEndpointBatchListeners()) {
+            // batch listeners need every endpoint decoded in its default unit,
+            // while the endpoints that exist decode for their own listeners
+            AtomicReferenceArray<AbstractEndpoint<?>> eps = endpoints;
+            updates = new ArrayList<>(lay.getEndpointCount());
+            for (int i = 0; i < lay.getEndpointCount(); ++i) {
+                AbstractEndpoint<?> ep = ((eps != null) && (i < eps.length())) ? eps.get(i) : null;
+                if ((ep != null) && (ep.epDef == lay.getEndpoint(i))) {
+                    ep.valueReceived(value, false, ep.codec.changed(diff));
+                }
+                String name = lay.getEndpoint(i).getName();
+                try {
+                    updates.add(new EndpointUpdate(dev.getAddress(), id, name, lay.getDefaultUnit(i), lay.decode(i, value), time));
+                } catch (RuntimeException ex) {
+                    logger.log(Level.SEVERE, String.format("Could not decode value for endpoint '%s'", name), ex);
+                }
+            }
+        } else {
+            for (AbstractEndpoint<?> ep : loadedEndpoints(endpoints)) {
+                ep.valueReceived(value, false, ep.codec.changed(diff));
+            }
+        }
+        nw.registerUpdated(this, st, updates);
+        fireValueReceived(value, changed);
+        if (changed && !bitListeners.isEmpty()) {
+            fireBitsChanged(diff, value);
+        }
+        nw.getReconciler().registerUpdated(this);
+        for (VirtualEndpoint dep : dependents) {
+            dep.inputUpdated();
+        }
+        dev.valueReceived(this, value);
+    }
 
+    /**
+     * A query held for the powered down device was sent.
+     */
+    void queryTransmitted() {
+        RegisterQuery q;
+        synchronized (queryLock) {
+            q = query;
+        }
+        if (q != null) {
+            q.transmitted();
+        }
     }
 
-    void addEndpoint(EndpointDefinition def) {
-        AbstractEndpoint ep = makeEndpoint(def);
-        endpoints.put(def.getName(), ep);
-        fireEndpointAdded(ep);
+    /**
+     * A query finished without an answer.
+     */
+    void queryDone(RegisterQuery q) {
+        synchronized (queryLock) {
+            if (query == q) {
+                query = null;
+            }
+        }
     }
 
-    void addParameter(ParameterDefinition def) {
-        AbstractParameter par = makeParameter(def);
-        parameters.put(def.getName(), par);
-        fireParameterAdded(par);
+    /**
+     * Add a virtual endpoint to calculate when the register receives a value.
+     */
+    synchronized void addDependent(VirtualEndpoint dep) {
+        if (dependents.isEmpty()) {
+            dependents = new CopyOnWriteArraySet<>();
+        }
+        dependents.add(dep);
+    }
+
+    synchronized void removeDependent(VirtualEndpoint dep) {
+        dependents.remove(dep);
+    }
+
+    /**
+     * Set the layout of the register, once the definition of the device is
+     * known. Endpoints and parameters are created as they are needed, unless
+     * there are listeners to tell about them.
+     */
+    void setLayout(RegisterLayout layout) {
+        AtomicReferenceArray<AbstractEndpoint<?>> old;
+        synchronized (this) {
+            old = endpoints;
+            this.layout = layout;
+            endpoints = null;
+            parameters = null;
+        }
+        for (AbstractEndpoint<?> ep : loadedEndpoints(old)) {
+            ep.destroy();
+        }
+        dev.getNetwork().getRuleEngine().layoutChanged(this);
+        if (!listeners.isEmpty()) {
+            for (Endpoint<?> ep : getEndpoints()) {
+                fireEndpointAdded(ep);
+            }
+            for (Parameter<?> par : parameters()) {
+                fireParameterAdded(par);
+            }
+        }
     }
 
     /**
-     * Get the executor service used to service library threads
+     * Get the dispatcher used to deliver events to listeners
      */
-    ExecutorService getPool() {
-        return dev.getPool();
+    Dispatcher getDispatcher() {
+        return dev.getDispatcher();
     }
 
     /**
      * create a new register for the given dev and register address
+     *
+     * @param layout The layout of the register, or null if it is not known.
      */
-    Register(PanStamp mote, int id) {
+    Register(PanStamp mote, int id, RegisterLayout layout) {
         this.dev = mote;
         this.id = id;
+        this.layout = layout;
     }
 
-    Register(PanStamp mote, StandardRegister reg) throws NoSuchUnitException {
-        this(mote, reg.getId());
-        name = reg.getName();
-        for (EndpointDefinition sep : reg.getEndpoints()) {
-            addEndpoint(sep);
+    /**
+     * get the endpoint at the given index of the layout, creating it if needed
+     */
+    private AbstractEndpoint<?> endpoint(RegisterLayout lay, int idx) {
+        AtomicReferenceArray<AbstractEndpoint<?>> eps = endpoints;
+        if (eps == null) {
+            synchronized (this) {
+                if (lay != layout) {
+                    // the layout was replaced while we looked it up
+                    return makeEndpoint(lay.getEndpoint(idx), lay.getCodec(idx));
+                }
+                if (endpoints == null) {
+                    endpoints = new AtomicReferenceArray<>(lay.getEndpointCount());
+                }
+                eps = endpoints;
+            }
         }
+        AbstractEndpoint<?> ep = eps.get(idx);
+        if (ep == null) {
+            eps.compareAndSet(idx, null, makeEndpoint(lay.getEndpoint(idx), lay.getCodec(idx)));
+            ep = eps.get(idx);
+        }
+        return ep;
     }
 
-    private void fireValueReceived(final byte[] value) {
-        for (final RegisterListener l : listeners) {
-            getPool().submit(
-                    new Runnable() {
+    /**
+     * return the endpoints that have been created
+     */
+    private static List<AbstractEndpoint<?>> loadedEndpoints(AtomicReferenceArray<AbstractEndpoint<?>> eps) {
+        if (eps == null) {
+            return Collections.emptyList();
+        }
+        List<AbstractEndpoint<?>> res = new ArrayList<>(eps.length());
+        for (int i = 0; i < eps.length(); ++i) {
+            AbstractEndpoint<?> ep = eps.get(i);
+            if (ep != null) {
+                res.add(ep);
+            }
+        }
+        return res;
+    }
 
-                        @Override
-                        public void run() {
-                            l.valueReceived(Register.this, value);
+    /**
+     * return the parameters, creating them if needed
+     */
+    private List<AbstractParameter<?>> parameters() {
+        List<AbstractParameter<?>> pars = parameters;
+        if (pars == null) {
+            synchronized (this) {
+                if (parameters == null) {
+                    List<AbstractParameter<?>> res = new ArrayList<>();
+                    if (layout != null) {
+                        for (ParameterDefinition def : layout.getParameters()) {
+                            res.add(makeParameter(def));
                         }
-
                     }
-            );
+                    parameters = Collections.unmodifiableList(res);
+                }
+                pars = parameters;
+            }
+        }
+        return pars;
+    }
+
+    /**
+     * store a new value as the next version of the register state. The
+     * sequence number is assigned and the state published while the network
+     * counts the update as in flight, so snapshots never miss it.
+     */
+    private synchronized RegisterState update(byte value[], long time) {
+        Network nw = dev.getNetwork();
+        long seq = nw.beginUpdate();
+        try {
+            state = new RegisterState(value, seq, time, state);
+        } finally {
+            nw.endUpdate();
+        }
+        return state;
+    }
+
+    private void fireValueReceived(final byte[] value, boolean changed) {
+        boolean filtered = !changed && !changesOnly.isEmpty();
+        for (final RegisterListener l : listeners) {
+            if (filtered && changesOnly.contains(l)) {
+                continue;
+            }
+            dispatch(l, this, new Runnable() {
+
+                @Override
+                public void run() {
+                    l.valueReceived(Register.this, value);
+                }
+
+            });
         }
     }
     
+    private void fireBitsChanged(byte diff[], byte value[]) {
+        BitSet flipped;
+        if (diff != null) {
+            flipped = BitSet.valueOf(diff);
+        } else {
+            flipped = new BitSet(value.length * 8);
+            flipped.set(0, value.length * 8);
+        }
+        BitSet bits = BitSet.valueOf(value);
+        ConcurrentMap<BitChangeListener, BitsChange> queued = queuedBits;
+        for (BitChangeListener l : bitListeners) {
+            BitsChange had = queued.get(l);
+            if ((had != null) && had.merge(flipped, bits)) {
+                continue;
+            }
+            BitsChange change = new BitsChange(l, flipped, bits);
+            queued.put(l, change);
+            // not conflated by the dispatcher, which would lose the bits that
+            // flipped in the replaced event
+            if (!getDispatcher().dispatch(l, null, change)) {
+                removeBitChangeListener(l);
+            }
+        }
+    }
+
+    /**
+     * the XOR of the previous and new values, or null if there is no
+     * previous value to compare with
+     */
+    private static byte[] diff(RegisterState old, byte value[]) {
+        if ((old == null) || (old.getValue().length != value.length)) {
+            return null;
+        }
+        byte prev[] = old.getValue();
+        byte diff[] = new byte[value.length];
+        for (int i = 0; i < value.length; ++i) {
+            diff[i] = (byte) (prev[i] ^ value[i]);
+        }
+        return diff;
+    }
+
+    private static boolean isZero(byte bytes[]) {
+        for (byte b : bytes) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private void fireValueSet(final byte[] value) {
         for (final RegisterListener l : listeners) {
-            getPool().submit(
-                    new Runnable() {
+            dispatch(l, null, new Runnable() {
 
-                        @Override
-                        public void run() {
-                            l.valueSet(Register.this, value);
-                        }
+                @Override
+                public void run() {
+                    l.valueSet(Register.this, value);
+                }
 
-                    }
-            );
+            });
         }
     }
 
-    private void fireEndpointAdded(final Endpoint ep) {
+    private void fireEndpointAdded(final Endpoint<?> ep) {
         for (final RegisterListener l : listeners) {
-            getPool().submit(
-                    new Runnable() {
+            dispatch(l, null, new Runnable() {
 
-                        @Override
-                        public void run() {
-                            l.endpointAdded(Register.this, ep);
-                        }
+                @Override
+                public void run() {
+                    l.endpointAdded(Register.this, ep);
+                }
 
-                    }
-            );
+            });
         }
     }
 
-    private void fireParameterAdded(final Parameter par) {
+    private void fireParameterAdded(final Parameter<?> par) {
         for (final RegisterListener l : listeners) {
-            getPool().submit(
-                    new Runnable() {
+            dispatch(l, null, new Runnable() {
 
-                        @Override
-                        public void run() {
-                            l.parameterAdded(Register.this, par);
-                        }
+                @Override
+                public void run() {
+                    l.parameterAdded(Register.this, par);
+                }
 
-                    }
-            );
+            });
+        }
+    }
+
+    /**
+     * dispatch an event to a listener, removing the listener if it was
+     * disconnected
+     */
+    private void dispatch(RegisterListener l, Object key, Runnable task) {
+        if (!getDispatcher().dispatch(l, key, task)) {
+            removeListener(l);
         }
     }
 
     /**
      * make an endpoint object based on it's definition
      */
-    private AbstractEndpoint makeEndpoint(EndpointDefinition epDef) {
+    private AbstractEndpoint<?> makeEndpoint(EndpointDefinition epDef, EndpointCodec codec) {
+        return makeEndpoint(this, epDef, codec);
+    }
+
+    /**
+     * make an endpoint object for the given register, which is null for the
+     * shared decoders of a layout
+     */
+    static AbstractEndpoint<?> makeEndpoint(Register reg, EndpointDefinition epDef, EndpointCodec codec) {
         switch (epDef.getType()) {
             case NUMBER:
-                return new NumberEndpoint(this, epDef);
+                return new NumberEndpoint(reg, epDef, codec);
             case STRING:
-                return new StringEndpoint(this, epDef);
+                return new StringEndpoint(reg, epDef, codec);
             case BINARY:
-                return new BinaryEndpoint(this, epDef);
+                return new BinaryEndpoint(reg, epDef, codec);
             case INTEGER:
-                return new IntegerEndpoint(this, epDef);
+                return new IntegerEndpoint(reg, epDef, codec);
             case BSTRING : 
-                return new ByteArrayEndpoint(this, epDef);
+                return new ByteArrayEndpoint(reg, epDef, codec);
             default:
                 throw new RuntimeException(String.format("Unknown end point type '%s'. BUG!", epDef.getType()));
         }
@@ -311,7 +882,7 @@ public final class Register {
     /**
      * make a parameter object based on it's definition
      */
-    private AbstractParameter makeParameter(ParameterDefinition def) {
+    private AbstractParameter<?> makeParameter(ParameterDefinition def) {
         switch (def.getType()) {
             case NUMBER:
                 return new NumberParameter(this, def);
@@ -330,10 +901,61 @@ public final class Register {
 
     private final PanStamp dev;
     private final int id;
-    private String name = "";
-    private final Map<String, AbstractEndpoint> endpoints = new ConcurrentHashMap<>();
-    private final Map<String, AbstractParameter> parameters = new ConcurrentHashMap<>();
-    private final Set<RegisterListener> listeners = new CopyOnWriteArraySet<>();
-    private byte[] value;
+    private volatile RegisterLayout layout;
+    private volatile AtomicReferenceArray<AbstractEndpoint<?>> endpoints;
+    private volatile List<AbstractParameter<?>> parameters;
+    private volatile Set<RegisterListener> listeners = Collections.emptySet();
+    private volatile Set<RegisterListener> changesOnly = Collections.emptySet();
+    private volatile Set<VirtualEndpoint> dependents = Collections.emptySet();
+    private volatile Set<BitChangeListener> bitListeners = Collections.emptySet();
+    private volatile ConcurrentMap<BitChangeListener, BitsChange> queuedBits;
+    private final Object queryLock = new Object();
+    private RegisterQuery query;
+    private volatile RegisterCommand command;
+    private static final Logger logger = Logger.getLogger(Register.class.getName());
+    private volatile RegisterState state;
+    private final AtomicReference<PendingValue> pending = new AtomicReference<>();
+    private final Object sendLock = new Object();
+    private PendingValue sent;
+
+    /**
+     * A bit change event waiting to be delivered to a listener. Changes that
+     * arrive before it is delivered are merged into it, so a listener that
+     * falls behind gets all the bits that flipped and the newest value.
+     */
+    private final class BitsChange implements Runnable {
+
+        private BitsChange(BitChangeListener listener, BitSet flipped, BitSet bits) {
+            this.listener = listener;
+            this.flipped = (BitSet) flipped.clone();
+            this.bits = bits;
+        }
+
+        /**
+         * merge a later change, unless delivery has started
+         */
+        private synchronized boolean merge(BitSet flipped, BitSet bits) {
+            if (started) {
+                return false;
+            }
+            this.flipped.or(flipped);
+            this.bits = bits;
+            return true;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                started = true;
+            }
+            queuedBits.remove(listener, this);
+            listener.bitsChanged(Register.this, flipped, (BitSet) bits.clone());
+        }
+
+        private final BitChangeListener listener;
+        private final BitSet flipped;
+        private BitSet bits;
+        private boolean started;
+    }
 
 }
@@ -0,0 +1,157 @@
+package me.legrange.panstamp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the last value sent to a register until the device confirms it
+ * with a status message. If no confirmation arrives in time the value is
+ * sent again, waiting twice as long each time, until the retries run out,
+ * and then the value is no longer pending. A value held for a device that is
+ * powered down only starts timing when it is sent. A value sent before the
+ * last one was confirmed replaces it, and the callers waiting for the old
+ * value then wait for the new one, as it includes their changes.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+final class RegisterCommand {
+
+    RegisterCommand(Register reg) {
+        this.reg = reg;
+    }
+
+    /**
+     * Wait for the confirmation of the current value.
+     *
+     * @return The future completed when the value is confirmed.
+     */
+    synchronized ResultFuture<byte[]> join() {
+        ResultFuture<byte[]> f = new ResultFuture<>();
+        waiters.add(f);
+        return f;
+    }
+
+    /**
+     * A value was sent to the device, or held until it wakes up.
+     *
+     * @param now True if the value was sent now.
+     */
+    synchronized void sent(PendingValue value, long timeout, int retries, boolean now) {
+        target = value;
+        attempt = 0;
+        delay = timeout;
+        this.retries = retries;
+        cancelTimer();
+        if (now) {
+            schedule();
+        }
+    }
+
+    /**
+     * The value was sent after it was held for the device, or sent again.
+     */
+    synchronized void transmitted() {
+        if ((target != null) && (timer == null)) {
+            schedule();
+        }
+    }
+
+    /**
+     * The value could not be sent.
+     */
+    synchronized void failed(NetworkException error) {
+        target = null;
+        cancelTimer();
+        for (ResultFuture<byte[]> f : waiters) {
+            f.fail(error);
+        }
+        waiters.clear();
+    }
+
+    /**
+     * A value was applied without waiting for the device.
+     */
+    synchronized void completed(byte value[]) {
+        target = null;
+        cancelTimer();
+        complete(value);
+    }
+
+    /**
+     * The register received a value, which confirms the value sent if it is
+     * the same.
+     */
+    synchronized void received(byte value[]) {
+        if ((target != null) && target.isConfirmedBy(value)) {
+            target = null;
+            cancelTimer();
+            complete(value);
+        }
+    }
+
+    private void complete(byte value[]) {
+        for (ResultFuture<byte[]> f : waiters) {
+            f.set(value.clone());
+        }
+        waiters.clear();
+    }
+
+    private void expired() {
+        PendingValue resend = null;
+        synchronized (this) {
+            timer = null;
+            if (target == null) {
+                return;
+            }
+            if (attempt < retries) {
+                attempt++;
+                delay = delay * 2;
+                resend = target;
+            } else {
+                MoteException error = new MoteException(String.format("Device %d did not confirm the value of register %d after %d commands",
+                        reg.getDevice().getAddress(), reg.getId(), attempt + 1));
+                reg.pendingFailed(target);
+                target = null;
+                for (ResultFuture<byte[]> f : waiters) {
+                    f.fail(error);
+                }
+                waiters.clear();
+            }
+        }
+        if (resend != null) {
+            // sent outside our lock, as sending takes the register's send lock,
+            // and timed again once it is sent
+            reg.resend(resend);
+        }
+    }
+
+    private void schedule() {
+        cancelTimer();
+        timer = reg.getDevice().getNetwork().getTimer().schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                expired();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelTimer() {
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+    }
+
+    private final Register reg;
+    private final List<ResultFuture<byte[]>> waiters = new ArrayList<>();
+    private PendingValue target;
+    private long delay;
+    private int attempt;
+    private int retries;
+    private ScheduledFuture<?> timer;
+
+}
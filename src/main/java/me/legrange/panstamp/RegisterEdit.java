@@ -0,0 +1,219 @@
+package me.legrange.panstamp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * A set of endpoint changes applied to a register as one update and sent to
+ * the device in a single command. Obtain an edit from {@link Register#edit()}:
+ * <pre>
+ * reg.edit().set(red, 255).set(green, 128).set(blue, 0).commit();
+ * </pre>
+ * The changes are applied to a private copy of the current register value,
+ * together with the changes of earlier edits the device has not confirmed
+ * yet, and the copy replaces the register's outgoing value with a
+ * compare-and-set. If another edit was committed in the meantime, the
+ * changes are applied again on top of it, so concurrent edits of different
+ * endpoints never undo each other.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public final class RegisterEdit {
+
+    /**
+     * Set an endpoint to a value in the endpoint's current unit.
+     *
+     * @param <T> The type of the endpoint value.
+     * @param ep The endpoint to set, which must belong to the register.
+     * @param value The value.
+     * @return This edit.
+     */
+    public <T> RegisterEdit set(Endpoint<T> ep, T value) {
+        AbstractEndpoint<T> aep = check(ep);
+        return set(aep, aep.currentUnit(), value);
+    }
+
+    /**
+     * Set an endpoint to a value in the given unit.
+     *
+     * @param <T> The type of the endpoint value.
+     * @param ep The endpoint to set, which must belong to the register.
+     * @param unit The unit of the value.
+     * @param value The value.
+     * @return This edit.
+     * @throws NoSuchUnitException Thrown if the endpoint has no such unit.
+     */
+    public <T> RegisterEdit set(Endpoint<T> ep, String unit, T value) throws NoSuchUnitException {
+        AbstractEndpoint<T> aep = check(ep);
+        return set(aep, aep.getUnit(unit), value);
+    }
+
+    /**
+     * Apply the changes to the register and send the new value to the device.
+     *
+     * @return The future completed when the device confirms the value, as
+     * for {@link Register#setValue(byte[])}.
+     * @throws NetworkException Thrown if the value could not be sent.
+     */
+    public Future<byte[]> commit() throws NetworkException {
+        if (changes.isEmpty()) {
+            ResultFuture<byte[]> f = new ResultFuture<>();
+            f.set(reg.currentValue());
+            return f;
+        }
+        while (true) {
+            PendingValue expect = reg.pendingValue();
+            byte cur[] = reg.currentValue();
+            byte next[];
+            if (expect != null) {
+                next = expect.on(cur);
+            } else {
+                next = (cur != null) ? cur.clone() : new byte[size()];
+            }
+            byte mask[] = (expect != null) ? expect.getMask() : new byte[next.length];
+            int end = end();
+            if (next.length < end) {
+                // a value shorter than its definition has no room for the changes
+                next = Arrays.copyOf(next, end);
+                mask = Arrays.copyOf(mask, end);
+            }
+            for (Change c : changes) {
+                c.apply(next, mask);
+            }
+            if (reg.replacePendingValue(expect, new PendingValue(next, mask))) {
+                break;
+            }
+        }
+        return reg.transmit();
+    }
+
+    RegisterEdit(Register reg) {
+        this.reg = reg;
+    }
+
+    /**
+     * Set an endpoint to a value in the unit with the given index.
+     */
+    <T> RegisterEdit set(AbstractEndpoint<T> ep, int unit, T value) {
+        changes.add(new EndpointChange<>(ep, unit, value));
+        return this;
+    }
+
+    /**
+     * Set a parameter to a value.
+     */
+    <T> RegisterEdit set(AbstractParameter<T> par, T value) {
+        changes.add(new ParameterChange<>(par, value));
+        return this;
+    }
+
+    private <T> AbstractEndpoint<T> check(Endpoint<T> ep) {
+        if ((ep.getRegister() != reg) || !(ep instanceof AbstractEndpoint)) {
+            throw new IllegalArgumentException(String.format("Endpoint '%s' does not belong to register %d", ep.getName(), reg.getId()));
+        }
+        return (AbstractEndpoint<T>) ep;
+    }
+
+    /**
+     * the register size to use if no value is known
+     */
+    private int size() {
+        int size = 0;
+        for (Change c : changes) {
+            size = Math.max(size, c.size());
+        }
+        return size;
+    }
+
+    /**
+     * the length a register value needs to hold all the changes
+     */
+    private int end() {
+        int end = 0;
+        for (Change c : changes) {
+            end = Math.max(end, c.end());
+        }
+        return end;
+    }
+
+    private final Register reg;
+    private final List<Change> changes = new ArrayList<>();
+
+    /**
+     * A change to apply to the register value.
+     */
+    private abstract static class Change {
+
+        /**
+         * write the change into the value, and mark the bits it changed
+         */
+        abstract void apply(byte bytes[], byte mask[]) throws NetworkException;
+
+        /**
+         * the position after the last byte the change writes
+         */
+        abstract int end();
+
+        /**
+         * the register size to use if no value is known
+         */
+        int size() {
+            return end();
+        }
+    }
+
+    private static final class EndpointChange<T> extends Change {
+
+        private EndpointChange(AbstractEndpoint<T> ep, int unit, T value) {
+            this.ep = ep;
+            this.unit = unit;
+            this.value = value;
+        }
+
+        @Override
+        void apply(byte bytes[], byte mask[]) {
+            ep.write(unit, value, bytes);
+            ep.codec.mask(mask);
+        }
+
+        @Override
+        int end() {
+            return ep.codec.getBytePos() + Math.max(ep.codec.getSize(), 1);
+        }
+
+        @Override
+        int size() {
+            return Math.max(ep.epDef.getRegister().getByteSize(), end());
+        }
+
+        private final AbstractEndpoint<T> ep;
+        private final int unit;
+        private final T value;
+    }
+
+    private static final class ParameterChange<T> extends Change {
+
+        private ParameterChange(AbstractParameter<T> par, T value) {
+            this.par = par;
+            this.value = value;
+        }
+
+        @Override
+        void apply(byte bytes[], byte mask[]) throws NetworkException {
+            par.write(value, bytes);
+            par.mask(mask);
+        }
+
+        @Override
+        int end() {
+            return par.end();
+        }
+
+        private final AbstractParameter<T> par;
+        private final T value;
+    }
+
+}
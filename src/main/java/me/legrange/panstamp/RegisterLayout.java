@@ -0,0 +1,99 @@
+package me.legrange.panstamp;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import me.legrange.panstamp.definition.EndpointDefinition;
+import me.legrange.panstamp.definition.ParameterDefinition;
+import me.legrange.panstamp.definition.RegisterDefinition;
+
+/**
+ * The immutable metadata derived from a register definition: the endpoint
+ * definitions with their compiled codecs and the parameter definitions. A
+ * layout is created once per register definition and shared by the registers
+ * of all devices of the same product.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+final class RegisterLayout {
+
+    RegisterLayout(RegisterDefinition def) {
+        this.def = def;
+        List<EndpointDefinition> eps = def.getEndpoints();
+        endpoints = eps.toArray(new EndpointDefinition[eps.size()]);
+        codecs = new EndpointCodec[endpoints.length];
+        decoders = new AtomicReferenceArray<>(endpoints.length);
+        index = new HashMap<>();
+        for (int i = 0; i < endpoints.length; ++i) {
+            codecs[i] = new EndpointCodec(endpoints[i]);
+            index.put(endpoints[i].getName(), i);
+        }
+    }
+
+    String getName() {
+        return def.getName();
+    }
+
+    /**
+     * Get the size of the register value in bytes, as defined.
+     */
+    int getByteSize() {
+        return def.getByteSize();
+    }
+
+    int getEndpointCount() {
+        return endpoints.length;
+    }
+
+    EndpointDefinition getEndpoint(int idx) {
+        return endpoints[idx];
+    }
+
+    EndpointCodec getCodec(int idx) {
+        return codecs[idx];
+    }
+
+    /**
+     * Decode an endpoint value in the endpoint's default unit, without
+     * creating an endpoint for the register. The decoders are shared by all
+     * the registers with this layout.
+     */
+    Object decode(int idx, byte value[]) {
+        AbstractEndpoint<?> dec = decoders.get(idx);
+        if (dec == null) {
+            decoders.compareAndSet(idx, null, Register.makeEndpoint(null, endpoints[idx], codecs[idx]));
+            dec = decoders.get(idx);
+        }
+        return dec.read(codecs[idx].defaultUnit(), value);
+    }
+
+    /**
+     * Get the name of the default unit of an endpoint.
+     */
+    String getDefaultUnit(int idx) {
+        return codecs[idx].unitName(codecs[idx].defaultUnit());
+    }
+
+    /**
+     * Get the index of the endpoint with the given name.
+     *
+     * @return The index, or -1 if there is no such endpoint.
+     */
+    int indexOf(String name) {
+        Integer idx = index.get(name);
+        return (idx != null) ? idx : -1;
+    }
+
+    List<ParameterDefinition> getParameters() {
+        return def.getParameters();
+    }
+
+    private final RegisterDefinition def;
+    private final EndpointDefinition endpoints[];
+    private final EndpointCodec codecs[];
+    private final Map<String, Integer> index;
+    private final AtomicReferenceArray<AbstractEndpoint<?>> decoders;
+
+}
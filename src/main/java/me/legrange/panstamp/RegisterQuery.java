@@ -0,0 +1,133 @@
+package me.legrange.panstamp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A query sent to a device for a register value. The query is answered by
+ * the next status message for the register. If no answer arrives in time it
+ * is sent again, waiting twice as long each time, until the retries run out.
+ * A query held for a device that is powered down only starts timing when it
+ * is sent, as the device cannot answer before it wakes up.
+ * Callers that query the register while a query is in flight share it, so
+ * they don't cause more radio traffic.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+final class RegisterQuery {
+
+    RegisterQuery(Register reg, long timeout, int retries) {
+        this.reg = reg;
+        this.delay = timeout;
+        this.retries = retries;
+    }
+
+    /**
+     * Join the query.
+     *
+     * @return The future completed when the query is answered, or null if
+     * the query is already finished.
+     */
+    synchronized ResultFuture<byte[]> join() {
+        if (finished) {
+            return null;
+        }
+        ResultFuture<byte[]> f = new ResultFuture<>();
+        waiters.add(f);
+        return f;
+    }
+
+    /**
+     * Send the query for the first time.
+     */
+    synchronized void start() {
+        if (!finished) {
+            send();
+        }
+    }
+
+    /**
+     * The query was sent after it was held for the device.
+     */
+    synchronized void transmitted() {
+        if (!finished && (timer == null)) {
+            schedule();
+        }
+    }
+
+    /**
+     * The register received a value.
+     */
+    synchronized void answered(byte value[]) {
+        finished = true;
+        cancelTimer();
+        for (ResultFuture<byte[]> f : waiters) {
+            f.set(value.clone());
+        }
+    }
+
+    private void send() {
+        boolean now;
+        try {
+            now = reg.getDevice().sendQuery(reg.getId());
+        } catch (ModemException ex) {
+            fail(ex);
+            return;
+        }
+        if (now) {
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        timer = reg.getDevice().getNetwork().getTimer().schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                expired();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void expired() {
+        timer = null;
+        if (finished) {
+            return;
+        }
+        if (attempt < retries) {
+            attempt++;
+            delay = delay * 2;
+            send();
+        } else {
+            fail(new MoteException(String.format("No answer from device %d for register %d after %d queries",
+                    reg.getDevice().getAddress(), reg.getId(), attempt + 1)));
+        }
+    }
+
+    private void fail(Throwable error) {
+        finished = true;
+        reg.queryDone(this);
+        for (ResultFuture<byte[]> f : waiters) {
+            f.fail(error);
+        }
+    }
+
+    private void cancelTimer() {
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+    }
+
+    private final Register reg;
+    private final int retries;
+    private final List<ResultFuture<byte[]>> waiters = new ArrayList<>();
+    private long delay;
+    private int attempt;
+    private ScheduledFuture<?> timer;
+    private boolean finished;
+
+}
@@ -0,0 +1,77 @@
+package me.legrange.panstamp;
+
+/**
+ * An immutable, sequence-numbered register value. Every new value gets the
+ * next sequence number of the network, and the state remembers the value it
+ * replaced so that a snapshot taken while it is replaced can still see it.
+ * The value array is never modified once the state is created.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+final class RegisterState {
+
+    /**
+     * Returned by {@link #at(long)} if the state visible at a sequence number
+     * has already been replaced twice.
+     */
+    static final RegisterState STALE = new RegisterState(new byte[]{}, 0, 0, null);
+
+    RegisterState(byte value[], long sequence, long time, RegisterState previous) {
+        this.value = value;
+        this.sequence = sequence;
+        this.time = time;
+        if (previous != null) {
+            prevValue = previous.value;
+            prevSequence = previous.sequence;
+            prevTime = previous.time;
+        } else {
+            prevValue = null;
+            prevSequence = 0;
+            prevTime = 0;
+        }
+    }
+
+    /**
+     * Get the state as it was at the given sequence number.
+     *
+     * @param seq The sequence number.
+     * @return The state, null if the register had no value at that point, or
+     * STALE if the state at that point is no longer known.
+     */
+    RegisterState at(long seq) {
+        if (sequence <= seq) {
+            return this;
+        }
+        if (prevValue == null) {
+            return null;
+        }
+        if (prevSequence <= seq) {
+            return new RegisterState(prevValue, prevSequence, prevTime, null);
+        }
+        return STALE;
+    }
+
+    /**
+     * Get the value. The array is shared and must not be modified.
+     */
+    byte[] getValue() {
+        return value;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    long getTime() {
+        return time;
+    }
+
+    private final byte value[];
+    private final long sequence;
+    private final long time;
+    private final byte prevValue[];
+    private final long prevSequence;
+    private final long prevTime;
+
+}
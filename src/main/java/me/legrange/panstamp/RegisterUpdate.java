@@ -0,0 +1,76 @@
+package me.legrange.panstamp;
+
+/**
+ * An immutable record of a register value received from the network.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public final class RegisterUpdate {
+
+    /**
+     * Get the address of the device that sent the value.
+     *
+     * @return The device address.
+     */
+    public int getAddress() {
+        return address;
+    }
+
+    /**
+     * Get the ID of the register.
+     *
+     * @return The register ID.
+     */
+    public int getRegisterId() {
+        return registerId;
+    }
+
+    /**
+     * Get the register value received.
+     *
+     * @return A copy of the value.
+     */
+    public byte[] getValue() {
+        return value.clone();
+    }
+
+    /**
+     * Get the network sequence number of the value. Sequence numbers increase
+     * with every register value received or set in the network.
+     *
+     * @return The sequence number.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Get the time at which the value was received.
+     *
+     * @return The time in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "RegisterUpdate{" + "address=" + address + ", registerId=" + registerId + ", sequence=" + sequence + ", timestamp=" + timestamp + '}';
+    }
+
+    RegisterUpdate(int address, int registerId, RegisterState state) {
+        this.address = address;
+        this.registerId = registerId;
+        this.value = state.getValue();
+        this.sequence = state.getSequence();
+        this.timestamp = state.getTime();
+    }
+
+    private final int address;
+    private final int registerId;
+    private final byte[] value;
+    private final long sequence;
+    private final long timestamp;
+
+}
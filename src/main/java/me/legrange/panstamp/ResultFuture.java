@@ -0,0 +1,202 @@
+package me.legrange.panstamp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A future that is completed by the library when a device answers.
+ *
+ * @param <V> The type of the result.
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+final class ResultFuture<V> implements Future<V> {
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            cancelled = true;
+            done = true;
+            notifyAll();
+        }
+        runCallbacks();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized V get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return result();
+    }
+
+    /**
+     * Wait for the result, passing on library errors as they are.
+     *
+     * @return The result.
+     * @throws NetworkException Thrown if the future failed or the wait was
+     * interrupted.
+     */
+    V await() throws NetworkException {
+        try {
+            return get();
+        } catch (ExecutionException ex) {
+            throw failure(ex);
+        } catch (CancellationException ex) {
+            throw new MoteException("The request was cancelled", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new MoteException("Interrupted while waiting for a device", ex);
+        }
+    }
+
+    /**
+     * Wait at most the given time for the result, passing on library errors
+     * as they are.
+     *
+     * @param timeout The time to wait.
+     * @param unit The unit of the time.
+     * @return The result.
+     * @throws NetworkException Thrown if the future failed, the time ran out
+     * or the wait was interrupted.
+     */
+    V await(long timeout, TimeUnit unit) throws NetworkException {
+        try {
+            return get(timeout, unit);
+        } catch (TimeoutException ex) {
+            throw new MoteException(String.format("Timed out after %d ms waiting for a device", unit.toMillis(timeout)), ex);
+        } catch (ExecutionException ex) {
+            throw failure(ex);
+        } catch (CancellationException ex) {
+            throw new MoteException("The request was cancelled", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new MoteException("Interrupted while waiting for a device", ex);
+        }
+    }
+
+    /**
+     * Complete the future with a result.
+     *
+     * @return False if the future was already done.
+     */
+    boolean set(V value) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.value = value;
+            done = true;
+            notifyAll();
+        }
+        runCallbacks();
+        return true;
+    }
+
+    /**
+     * Complete the future with an error.
+     *
+     * @return False if the future was already done.
+     */
+    boolean fail(Throwable error) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.error = error;
+            done = true;
+            notifyAll();
+        }
+        runCallbacks();
+        return true;
+    }
+
+    /**
+     * Run a task when the future is done, or now if it is already done. The
+     * task runs on the thread completing the future and must be short.
+     */
+    void whenDone(Runnable task) {
+        synchronized (this) {
+            if (!done) {
+                if (callbacks == null) {
+                    callbacks = new ArrayList<>();
+                }
+                callbacks.add(task);
+                return;
+            }
+        }
+        task.run();
+    }
+
+    private void runCallbacks() {
+        List<Runnable> tasks;
+        synchronized (this) {
+            tasks = callbacks;
+            callbacks = null;
+        }
+        if (tasks != null) {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * the library error a future failed with
+     */
+    private static NetworkException failure(ExecutionException ex) {
+        if (ex.getCause() instanceof NetworkException) {
+            return (NetworkException) ex.getCause();
+        }
+        return new MoteException(ex.getCause().getMessage(), ex.getCause());
+    }
+
+    private V result() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return value;
+    }
+
+    private V value;
+    private Throwable error;
+    private boolean done;
+    private boolean cancelled;
+    private List<Runnable> callbacks;
+
+}
@@ -0,0 +1,154 @@
+package me.legrange.panstamp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A threshold rule on a numeric endpoint, such as "temperature above 30 for
+ * 2 minutes". A rule is triggered when the endpoint value crosses the
+ * threshold and stays there for the rule's duration, and cleared when it
+ * moves back past the threshold by more than the hysteresis. Rules are
+ * immutable; add them to a network with
+ * {@link Network#addRule(Rule, RuleListener)}:
+ * <pre>
+ * nw.addRule(Rule.above(temperature, 30).forAtLeast(2, TimeUnit.MINUTES).withHysteresis(0.5), listener);
+ * </pre>
+ * The threshold is in the unit the endpoint uses when the rule is added.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public final class Rule {
+
+    /**
+     * Create a rule that triggers when the endpoint value is above the
+     * threshold.
+     *
+     * @param ep The endpoint to watch.
+     * @param threshold The threshold.
+     * @return The rule.
+     */
+    public static Rule above(Endpoint<?> ep, double threshold) {
+        return new Rule(ep, true, threshold, 0, 0);
+    }
+
+    /**
+     * Create a rule that triggers when the endpoint value is below the
+     * threshold.
+     *
+     * @param ep The endpoint to watch.
+     * @param threshold The threshold.
+     * @return The rule.
+     */
+    public static Rule below(Endpoint<?> ep, double threshold) {
+        return new Rule(ep, false, threshold, 0, 0);
+    }
+
+    /**
+     * Create a rule like this one that only triggers once the value has been
+     * past the threshold for the given time.
+     *
+     * @param time The time.
+     * @param unit The unit of the time.
+     * @return The new rule.
+     */
+    public Rule forAtLeast(long time, TimeUnit unit) {
+        if (time < 0) {
+            throw new IllegalArgumentException(String.format("Invalid rule duration %d", time));
+        }
+        return new Rule(ep, above, threshold, unit.toMillis(time), hysteresis);
+    }
+
+    /**
+     * Create a rule like this one that is only cleared once the value moved
+     * back past the threshold by more than the hysteresis.
+     *
+     * @param hysteresis The hysteresis, in the unit of the threshold.
+     * @return The new rule.
+     */
+    public Rule withHysteresis(double hysteresis) {
+        if (hysteresis < 0) {
+            throw new IllegalArgumentException(String.format("Invalid rule hysteresis %f", hysteresis));
+        }
+        return new Rule(ep, above, threshold, duration, hysteresis);
+    }
+
+    /**
+     * Get the endpoint watched by the rule.
+     *
+     * @return The endpoint.
+     */
+    public Endpoint<?> getEndpoint() {
+        return ep;
+    }
+
+    /**
+     * Determine if the rule triggers above or below the threshold.
+     *
+     * @return True if the rule triggers above the threshold.
+     */
+    public boolean isAbove() {
+        return above;
+    }
+
+    /**
+     * Get the threshold.
+     *
+     * @return The threshold.
+     */
+    public double getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Get the time the value must be past the threshold before the rule
+     * triggers.
+     *
+     * @return The time in milliseconds.
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Get the hysteresis.
+     *
+     * @return The hysteresis.
+     */
+    public double getHysteresis() {
+        return hysteresis;
+    }
+
+    @Override
+    public String toString() {
+        return "Rule{" + "endpoint=" + ep.getName() + ", " + (above ? "above " : "below ") + threshold + ", duration=" + duration + ", hysteresis=" + hysteresis + '}';
+    }
+
+    /**
+     * Test if a value is past the threshold.
+     */
+    boolean isPast(double value) {
+        return above ? (value > threshold) : (value < threshold);
+    }
+
+    /**
+     * Test if a value moved back past the threshold and hysteresis.
+     */
+    boolean isClear(double value) {
+        return above ? (value <= threshold - hysteresis) : (value >= threshold + hysteresis);
+    }
+
+    private Rule(Endpoint<?> ep, boolean above, double threshold, long duration, double hysteresis) {
+        this.ep = ep;
+        this.above = above;
+        this.threshold = threshold;
+        this.duration = duration;
+        this.hysteresis = hysteresis;
+    }
+
+    private final Endpoint<?> ep;
+    private final boolean above;
+    private final double threshold;
+    private final long duration;
+    private final double hysteresis;
+
+}
@@ -0,0 +1,299 @@
+package me.legrange.panstamp;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Evaluates the rules of a network. Rules are indexed by device address and
+ * register ID, and a received register value only evaluates the rules on
+ * that register, in the receive path. Each endpoint is decoded once for all
+ * its rules, and only the rule listeners are called through the dispatcher.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+final class RuleEngine {
+
+    RuleEngine(Dispatcher dispatcher, ScheduledExecutorService timer) {
+        this.dispatcher = dispatcher;
+        this.timer = timer;
+    }
+
+    synchronized void add(Rule rule, RuleListener l) {
+        if (!(rule.getEndpoint() instanceof AbstractEndpoint)) {
+            throw new IllegalArgumentException(String.format("Rules can only watch register endpoints, not '%s'", rule.getEndpoint().getName()));
+        }
+        remove(rule);
+        AbstractEndpoint<?> ep = (AbstractEndpoint<?>) rule.getEndpoint();
+        ActiveRule ar = new ActiveRule(rule, ep, ep.currentUnit(), l);
+        ActiveRule had[] = index.get(ar.key);
+        ActiveRule now[];
+        if (had == null) {
+            now = new ActiveRule[]{ar};
+        } else {
+            now = Arrays.copyOf(had, had.length + 1);
+            now[had.length] = ar;
+            // keep the rules of an endpoint together so it is decoded once
+            Arrays.sort(now, BY_ENDPOINT);
+        }
+        index.put(ar.key, now);
+        rules.put(rule, ar);
+        dispatcher.register(l, OverflowPolicy.BLOCK);
+    }
+
+    synchronized void remove(Rule rule) {
+        ActiveRule ar = rules.remove(rule);
+        if (ar == null) {
+            return;
+        }
+        ar.cancel();
+        ActiveRule had[] = index.get(ar.key);
+        if (had != null) {
+            ActiveRule now[] = new ActiveRule[had.length - 1];
+            int i = 0;
+            for (ActiveRule r : had) {
+                if ((r != ar) && (i < now.length)) {
+                    now[i++] = r;
+                }
+            }
+            if (now.length == 0) {
+                index.remove(ar.key);
+            } else {
+                index.put(ar.key, now);
+            }
+        }
+        // the listener was registered for each rule it was added with
+        dispatcher.unregister(ar.listener);
+    }
+
+    /**
+     * Move the rules on a register to its new endpoints after its layout
+     * changed, keeping their state. Rules on endpoints that no longer exist
+     * are removed.
+     */
+    synchronized void layoutChanged(Register reg) {
+        ActiveRule had[] = index.get(key(reg.getDevice().getAddress(), reg.getId()));
+        if (had == null) {
+            return;
+        }
+        for (ActiveRule ar : had) {
+            String name = ar.ep.getName();
+            AbstractEndpoint<?> ep = null;
+            try {
+                if (reg.hasEndpoint(name)) {
+                    ep = (AbstractEndpoint<?>) reg.getEndpoint(name);
+                }
+            } catch (NetworkException ex) {
+            }
+            if (ep == null) {
+                Logger.getLogger(RuleEngine.class.getName()).log(Level.WARNING, String.format("Removed rule on endpoint '%s' of device %d, which no longer exists", name, reg.getDevice().getAddress()));
+                remove(ar.rule);
+                continue;
+            }
+            int unit = ep.codec.unitIndex(ar.ep.codec.unitName(ar.unit));
+            if (unit == EndpointCodec.NO_UNIT) {
+                unit = ep.currentUnit();
+            }
+            ActiveRule now = new ActiveRule(ar.rule, ep, unit, ar.listener);
+            now.takeOver(ar);
+            ActiveRule cur[] = index.get(ar.key).clone();
+            for (int i = 0; i < cur.length; ++i) {
+                if (cur[i] == ar) {
+                    cur[i] = now;
+                }
+            }
+            Arrays.sort(cur, BY_ENDPOINT);
+            index.put(ar.key, cur);
+            rules.put(ar.rule, now);
+        }
+    }
+
+    /**
+     * Evaluate the rules on a register that received a value.
+     */
+    void evaluate(Register reg, byte value[], long time) {
+        if (index.isEmpty()) {
+            return;
+        }
+        ActiveRule active[] = index.get(key(reg.getDevice().getAddress(), reg.getId()));
+        if (active == null) {
+            return;
+        }
+        AbstractEndpoint<?> ep = null;
+        int unit = 0;
+        double decoded = Double.NaN;
+        for (ActiveRule ar : active) {
+            if ((ar.ep != ep) || (ar.unit != unit)) {
+                ep = ar.ep;
+                unit = ar.unit;
+                decoded = ep.toDouble(unit, value);
+            }
+            ar.update(decoded, time);
+        }
+    }
+
+    private static int key(int address, int registerId) {
+        return (address << 8) | (registerId & 0xFF);
+    }
+
+    private final Dispatcher dispatcher;
+    private final ScheduledExecutorService timer;
+    private final Map<Integer, ActiveRule[]> index = new ConcurrentHashMap<>();
+    private final Map<Rule, ActiveRule> rules = new ConcurrentHashMap<>();
+
+    private static final Comparator<ActiveRule> BY_ENDPOINT = new Comparator<ActiveRule>() {
+
+        @Override
+        public int compare(ActiveRule o1, ActiveRule o2) {
+            int dif = Integer.compare(System.identityHashCode(o1.ep), System.identityHashCode(o2.ep));
+            return (dif != 0) ? dif : o1.unit - o2.unit;
+        }
+    };
+
+    private enum State {
+        IDLE, PENDING, TRIGGERED
+    }
+
+    /**
+     * A rule added to the engine, with its state.
+     */
+    private final class ActiveRule {
+
+        private ActiveRule(Rule rule, AbstractEndpoint<?> ep, int unit, RuleListener listener) {
+            this.rule = rule;
+            this.ep = ep;
+            this.unit = unit;
+            this.listener = listener;
+            key = key(ep.getRegister().getDevice().getAddress(), ep.getRegister().getId());
+        }
+
+        private synchronized void update(double value, long time) {
+            if (retired || Double.isNaN(value)) {
+                return;
+            }
+            last = value;
+            switch (state) {
+                case IDLE:
+                    if (rule.isPast(value)) {
+                        if (rule.getDuration() == 0) {
+                            trigger();
+                        } else {
+                            state = State.PENDING;
+                            since = time;
+                            schedule(rule.getDuration());
+                        }
+                    }
+                    break;
+                case PENDING:
+                    if (!rule.isPast(value)) {
+                        state = State.IDLE;
+                        cancel();
+                    } else if (time - since >= rule.getDuration()) {
+                        trigger();
+                    }
+                    break;
+                case TRIGGERED:
+                    if (rule.isClear(value)) {
+                        state = State.IDLE;
+                        fire(false, value);
+                    }
+                    break;
+            }
+        }
+
+        /**
+         * the duration passed without a new value arriving
+         */
+        private synchronized void expired() {
+            if (!retired && (state == State.PENDING)) {
+                trigger();
+            }
+        }
+
+        /**
+         * Continue from the state of a rule on an endpoint that was replaced,
+         * which stops evaluating.
+         */
+        private synchronized void takeOver(ActiveRule old) {
+            synchronized (old) {
+                old.retired = true;
+                old.cancel();
+                state = old.state;
+                since = old.since;
+                last = old.last;
+            }
+            if (state == State.PENDING) {
+                schedule(Math.max(0, rule.getDuration() - (System.currentTimeMillis() - since)));
+            }
+        }
+
+        private void trigger() {
+            cancel();
+            state = State.TRIGGERED;
+            fire(true, last);
+        }
+
+        private void schedule(long delay) {
+            cancel();
+            check = timer.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    expired();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void cancel() {
+            if (check != null) {
+                check.cancel(false);
+                check = null;
+            }
+        }
+
+        private void fire(final boolean triggered, final double value) {
+            // not conflated, as replacing a trigger with its clear would lose
+            // the trigger, and the two must arrive in order
+            boolean connected = dispatcher.dispatch(listener, null, new Runnable() {
+
+                @Override
+                public void run() {
+                    if (triggered) {
+                        listener.ruleTriggered(rule, value);
+                    } else {
+                        listener.ruleCleared(rule, value);
+                    }
+                }
+            });
+            if (!connected) {
+                // not removed here, as we hold the rule's lock
+                timer.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        remove(rule);
+                    }
+                });
+            }
+        }
+
+        private final Rule rule;
+        private final AbstractEndpoint<?> ep;
+        private final int unit;
+        private final RuleListener listener;
+        private final int key;
+        private State state = State.IDLE;
+        private long since;
+        private double last;
+        private ScheduledFuture<?> check;
+        private boolean retired;
+    }
+
+}
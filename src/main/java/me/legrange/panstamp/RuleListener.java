@@ -0,0 +1,27 @@
+package me.legrange.panstamp;
+
+/**
+ * A listener that is told when a rule is triggered or cleared.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public interface RuleListener {
+
+    /**
+     * Called when a rule is triggered.
+     *
+     * @param rule The rule.
+     * @param value The endpoint value that triggered it.
+     */
+    void ruleTriggered(Rule rule, double value);
+
+    /**
+     * Called when a triggered rule is cleared.
+     *
+     * @param rule The rule.
+     * @param value The endpoint value that cleared it.
+     */
+    void ruleCleared(Rule rule, double value);
+
+}
@@ -0,0 +1,167 @@
+package me.legrange.panstamp;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import me.legrange.panstamp.stream.Flow;
+
+/**
+ * A publisher of items received from the network. Each subscription gets its
+ * own bounded queue which only delivers items once the subscriber has
+ * requested them. If a subscriber does not keep up the network's overflow
+ * policy is applied to its queue. A subscriber that is disconnected by the
+ * DISCONNECT policy receives an error, and subscribers are completed when the
+ * network closes.
+ *
+ * @param <T> The type of item published.
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+final class StreamPublisher<T> implements Flow.Publisher<T> {
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber cannot be null");
+        }
+        StreamSubscription sub = new StreamSubscription(subscriber);
+        subscriber.onSubscribe(sub);
+        subscriptions.add(sub);
+        if (sub.isEnded()) {
+            subscriptions.remove(sub);
+        }
+    }
+
+    /**
+     * Check if there are subscribers, so that callers can avoid creating items
+     * nobody will receive.
+     */
+    boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * Publish an item to all subscribers.
+     *
+     * @param key The key used to conflate items, or null.
+     * @param item The item to publish.
+     */
+    void publish(Object key, T item) {
+        for (StreamSubscription sub : subscriptions) {
+            sub.offer(key, item);
+        }
+    }
+
+    /**
+     * Tell the current subscribers that no more items will be published,
+     * after the items already queued for them.
+     */
+    void complete() {
+        for (StreamSubscription sub : subscriptions) {
+            sub.complete();
+        }
+    }
+
+    StreamPublisher(Dispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    private final Dispatcher dispatcher;
+    private final List<StreamSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    private class StreamSubscription implements Flow.Subscription {
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error(new IllegalArgumentException(String.format("Invalid demand %d, demand must be positive", n)));
+                return;
+            }
+            queue.request(n);
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            if (end()) {
+                queue.cancel();
+            }
+        }
+
+        private void offer(Object key, final T item) {
+            boolean connected = queue.offer(key, new Runnable() {
+
+                @Override
+                public void run() {
+                    if (!cancelled) {
+                        subscriber.onNext(item);
+                    }
+                }
+            });
+            if (!connected) {
+                error(new NetworkException(String.format("Subscriber %s disconnected for not keeping up", subscriber)));
+            }
+        }
+
+        /**
+         * signal an error on the subscriber's queue, discarding the items
+         * not yet delivered
+         */
+        private void error(final Throwable ex) {
+            if (end()) {
+                queue.finish(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (!cancelled) {
+                            subscriber.onError(ex);
+                        }
+                    }
+                }, true);
+            }
+        }
+
+        private void complete() {
+            if (end()) {
+                queue.finish(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (!cancelled) {
+                            subscriber.onComplete();
+                        }
+                    }
+                }, false);
+            }
+        }
+
+        /**
+         * stop publishing to the subscriber
+         *
+         * @return False if it was stopped already.
+         */
+        private synchronized boolean end() {
+            if (ended) {
+                return false;
+            }
+            ended = true;
+            subscriptions.remove(this);
+            dispatcher.unregister(this);
+            return true;
+        }
+
+        private synchronized boolean isEnded() {
+            return ended;
+        }
+
+        private StreamSubscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+            this.queue = dispatcher.subscribe(this);
+        }
+
+        private final Flow.Subscriber<? super T> subscriber;
+        private final ListenerQueue queue;
+        private volatile boolean cancelled;
+        private boolean ended;
+    }
+
+}
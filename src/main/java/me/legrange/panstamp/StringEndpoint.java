@@ -1,7 +1,7 @@
 package me.legrange.panstamp;
 
+import java.util.Arrays;
 import me.legrange.panstamp.definition.EndpointDefinition;
-import me.legrange.panstamp.definition.Unit;
 
 /**
  * An endpoint that supports the "str" type from the XML definitions and maps
@@ -12,8 +12,8 @@ import me.legrange.panstamp.definition.Unit;
  */
 final class StringEndpoint extends AbstractEndpoint<String> {
 
-    StringEndpoint(Register reg, EndpointDefinition epDef) {
-        super(reg, epDef);
+    StringEndpoint(Register reg, EndpointDefinition epDef, EndpointCodec codec) {
+        super(reg, epDef, codec);
 
     }
 
@@ -23,23 +23,25 @@ final class StringEndpoint extends AbstractEndpoint<String> {
     }
 
     @Override
-    protected String read(Unit unit) throws NoValueException {
-        byte bytes[] = reg.getValue();
+    Class<String> getValueClass() {
+        return String.class;
+    }
+
+    @Override
+    protected String read(int unit, byte bytes[]) {
         byte keep[] = new byte[epDef.getSize().getBytes()];
         System.arraycopy(bytes, epDef.getPosition().getBytePos(), keep, 0, epDef.getSize().getBytes());
         return new String(keep);
     }
 
     @Override
-    protected void write(Unit unit, String value) throws NetworkException {
+    protected void write(int unit, String value, byte bytes[]) {
         int len = epDef.getSize().getBytes();
         if (value.length() > len) {
             value = value.substring(0, len - 1);
-        } else {
         }
-        byte bytes[] = new byte[len];
-        System.arraycopy(value.getBytes(), 0, bytes, epDef.getPosition().getBytePos(), value.length());
-        reg.setValue(bytes);
+        Arrays.fill(bytes, codec.getBytePos(), codec.getBytePos() + len, (byte) 0);
+        System.arraycopy(value.getBytes(), 0, bytes, codec.getBytePos(), value.length());
     }
 
 }
@@ -1,5 +1,6 @@
 package me.legrange.panstamp;
 
+import java.util.Arrays;
 import me.legrange.panstamp.definition.ParameterDefinition;
 
 /**
@@ -20,6 +21,11 @@ final class StringParameter extends AbstractParameter<String> {
     public Type getType() {
         return Type.STRING;
     }
+
+    @Override
+    Class<String> getValueClass() {
+        return String.class;
+    }
     
    
     @Override
@@ -31,7 +37,7 @@ final class StringParameter extends AbstractParameter<String> {
     }
   
     @Override
-    public void setValue(String value) throws NetworkException {
+    byte[] encode(String value) throws NetworkException {
         int len = par.getSize().getBytes();
         if (value.length() > len) {
             value = value.substring(0, len -1);
@@ -40,7 +46,16 @@ final class StringParameter extends AbstractParameter<String> {
         }
         byte bytes[] = new byte[len];
         System.arraycopy(value.getBytes(), 0, bytes, par.getPosition().getBytePos(), value.length());
-        reg.setValue(bytes);
+        return bytes;
+    }
+
+    @Override
+    void write(String value, byte bytes[]) {
+        byte enc[] = value.getBytes();
+        int pos = par.getPosition().getBytePos();
+        int len = par.getSize().getBytes();
+        Arrays.fill(bytes, pos, pos + len, (byte) 0);
+        System.arraycopy(enc, 0, bytes, pos, Math.min(enc.length, len));
     }
 
     @Override
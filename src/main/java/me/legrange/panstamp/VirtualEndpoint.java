@@ -0,0 +1,461 @@
+package me.legrange.panstamp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import me.legrange.panstamp.definition.Type;
+import me.legrange.panstamp.stream.Flow;
+
+/**
+ * A read-only numeric endpoint calculated from other endpoints with an
+ * expression, such as a dew point from a temperature and humidity. The
+ * expression is compiled once, and the value is calculated again only when
+ * the register of one of its inputs receives a value. If nobody listens to
+ * the endpoint, the value is only calculated when it is read. Virtual
+ * endpoints can be used as inputs of other virtual endpoints.
+ * <p>
+ * Virtual endpoints are created with
+ * {@link PanStamp#addVirtualEndpoint(String, String)} or
+ * {@link Network#addVirtualEndpoint(String, String, Map)}. See
+ * {@link #getExpression()} for the expression syntax. A virtual endpoint
+ * has no register or units, and has no value if any of its inputs has no
+ * value.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public final class VirtualEndpoint implements Endpoint<Double> {
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the expression calculating the value. Supported are numbers, the
+     * operators + - * / % and ^ (power), parentheses and the functions abs,
+     * sqrt, exp, ln, log10, pow, min, max, floor, ceil, round (half up) and
+     * delta. Inputs are referred to by name, with names that are not
+     * identifiers in square brackets, such as <code>[Binary 0]</code>.
+     * <p>
+     * delta(x) is the change of x since the value was last calculated, so
+     * <code>delta([Counter])</code> is the count since the previous update
+     * if someone listens to the endpoint, or since the previous read if not.
+     * It has no value the first time.
+     *
+     * @return The expression.
+     */
+    public String getExpression() {
+        return expr.toString();
+    }
+
+    /**
+     * Get the endpoints the value is calculated from.
+     *
+     * @return The input endpoints.
+     */
+    public List<Endpoint<?>> getInputs() {
+        List<Endpoint<?>> res = new ArrayList<>();
+        Collections.addAll(res, inputs);
+        return res;
+    }
+
+    @Override
+    public Type getType() {
+        return Type.NUMBER;
+    }
+
+    @Override
+    public List<String> getUnits() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public String getUnit() {
+        return "";
+    }
+
+    @Override
+    public void setUnit(String unit) throws NoSuchUnitException {
+        checkUnit(unit);
+    }
+
+    @Override
+    public void addListener(EndpointListener<Double> el) {
+        addListener(el, null);
+    }
+
+    @Override
+    public synchronized void addListener(EndpointListener<Double> el, NotificationFilter filter) {
+        if (filter != null) {
+            filters.put(el, filter.newState());
+        } else {
+            filters.remove(el);
+        }
+        if (listeners.add(el)) {
+            dispatcher.register(el);
+        }
+    }
+
+    @Override
+    public synchronized void removeListener(EndpointListener<Double> el) {
+        if (listeners.remove(el)) {
+            filters.remove(el);
+            dispatcher.unregister(el);
+        }
+    }
+
+    @Override
+    public Flow.Publisher<Double> getPublisher() {
+        StreamPublisher<Double> pub = publisher;
+        if (pub == null) {
+            synchronized (this) {
+                if (publisher == null) {
+                    publisher = new StreamPublisher<>(dispatcher);
+                }
+                pub = publisher;
+            }
+        }
+        return pub;
+    }
+
+    @Override
+    public double getDouble() {
+        return dirty ? calculate() : value;
+    }
+
+    @Override
+    public long getLong() {
+        return (long) getDouble();
+    }
+
+    @Override
+    public boolean getBoolean() {
+        double v = getDouble();
+        return !Double.isNaN(v) && (v != 0);
+    }
+
+    @Override
+    public boolean hasValue() {
+        return !Double.isNaN(getDouble());
+    }
+
+    @Override
+    public Double getValue(String unit) throws NetworkException {
+        checkUnit(unit);
+        return getValue();
+    }
+
+    @Override
+    public Double getValue() throws NetworkException {
+        double v = getDouble();
+        if (Double.isNaN(v)) {
+            throw new NoValueException(String.format("No value available for virtual endpoint '%s'", name));
+        }
+        return v;
+    }
+
+    @Override
+    public Double getValue(long maxAge, TimeUnit unit) throws NetworkException {
+        return requestValue(unit.toMillis(maxAge)).await(queryTime(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Double getValue(long maxAge, long timeout, TimeUnit unit) throws NetworkException {
+        return requestValue(unit.toMillis(maxAge)).await(timeout, unit);
+    }
+
+    @Override
+    public Future<Double> getValueAsync(long maxAge, TimeUnit unit) {
+        return requestValue(unit.toMillis(maxAge));
+    }
+
+    @Override
+    public void setValue(String unit, Double value) throws NetworkException {
+        setValue(value);
+    }
+
+    @Override
+    public void setValue(Double value) throws NetworkException {
+        throw new MoteException(String.format("Virtual endpoint '%s' cannot be set", name));
+    }
+
+    @Override
+    public boolean isOutput() {
+        return false;
+    }
+
+    /**
+     * Virtual endpoints have no register.
+     *
+     * @return null
+     */
+    @Override
+    public Register getRegister() {
+        return null;
+    }
+
+    /**
+     * Virtual endpoints are ordered by name, after all register endpoints.
+     */
+    @Override
+    public int compareTo(Endpoint<Double> o) {
+        if (o.getRegister() != null) {
+            return 1;
+        }
+        return name.compareTo(o.getName());
+    }
+
+    @Override
+    public String toString() {
+        return "VirtualEndpoint{" + "name=" + name + ", expression=" + expr + '}';
+    }
+
+    /**
+     * Create a virtual endpoint. The endpoint does nothing until it is
+     * attached to its inputs.
+     *
+     * @param name The endpoint name.
+     * @param expr The compiled expression.
+     * @param inputs The input endpoints, in the order of the expression's
+     * variables.
+     */
+    VirtualEndpoint(String name, Expression expr, Endpoint<?> inputs[], Dispatcher dispatcher) {
+        this.name = name;
+        this.expr = expr;
+        this.inputs = inputs;
+        this.dispatcher = dispatcher;
+        this.values = new double[inputs.length];
+    }
+
+    /**
+     * Create a virtual endpoint, looking up the inputs of the expression.
+     *
+     * @param inputs The endpoints available as inputs, by name.
+     */
+    static VirtualEndpoint create(String name, Expression expr, Map<String, ? extends Endpoint<?>> inputs, Dispatcher dispatcher) throws EndpointNotFoundException {
+        List<String> vars = expr.getVariables();
+        Endpoint<?> eps[] = new Endpoint<?>[vars.size()];
+        for (int i = 0; i < eps.length; ++i) {
+            eps[i] = inputs.get(vars.get(i));
+            if (eps[i] == null) {
+                throw new EndpointNotFoundException(String.format("Could not find endpoint '%s' used by virtual endpoint '%s'", vars.get(i), name));
+            }
+        }
+        return new VirtualEndpoint(name, expr, eps, dispatcher);
+    }
+
+    /**
+     * Start calculating the value when the inputs change.
+     */
+    void attach() {
+        for (Object source : sources()) {
+            if (source instanceof Register) {
+                ((Register) source).addDependent(this);
+            } else {
+                ((VirtualEndpoint) source).addDependent(this);
+            }
+        }
+    }
+
+    /**
+     * Stop calculating the value and remove all listeners.
+     */
+    void detach() {
+        for (Object source : sources()) {
+            if (source instanceof Register) {
+                ((Register) source).removeDependent(this);
+            } else {
+                ((VirtualEndpoint) source).removeDependent(this);
+            }
+        }
+        for (EndpointListener<Double> l : listeners) {
+            removeListener(l);
+        }
+        completeStreams();
+    }
+
+    /**
+     * Tell the stream subscribers that no more values will be published.
+     */
+    void completeStreams() {
+        StreamPublisher<Double> pub = publisher;
+        if (pub != null) {
+            pub.complete();
+        }
+    }
+
+    /**
+     * One of the inputs changed. The value is calculated now if someone is
+     * listening, otherwise when it is next read.
+     */
+    void inputUpdated() {
+        StreamPublisher<Double> pub = publisher;
+        boolean publish = (pub != null) && pub.hasSubscribers();
+        if (listeners.isEmpty() && !publish) {
+            dirty = true;
+        } else {
+            update(pub, publish);
+        }
+        for (VirtualEndpoint dep : dependents) {
+            dep.inputUpdated();
+        }
+    }
+
+    /**
+     * Calculate the value and send it to the listeners and subscribers. This
+     * is done under one lock, so that concurrent updates are calculated and
+     * delivered in the same order, and each sees the value before it.
+     */
+    private synchronized void update(StreamPublisher<Double> pub, boolean publish) {
+        double before = value;
+        double v = calculate();
+        if (Double.isNaN(v)) {
+            return;
+        }
+        boolean changed = Double.compare(before, v) != 0;
+        Double boxed = v;
+        for (EndpointListener<Double> l : listeners) {
+            FilterState f = filters.get(l);
+            if ((f != null) && !(changed && f.accept(boxed))) {
+                continue;
+            }
+            if (!dispatcher.dispatch(l, this, new AbstractEndpoint.ValueEvent<>(this, l, boxed))) {
+                removeListener(l);
+            }
+        }
+        if (publish) {
+            pub.publish(this, boxed);
+        }
+    }
+
+    synchronized void addDependent(VirtualEndpoint dep) {
+        if (dependents.isEmpty()) {
+            dependents = new CopyOnWriteArraySet<>();
+        }
+        dependents.add(dep);
+    }
+
+    synchronized void removeDependent(VirtualEndpoint dep) {
+        dependents.remove(dep);
+    }
+
+    /**
+     * calculate and cache the value
+     */
+    private synchronized double calculate() {
+        dirty = false;
+        for (int i = 0; i < inputs.length; ++i) {
+            values[i] = inputs[i].getDouble();
+        }
+        value = expr.evaluate(values);
+        return value;
+    }
+
+    /**
+     * Query the inputs that are older than the given age, then calculate the
+     * value.
+     *
+     * @param maxAge The maximum age in milliseconds.
+     * @return The future value.
+     */
+    ResultFuture<Double> requestValue(long maxAge) {
+        final ResultFuture<Double> f = new ResultFuture<>();
+        final AtomicInteger left = new AtomicInteger(inputs.length + 1);
+        final Runnable calculate = new Runnable() {
+
+            @Override
+            public void run() {
+                if (left.decrementAndGet() == 0) {
+                    try {
+                        f.set(getValue());
+                    } catch (NetworkException ex) {
+                        f.fail(ex);
+                    }
+                }
+            }
+        };
+        for (Endpoint<?> ep : inputs) {
+            final ResultFuture<?> in;
+            if (ep instanceof AbstractEndpoint) {
+                in = ((AbstractEndpoint<?>) ep).requestValue(maxAge);
+            } else if (ep instanceof VirtualEndpoint) {
+                in = ((VirtualEndpoint) ep).requestValue(maxAge);
+            } else {
+                calculate.run();
+                continue;
+            }
+            in.whenDone(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        in.await();
+                    } catch (NetworkException ex) {
+                        f.fail(ex);
+                    }
+                    calculate.run();
+                }
+            });
+        }
+        calculate.run();
+        return f;
+    }
+
+    /**
+     * the registers and virtual endpoints the inputs depend on
+     */
+    private Set<Object> sources() {
+        Set<Object> res = new LinkedHashSet<>();
+        for (Endpoint<?> ep : inputs) {
+            Object source = (ep instanceof VirtualEndpoint) ? ep : ep.getRegister();
+            if (source != null) {
+                res.add(source);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * the longest time the queries of the inputs take, as they are made at
+     * the same time
+     */
+    private long queryTime() {
+        long time = 0;
+        for (Endpoint<?> ep : inputs) {
+            if (ep instanceof VirtualEndpoint) {
+                time = Math.max(time, ((VirtualEndpoint) ep).queryTime());
+            } else if (ep.getRegister() != null) {
+                time = Math.max(time, ep.getRegister().getDevice().getNetwork().getQueryTime());
+            }
+        }
+        return time;
+    }
+
+    private void checkUnit(String unit) throws NoSuchUnitException {
+        if ((unit != null) && !unit.trim().isEmpty()) {
+            throw new NoSuchUnitException(String.format("No unit '%s' found for virtual endpoint '%s'", unit, name));
+        }
+    }
+
+    private final String name;
+    private final Expression expr;
+    private final Endpoint<?> inputs[];
+    private final Dispatcher dispatcher;
+    private final double values[];
+    private final Set<EndpointListener<Double>> listeners = new CopyOnWriteArraySet<>();
+    private final Map<EndpointListener<Double>, FilterState> filters = new ConcurrentHashMap<>();
+    private volatile Set<VirtualEndpoint> dependents = Collections.emptySet();
+    private volatile StreamPublisher<Double> publisher;
+    private volatile double value = Double.NaN;
+    private volatile boolean dirty = true;
+
+}
@@ -0,0 +1,118 @@
+package me.legrange.panstamp.stream;
+
+/**
+ * An immutable aggregate of the values received in a time window.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public final class Aggregate {
+
+    /**
+     * Get the start of the window.
+     *
+     * @return The start time in milliseconds since the epoch.
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Get the end of the window. The end is exclusive.
+     *
+     * @return The end time in milliseconds since the epoch.
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * Check if the window is closed. Aggregates emitted for every update are
+     * not final until the window closes.
+     *
+     * @return True if this is the final aggregate for the window.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Get the number of values in the window.
+     *
+     * @return The count.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the sum of the values in the window.
+     *
+     * @return The sum.
+     */
+    public double getSum() {
+        return sum;
+    }
+
+    /**
+     * Get the smallest value in the window.
+     *
+     * @return The minimum, or NaN if the window is empty.
+     */
+    public double getMin() {
+        return min;
+    }
+
+    /**
+     * Get the largest value in the window.
+     *
+     * @return The maximum, or NaN if the window is empty.
+     */
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * Get the mean of the values in the window.
+     *
+     * @return The mean, or NaN if the window is empty.
+     */
+    public double getMean() {
+        return (count > 0) ? sum / count : Double.NaN;
+    }
+
+    /**
+     * Get the last value received in the window.
+     *
+     * @return The last value, or NaN if the window is empty.
+     */
+    public double getLast() {
+        return last;
+    }
+
+    @Override
+    public String toString() {
+        return "Aggregate{" + "start=" + start + ", end=" + end + ", closed=" + closed + ", count=" + count + ", min=" + min + ", max=" + max + ", mean=" + getMean() + ", last=" + last + '}';
+    }
+
+    Aggregate(long start, long end, boolean closed, long count, double sum, double min, double max, double last) {
+        this.start = start;
+        this.end = end;
+        this.closed = closed;
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+        this.last = last;
+    }
+
+    private final long start;
+    private final long end;
+    private final boolean closed;
+    private final long count;
+    private final double sum;
+    private final double min;
+    private final double max;
+    private final double last;
+
+}
@@ -0,0 +1,25 @@
+package me.legrange.panstamp.stream;
+
+/**
+ * Determines when a window aggregator emits aggregates.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public enum Emission {
+
+    /**
+     * Emit an aggregate when a window closes, but only if it received values.
+     */
+    ON_CLOSE,
+    /**
+     * Emit an aggregate every time a window closes, even if it is empty.
+     */
+    ON_CLOSE_INCLUDING_EMPTY,
+    /**
+     * Emit the running aggregate of the current window for every value
+     * received, as well as the final aggregate when the window closes.
+     */
+    ON_UPDATE;
+
+}
@@ -0,0 +1,97 @@
+package me.legrange.panstamp.stream;
+
+/**
+ * Interfaces for reactive streams with demand-driven flow control. These
+ * follow the contract of java.util.concurrent.Flow, which is not available on
+ * the Java versions supported by this library.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public final class Flow {
+
+    /**
+     * A producer of items received by subscribers.
+     *
+     * @param <T> The type of item published.
+     */
+    public interface Publisher<T> {
+
+        /**
+         * Add a subscriber. The subscriber's onSubscribe method is called with
+         * a new subscription before any other signals.
+         *
+         * @param subscriber The subscriber to add.
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * A receiver of items. Items are only delivered after they have been
+     * requested through the subscription.
+     *
+     * @param <T> The type of item received.
+     */
+    public interface Subscriber<T> {
+
+        /**
+         * Called before any other method with the subscription used to
+         * request items.
+         *
+         * @param subscription The new subscription.
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * Called with the next item.
+         *
+         * @param item The item.
+         */
+        void onNext(T item);
+
+        /**
+         * Called if the subscription failed. No further signals follow.
+         *
+         * @param throwable The cause of the failure.
+         */
+        void onError(Throwable throwable);
+
+        /**
+         * Called when no more items will be published. No further signals
+         * follow.
+         */
+        void onComplete();
+    }
+
+    /**
+     * The link between a publisher and a subscriber.
+     */
+    public interface Subscription {
+
+        /**
+         * Request up to n more items.
+         *
+         * @param n The number of items requested. Must be positive.
+         */
+        void request(long n);
+
+        /**
+         * Stop receiving items.
+         */
+        void cancel();
+    }
+
+    /**
+     * A component that is both a subscriber and a publisher, used to build
+     * processing stages.
+     *
+     * @param <T> The type of item received.
+     * @param <R> The type of item published.
+     */
+    public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+    }
+
+    private Flow() {
+    }
+
+}
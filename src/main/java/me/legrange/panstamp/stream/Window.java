@@ -0,0 +1,84 @@
+package me.legrange.panstamp.stream;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A time window over which stream values are aggregated. Tumbling windows are
+ * back-to-back and don't overlap. Sliding windows overlap, with a new window
+ * starting every slide period. The window size of a sliding window must be a
+ * multiple of its slide period.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public final class Window {
+
+    /**
+     * Create a tumbling window.
+     *
+     * @param size The size of the window.
+     * @param unit The unit of the size.
+     * @return The window.
+     */
+    public static Window tumbling(long size, TimeUnit unit) {
+        return sliding(size, size, unit);
+    }
+
+    /**
+     * Create a sliding window.
+     *
+     * @param size The size of the window.
+     * @param slide The time between the start of successive windows.
+     * @param unit The unit of the size and slide.
+     * @return The window.
+     */
+    public static Window sliding(long size, long slide, TimeUnit unit) {
+        long sizeMs = unit.toMillis(size);
+        long slideMs = unit.toMillis(slide);
+        if ((slideMs <= 0) || (sizeMs < slideMs) || (sizeMs % slideMs != 0)) {
+            throw new IllegalArgumentException(String.format("Invalid window of %d ms sliding by %d ms. The size must be a multiple of the slide.", sizeMs, slideMs));
+        }
+        return new Window(sizeMs, slideMs);
+    }
+
+    /**
+     * Get the size of the window.
+     *
+     * @return The size in milliseconds.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Get the time between the start of successive windows.
+     *
+     * @return The slide in milliseconds.
+     */
+    public long getSlide() {
+        return slide;
+    }
+
+    /**
+     * Check if this is a tumbling window.
+     *
+     * @return True if windows don't overlap.
+     */
+    public boolean isTumbling() {
+        return size == slide;
+    }
+
+    @Override
+    public String toString() {
+        return "Window{" + "size=" + size + ", slide=" + slide + '}';
+    }
+
+    private Window(long size, long slide) {
+        this.size = size;
+        this.slide = slide;
+    }
+
+    private final long size;
+    private final long slide;
+
+}
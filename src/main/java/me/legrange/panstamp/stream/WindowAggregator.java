@@ -0,0 +1,394 @@
+package me.legrange.panstamp.stream;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A stream stage that aggregates numeric values over tumbling or sliding time
+ * windows and publishes the count, sum, minimum, maximum, mean and last value
+ * for each window.
+ * <p>
+ * A window is split into panes of one slide period each, and every pane keeps
+ * primitive accumulators, so memory use is constant per aggregator and adding
+ * a value allocates nothing. Subscribe the aggregator to an endpoint
+ * publisher, or feed it directly with {@link #accept(long, double)}.
+ * <p>
+ * If a timer is supplied, windows are closed on time even if no values
+ * arrive. Without a timer, a window closes when the first value after its end
+ * arrives.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public final class WindowAggregator implements Flow.Processor<Number, Aggregate> {
+
+    /**
+     * Create a new aggregator that closes windows when values arrive.
+     *
+     * @param window The window to aggregate over.
+     * @param emission When to emit aggregates.
+     */
+    public WindowAggregator(Window window, Emission emission) {
+        this(window, emission, null);
+    }
+
+    /**
+     * Create a new aggregator that uses the given timer to close windows on
+     * time.
+     *
+     * @param window The window to aggregate over.
+     * @param emission When to emit aggregates.
+     * @param timer The timer used to close windows, or null.
+     */
+    public WindowAggregator(Window window, Emission emission, ScheduledExecutorService timer) {
+        this.window = window;
+        this.emission = emission;
+        this.timer = timer;
+        panes = (int) (window.getSize() / window.getSlide());
+        count = new long[panes];
+        sum = new double[panes];
+        min = new double[panes];
+        max = new double[panes];
+        last = new double[panes];
+        for (int i = 0; i < panes; ++i) {
+            reset(i);
+        }
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        synchronized (this) {
+            if (upstream != null) {
+                subscription.cancel();
+                return;
+            }
+            upstream = subscription;
+            if (timer != null) {
+                long slide = window.getSlide();
+                long now = System.currentTimeMillis();
+                tick = timer.scheduleAtFixedRate(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        advance(System.currentTimeMillis());
+                    }
+                }, slide - (now % slide), slide, TimeUnit.MILLISECONDS);
+            }
+        }
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(Number item) {
+        accept(System.currentTimeMillis(), item.doubleValue());
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        stop();
+        for (Downstream d : subscribers) {
+            d.error(throwable);
+        }
+    }
+
+    @Override
+    public void onComplete() {
+        stop();
+        for (Downstream d : subscribers) {
+            d.complete();
+        }
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Aggregate> subscriber) {
+        Downstream d = new Downstream(subscriber);
+        subscriber.onSubscribe(d);
+        if (!d.cancelled) {
+            subscribers.add(d);
+        }
+    }
+
+    /**
+     * Add a value to the window for the given time.
+     *
+     * @param time The time of the value in milliseconds since the epoch.
+     * @param value The value.
+     */
+    public void accept(long time, double value) {
+        synchronized (this) {
+            advanceTo(time);
+            count[cur]++;
+            sum[cur] += value;
+            if (value < min[cur]) {
+                min[cur] = value;
+            }
+            if (value > max[cur]) {
+                max[cur] = value;
+            }
+            last[cur] = value;
+            if (emission == Emission.ON_UPDATE) {
+                // queued under the lock like closed windows, so a partial
+                // aggregate is never delivered after its window closed
+                publish(aggregate(false));
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Close all windows that ended at or before the given time.
+     *
+     * @param time The time in milliseconds since the epoch.
+     */
+    public void advance(long time) {
+        synchronized (this) {
+            advanceTo(time);
+        }
+        drain();
+    }
+
+    /**
+     * Stop aggregating. The upstream subscription is cancelled and
+     * subscribers are completed.
+     */
+    public void close() {
+        Flow.Subscription up;
+        synchronized (this) {
+            up = upstream;
+        }
+        if (up != null) {
+            up.cancel();
+        }
+        onComplete();
+    }
+
+    /**
+     * Get the window this aggregator works over.
+     *
+     * @return The window.
+     */
+    public Window getWindow() {
+        return window;
+    }
+
+    private void stop() {
+        synchronized (this) {
+            if (tick != null) {
+                tick.cancel(false);
+                tick = null;
+            }
+        }
+    }
+
+    /**
+     * close the windows ending at or before time. Must be called while holding
+     * the lock.
+     */
+    private void advanceTo(long time) {
+        long slide = window.getSlide();
+        if (paneStart == Long.MIN_VALUE) {
+            paneStart = time - (time % slide);
+            return;
+        }
+        while (time >= paneStart + slide) {
+            if (isIdle() && (emission != Emission.ON_CLOSE_INCLUDING_EMPTY)) {
+                // nothing to emit for any window in between, skip ahead
+                paneStart = time - (time % slide);
+                return;
+            }
+            closeWindow();
+            paneStart += slide;
+            cur = (cur + 1) % panes;
+            reset(cur);
+        }
+    }
+
+    private boolean isIdle() {
+        for (int i = 0; i < panes; ++i) {
+            if (count[i] > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void closeWindow() {
+        Aggregate agg = aggregate(true);
+        if ((agg.getCount() > 0) || (emission == Emission.ON_CLOSE_INCLUDING_EMPTY)) {
+            publish(agg);
+        }
+    }
+
+    /**
+     * combine the panes into an aggregate for the window ending with the
+     * current pane
+     */
+    private Aggregate aggregate(boolean closed) {
+        long c = 0;
+        double s = 0;
+        double mn = Double.POSITIVE_INFINITY;
+        double mx = Double.NEGATIVE_INFINITY;
+        double l = Double.NaN;
+        for (int i = 1; i <= panes; ++i) {
+            int p = (cur + i) % panes; // oldest pane first
+            if (count[p] > 0) {
+                c += count[p];
+                s += sum[p];
+                mn = Math.min(mn, min[p]);
+                mx = Math.max(mx, max[p]);
+                l = last[p];
+            }
+        }
+        long end = paneStart + window.getSlide();
+        if (c == 0) {
+            mn = Double.NaN;
+            mx = Double.NaN;
+        }
+        return new Aggregate(end - window.getSize(), end, closed, c, s, mn, mx, l);
+    }
+
+    private void reset(int p) {
+        count[p] = 0;
+        sum[p] = 0;
+        min[p] = Double.POSITIVE_INFINITY;
+        max[p] = Double.NEGATIVE_INFINITY;
+        last[p] = Double.NaN;
+    }
+
+    /**
+     * queue an aggregate for the subscribers. Must be called while holding
+     * the lock, so that aggregates are queued in the order they were made.
+     */
+    private void publish(Aggregate agg) {
+        for (Downstream d : subscribers) {
+            d.offer(agg);
+        }
+    }
+
+    private void drain() {
+        for (Downstream d : subscribers) {
+            d.drain();
+        }
+    }
+
+    private static final int BUFFER_SIZE = 64;
+    private final Window window;
+    private final Emission emission;
+    private final ScheduledExecutorService timer;
+    private final int panes;
+    private final long count[];
+    private final double sum[];
+    private final double min[];
+    private final double max[];
+    private final double last[];
+    private int cur;
+    private long paneStart = Long.MIN_VALUE;
+    private Flow.Subscription upstream;
+    private ScheduledFuture<?> tick;
+    private final List<Downstream> subscribers = new CopyOnWriteArrayList<>();
+    private static final Logger logger = Logger.getLogger(WindowAggregator.class.getName());
+
+    /**
+     * A subscription for a downstream subscriber. Aggregates are buffered
+     * until requested, dropping the oldest if the subscriber falls behind.
+     */
+    private class Downstream implements Flow.Subscription {
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException(String.format("Invalid demand %d, demand must be positive", n)));
+                return;
+            }
+            synchronized (this) {
+                demand = demand + n;
+                if (demand < 0) {
+                    demand = Long.MAX_VALUE;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscribers.remove(this);
+        }
+
+        private synchronized void offer(Aggregate agg) {
+            if (buffer.size() >= BUFFER_SIZE) {
+                buffer.removeFirst();
+                logger.warning(String.format("Subscriber %s is not keeping up, dropped an aggregate", subscriber));
+            }
+            buffer.addLast(agg);
+        }
+
+        /**
+         * deliver requested aggregates. Only one thread drains at a time, and
+         * re-entrant calls from the subscriber return immediately.
+         */
+        private void drain() {
+            synchronized (this) {
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+            try {
+                while (true) {
+                    Aggregate agg;
+                    synchronized (this) {
+                        if (cancelled || (demand == 0) || buffer.isEmpty()) {
+                            draining = false;
+                            return;
+                        }
+                        agg = buffer.removeFirst();
+                        if (demand != Long.MAX_VALUE) {
+                            demand--;
+                        }
+                    }
+                    subscriber.onNext(agg);
+                }
+            } catch (RuntimeException ex) {
+                logger.log(Level.SEVERE, String.format("Subscriber %s threw an exception, cancelling", subscriber), ex);
+                synchronized (this) {
+                    draining = false;
+                }
+                cancel();
+            }
+        }
+
+        private void complete() {
+            drain();
+            if (!cancelled) {
+                cancel();
+                subscriber.onComplete();
+            }
+        }
+
+        private void error(Throwable throwable) {
+            if (!cancelled) {
+                cancel();
+                subscriber.onError(throwable);
+            }
+        }
+
+        private Downstream(Flow.Subscriber<? super Aggregate> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        private final Flow.Subscriber<? super Aggregate> subscriber;
+        private final ArrayDeque<Aggregate> buffer = new ArrayDeque<>();
+        private long demand;
+        private boolean draining;
+        private volatile boolean cancelled;
+    }
+
+}
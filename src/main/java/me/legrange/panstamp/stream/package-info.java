@@ -0,0 +1,12 @@
+/**
+ * Reactive streams of data received from a panStamp network.
+ * <p>
+ * Application developers can subscribe to the publishers supplied by the network 
+ * and its endpoints to consume data at their own rate. The interfaces in Flow 
+ * follow the same contract as java.util.concurrent.Flow so that they can easily 
+ * be adapted to other reactive libraries. 
+ * 
+ * @see me.legrange.panstamp.Network
+ * @since 2.2
+ */
+package me.legrange.panstamp.stream;
@@ -0,0 +1,296 @@
+package me.legrange.panstamp.xml;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import me.legrange.panstamp.definition.DefinitionException;
+import me.legrange.panstamp.definition.DeviceDefinition;
+import me.legrange.panstamp.definition.EndpointDefinition;
+import me.legrange.panstamp.definition.RegisterDefinition;
+import me.legrange.panstamp.definition.Unit;
+
+/**
+ * Generates typed accessor classes from XML device definitions. For every
+ * device a class extending {@link me.legrange.panstamp.DeviceAccessor} is
+ * generated, with a method per endpoint that reads the value in the
+ * endpoint's default unit directly from the register bytes, for example
+ * {@code double temperature()}. Byte positions, sizes and unit coefficients
+ * are fixed in the generated code, so reading a value involves no lookups.
+ * <p>
+ * Classes are generated in a sub-package per developer. Run it with:
+ * <pre>
+ * java me.legrange.panstamp.xml.AccessorGenerator output-dir package [device-dir]
+ * </pre>
+ * If no device directory is given, the definitions bundled with the library
+ * are used. The generator is also bound to the 'accessors' Maven profile.
+ *
+ * @since 2.2
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public final class AccessorGenerator {
+
+    public static void main(String[] args) throws Exception {
+        if ((args.length < 2) || (args.length > 3)) {
+            System.err.println("Usage: AccessorGenerator output-dir package [device-dir]");
+            System.exit(1);
+        }
+        XmlDeviceLibrary lib = (args.length == 3) ? new FileLibrary(new File(args[2])) : new ClassLoaderLibrary();
+        AccessorGenerator gen = new AccessorGenerator(new File(args[0]), args[1]);
+        int count = gen.generate(lib);
+        System.out.printf("Generated %d device accessors in %s\n", count, args[0]);
+    }
+
+    /**
+     * Create a new generator.
+     *
+     * @param dir The source directory to write classes to.
+     * @param pkg The base package for the generated classes.
+     */
+    public AccessorGenerator(File dir, String pkg) {
+        this.dir = dir;
+        this.pkg = pkg;
+    }
+
+    /**
+     * Generate accessors for all the devices in a library.
+     *
+     * @param lib The library to read definitions from.
+     * @return The number of classes generated.
+     * @throws DefinitionException Thrown if the definitions cannot be parsed.
+     * @throws IOException Thrown if a class cannot be written.
+     */
+    int generate(XmlDeviceLibrary lib) throws DefinitionException, IOException {
+        int count = 0;
+        for (DeviceDefinition def : XmlParser.parse(lib)) {
+            generate(def);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Generate the accessor for one device.
+     *
+     * @param def The device definition.
+     * @throws IOException Thrown if the class cannot be written.
+     */
+    public void generate(DeviceDefinition def) throws IOException {
+        String devPkg = pkg + "." + identifier(def.getDeveloper().getName(), false).toLowerCase();
+        String cls = identifier(def.getName(), true);
+        File out = new File(dir, devPkg.replace('.', File.separatorChar));
+        if (!out.isDirectory() && !out.mkdirs()) {
+            throw new IOException(String.format("Cannot create directory '%s'", out.getAbsolutePath()));
+        }
+        Map<Integer, RegisterDefinition> regs = new TreeMap<>();
+        for (RegisterDefinition reg : def.getRegisters()) {
+            regs.put(reg.getId(), reg);
+        }
+        try (PrintWriter w = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(out, cls + ".java")), StandardCharsets.UTF_8))) {
+            w.printf("package %s;\n\n", devPkg);
+            w.println("import me.legrange.panstamp.DeviceAccessor;");
+            w.println("import me.legrange.panstamp.NetworkException;");
+            w.println("import me.legrange.panstamp.PanStamp;");
+            w.println("import me.legrange.panstamp.Register;");
+            w.println();
+            w.println("/**");
+            w.printf(" * Typed accessor for the %s %s.\n", escape(def.getDeveloper().getName()), escape(def.getLabel()));
+            w.println(" * <p>");
+            w.println(" * Generated by AccessorGenerator from the XML device definition. Do not edit.");
+            w.println(" */");
+            w.printf("public final class %s extends DeviceAccessor {\n\n", cls);
+            w.printf("    public static final int MANUFACTURER_ID = %d;\n", def.getDeveloper().getId());
+            w.printf("    public static final int PRODUCT_ID = %d;\n\n", def.getId());
+            w.println("    /**");
+            w.println("     * Check if a device is of the product this accessor was generated for.");
+            w.println("     *");
+            w.println("     * @param dev The device to check.");
+            w.println("     * @return True if the device matches.");
+            w.println("     * @throws NetworkException Thrown if the device's product is not known.");
+            w.println("     */");
+            w.println("    public static boolean matches(PanStamp dev) throws NetworkException {");
+            w.println("        return (dev.getManufacturerId() == MANUFACTURER_ID) && (dev.getProductId() == PRODUCT_ID);");
+            w.println("    }\n");
+            w.println("    /**");
+            w.println("     * Create an accessor for the given device. Registers are looked up");
+            w.println("     * when they are first read.");
+            w.println("     *");
+            w.println("     * @param dev The device to read from.");
+            w.println("     */");
+            w.printf("    public %s(PanStamp dev) {\n", cls);
+            w.println("        super(dev);");
+            w.println("    }");
+            Set<String> used = new HashSet<>(RESERVED);
+            for (int id : regs.keySet()) {
+                used.add(String.format("reg%d", id));
+            }
+            Set<String> duplicate = duplicateNames(regs.values());
+            for (RegisterDefinition reg : regs.values()) {
+                for (EndpointDefinition ep : reg.getEndpoints()) {
+                    String name = identifier(ep.getName(), false);
+                    if (duplicate.contains(name) || used.contains(name)) {
+                        name = name + reg.getId();
+                    }
+                    while (used.contains(name)) {
+                        name = name + "_";
+                    }
+                    used.add(name);
+                    w.println();
+                    writeMethod(w, name, reg, ep);
+                }
+            }
+            for (int id : regs.keySet()) {
+                w.println();
+                w.printf("    private Register reg%d() {\n", id);
+                w.printf("        Register reg = reg%d;\n", id);
+                w.println("        if (reg == null) {");
+                w.printf("            reg = getDevice().getRegister(%d);\n", id);
+                w.printf("            reg%d = reg;\n", id);
+                w.println("        }");
+                w.println("        return reg;");
+                w.println("    }");
+            }
+            w.println();
+            for (int id : regs.keySet()) {
+                w.printf("    private volatile Register reg%d;\n", id);
+            }
+            w.println();
+            w.println("}");
+        }
+    }
+
+    private void writeMethod(PrintWriter w, String name, RegisterDefinition reg, EndpointDefinition ep) {
+        int pos = ep.getPosition().getBytePos();
+        int size = ep.getSize().getBytes();
+        List<Unit> units = ep.getUnits();
+        Unit unit = units.isEmpty() ? null : units.get(0);
+        String scaled = (unit != null)
+                ? String.format("raw(v, %d, %d) * %s%s", pos, size, literal(unit.getFactor()), offset(unit.getOffset()))
+                : null;
+        String type;
+        String missing;
+        String expr;
+        switch (ep.getType()) {
+            case NUMBER:
+                type = "double";
+                missing = "Double.NaN";
+                expr = (scaled != null) ? scaled : String.format("(double) raw(v, %d, %d)", pos, size);
+                break;
+            case INTEGER:
+                type = "int";
+                missing = "0";
+                expr = (scaled != null) ? String.format("(int) (%s)", scaled) : String.format("(int) raw(v, %d, %d)", pos, size);
+                break;
+            case BINARY:
+                type = "boolean";
+                missing = "false";
+                expr = String.format("bit(v, %d, 0x%02x)", pos, 1 << ep.getPosition().getBitPos());
+                break;
+            case STRING:
+                type = "String";
+                missing = "null";
+                expr = String.format("string(v, %d, %d)", pos, size);
+                break;
+            case BSTRING:
+                type = "byte[]";
+                missing = "null";
+                expr = String.format("java.util.Arrays.copyOfRange(v, %d, %d)", pos, pos + size);
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("Unknown end point type '%s'. BUG!", ep.getType()));
+        }
+        w.println("    /**");
+        w.printf("     * Read '%s' from register %d (%s)%s.\n", escape(ep.getName()), reg.getId(), escape(reg.getName()),
+                (unit != null) ? String.format(" in %s", escape(unit.getName())) : "");
+        w.println("     *");
+        w.printf("     * @return The value, or %s if no value is known.\n", missing);
+        w.println("     */");
+        w.printf("    public %s %s() {\n", type, name);
+        w.printf("        byte v[] = value(reg%d());\n", reg.getId());
+        w.printf("        return (v != null) ? %s : %s;\n", expr, missing);
+        w.println("    }");
+    }
+
+    /**
+     * find endpoint names that are used in more than one register
+     */
+    private Set<String> duplicateNames(Iterable<RegisterDefinition> regs) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (RegisterDefinition reg : regs) {
+            for (EndpointDefinition ep : reg.getEndpoints()) {
+                String name = identifier(ep.getName(), false);
+                Integer c = counts.get(name);
+                counts.put(name, (c == null) ? 1 : c + 1);
+            }
+        }
+        Set<String> res = new HashSet<>();
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            if (e.getValue() > 1) {
+                res.add(e.getKey());
+            }
+        }
+        return res;
+    }
+
+    /**
+     * turn a name from XML into a Java identifier in camel case
+     */
+    private static String identifier(String text, boolean upper) {
+        StringBuilder buf = new StringBuilder();
+        boolean up = upper;
+        for (char c : text.toCharArray()) {
+            if (Character.isLetterOrDigit(c) && (c < 128)) {
+                if (buf.length() == 0) {
+                    buf.append(upper ? Character.toUpperCase(c) : Character.toLowerCase(c));
+                } else {
+                    buf.append(up ? Character.toUpperCase(c) : c);
+                }
+                up = false;
+            } else {
+                up = true;
+            }
+        }
+        if ((buf.length() == 0) || !Character.isJavaIdentifierStart(buf.charAt(0))) {
+            buf.insert(0, upper ? "D" : "v");
+        }
+        String res = buf.toString();
+        return KEYWORDS.contains(res) ? res + "_" : res;
+    }
+
+    private static String literal(double d) {
+        return Double.toString(d);
+    }
+
+    private static String offset(double d) {
+        if (d == 0) {
+            return "";
+        }
+        return (d < 0) ? " - " + literal(-d) : " + " + literal(d);
+    }
+
+    private static String escape(String text) {
+        return text.replace("*/", "* /").replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private final File dir;
+    private final String pkg;
+    /* no-argument methods the generated classes inherit */
+    private static final Set<String> RESERVED = new HashSet<>(Arrays.asList("getDevice", "getClass", "hashCode", "toString",
+            "notify", "notifyAll", "wait", "clone", "finalize"));
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList("abstract", "assert", "boolean", "break", "byte",
+            "case", "catch", "char", "class", "const", "continue", "default", "do", "double", "else", "enum", "extends",
+            "false", "final", "finally", "float", "for", "goto", "if", "implements", "import", "instanceof", "int",
+            "interface", "long", "native", "new", "null", "package", "private", "protected", "public", "return", "short",
+            "static", "strictfp", "super", "switch", "synchronized", "this", "throw", "throws", "transient", "true", "try",
+            "void", "volatile", "while"));
+
+}
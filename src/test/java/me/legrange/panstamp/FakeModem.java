@@ -0,0 +1,100 @@
+package me.legrange.panstamp;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import me.legrange.swap.MessageListener;
+import me.legrange.swap.ModemSetup;
+import me.legrange.swap.SwapException;
+import me.legrange.swap.SwapMessage;
+import me.legrange.swap.SwapModem;
+import me.legrange.swap.UserMessage;
+
+/**
+ * A modem that records the messages sent and receives the status messages
+ * the test gives it.
+ *
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+class FakeModem implements SwapModem {
+
+    @Override
+    public void open() {
+        open = true;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void send(SwapMessage msg) throws SwapException {
+        if (failing) {
+            throw new SwapException("The modem is failing");
+        }
+        sent.add(msg);
+        for (MessageListener l : listeners) {
+            l.messageSent(msg);
+        }
+    }
+
+    @Override
+    public void addListener(MessageListener l) {
+        listeners.add(l);
+    }
+
+    @Override
+    public void removeListener(MessageListener l) {
+        listeners.remove(l);
+    }
+
+    @Override
+    public ModemSetup getSetup() {
+        return new ModemSetup(0, 0xB547, 1);
+    }
+
+    @Override
+    public void setSetup(ModemSetup setup) {
+    }
+
+    @Override
+    public Type getType() {
+        return Type.SERIAL;
+    }
+
+    /**
+     * Receive a status message from a device.
+     */
+    void status(int address, int register, byte... value) {
+        UserMessage msg = new UserMessage(false, SwapMessage.Type.STATUS, address, 0xFF, register, value);
+        msg.setRegisterAddress(address);
+        for (MessageListener l : listeners) {
+            l.messageReceived(msg);
+        }
+    }
+
+    /**
+     * Get the value of the last message sent.
+     */
+    byte[] lastSent() {
+        return sent.isEmpty() ? null : sent.get(sent.size() - 1).getRegisterValue();
+    }
+
+    /**
+     * Make sending messages fail, or work again.
+     */
+    void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    final List<SwapMessage> sent = new CopyOnWriteArrayList<>();
+    private final List<MessageListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean open;
+    private volatile boolean failing;
+
+}
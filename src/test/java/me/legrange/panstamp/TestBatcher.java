@@ -0,0 +1,148 @@
+package me.legrange.panstamp;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for batch listeners, using the temperature and humidity register of a
+ * temphum device.
+ *
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public class TestBatcher {
+
+    @Before
+    public void setUp() throws Exception {
+        nw = Network.create(modem);
+        nw.open();
+        modem.status(ADDRESS, 0, new byte[]{0, 0, 0, 1, 0, 0, 0, 1});
+        long end = System.currentTimeMillis() + 5000;
+        while (!nw.hasDevice(ADDRESS) || !nw.getDevice(ADDRESS).getRegister(12).hasEndpoint("Temperature")) {
+            assertTrue("device was not identified", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        nw.close();
+    }
+
+    @Test
+    public void testFullBatch() throws Exception {
+        Collector<RegisterUpdate> c = new Collector<>();
+        nw.addRegisterBatchListener(c, 3, 1, TimeUnit.HOURS);
+        for (int i = 1; i <= 4; ++i) {
+            modem.status(ADDRESS, 12, (byte) 0, (byte) i, (byte) 0, (byte) 0);
+        }
+        List<List<RegisterUpdate>> batches = c.await(1);
+        assertEquals(3, batches.get(0).size());
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(i + 1, batches.get(0).get(i).getValue()[1]);
+        }
+        Thread.sleep(100);
+        assertEquals("the fourth update waits for its batch", 1, c.batches().size());
+    }
+
+    @Test
+    public void testDelay() throws Exception {
+        Collector<RegisterUpdate> c = new Collector<>();
+        nw.addRegisterBatchListener(c, 100, 50, TimeUnit.MILLISECONDS);
+        modem.status(ADDRESS, 12, (byte) 0, (byte) 1, (byte) 0, (byte) 0);
+        List<List<RegisterUpdate>> batches = c.await(1);
+        assertEquals(1, batches.get(0).size());
+        assertEquals(12, batches.get(0).get(0).getRegisterId());
+    }
+
+    @Test
+    public void testRemoveDeliversCollected() throws Exception {
+        Collector<RegisterUpdate> c = new Collector<>();
+        nw.addRegisterBatchListener(c, 100, 1, TimeUnit.HOURS);
+        modem.status(ADDRESS, 12, (byte) 0, (byte) 1, (byte) 0, (byte) 0);
+        Thread.sleep(100);
+        assertTrue(c.batches().isEmpty());
+        nw.removeBatchListener(c);
+        assertEquals(1, c.await(1).get(0).size());
+    }
+
+    @Test
+    public void testEndpointsInDefaultUnit() throws Exception {
+        Endpoint<Double> temp = nw.getDevice(ADDRESS).getRegister(12).getEndpoint("Temperature");
+        temp.setUnit("K");
+        temp.addListener(new EndpointListener<Double>() {
+
+            @Override
+            public void valueReceived(Endpoint<Double> ep, Double value) {
+            }
+        });
+        Collector<EndpointUpdate> c = new Collector<>();
+        nw.addEndpointBatchListener(c, 2, 1, TimeUnit.HOURS);
+        // 700 is 20 C and 500 is 50 %
+        modem.status(ADDRESS, 12, (byte) 0x02, (byte) 0xBC, (byte) 0x01, (byte) 0xF4);
+        List<EndpointUpdate> batch = c.await(1).get(0);
+        assertEquals("Temperature", batch.get(0).getName());
+        assertEquals("C", batch.get(0).getUnit());
+        assertEquals(20.0, (Double) batch.get(0).getValue(), 1e-9);
+        assertEquals("Humidity", batch.get(1).getName());
+        assertEquals(50.0, (Double) batch.get(1).getValue(), 1e-9);
+        assertEquals("the endpoint keeps its own unit", 293.15, temp.getDouble(), 1e-9);
+    }
+
+    @Test
+    public void testBlockPolicy() throws Exception {
+        Collector<RegisterUpdate> c = new Collector<>();
+        nw.addRegisterBatchListener(c, 1, 1, TimeUnit.HOURS);
+        assertEquals(OverflowPolicy.BLOCK, status(c).getPolicy());
+        nw.configureListener(c, 10, OverflowPolicy.DROP_OLDEST);
+        assertEquals(OverflowPolicy.DROP_OLDEST, status(c).getPolicy());
+    }
+
+    private ListenerStatus status(Object l) {
+        for (ListenerStatus st : nw.getListenerStatus()) {
+            if (st.getListener() == l) {
+                return st;
+            }
+        }
+        fail("listener is not registered");
+        return null;
+    }
+
+    /**
+     * A batch listener that records the batches it receives.
+     */
+    private static final class Collector<U> implements BatchListener<U> {
+
+        @Override
+        public synchronized void updatesReceived(Network nw, List<U> updates) {
+            batches.add(updates);
+            notifyAll();
+        }
+
+        synchronized List<List<U>> batches() {
+            return new ArrayList<>(batches);
+        }
+
+        synchronized List<List<U>> await(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 2000;
+            while (batches.size() < count) {
+                long left = end - System.currentTimeMillis();
+                assertTrue("batches were not delivered", left > 0);
+                wait(left);
+            }
+            return new ArrayList<>(batches);
+        }
+
+        private final List<List<U>> batches = new ArrayList<>();
+    }
+
+    private Network nw;
+    private final FakeModem modem = new FakeModem();
+    private static final int ADDRESS = 5;
+
+}
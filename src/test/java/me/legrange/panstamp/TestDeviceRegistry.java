@@ -0,0 +1,99 @@
+package me.legrange.panstamp;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Tests for the address indexed device registry.
+ *
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public class TestDeviceRegistry {
+
+    @Test
+    public void testStandardAddress() throws NetworkException {
+        PanStamp dev = device(5);
+        assertNull(reg.putIfAbsent(dev));
+        assertSame(dev, reg.get(5));
+        assertNull(reg.get(6));
+    }
+
+    @Test
+    public void testExtendedAddress() throws NetworkException {
+        PanStamp low = device(300);
+        PanStamp high = device(0xFFFF);
+        assertNull(reg.putIfAbsent(low));
+        assertNull(reg.putIfAbsent(high));
+        assertSame(low, reg.get(300));
+        assertSame(high, reg.get(0xFFFF));
+        assertNull(reg.get(301));
+        assertNull(reg.get(0x1000));
+    }
+
+    @Test
+    public void testPutIfAbsentKeepsExisting() throws NetworkException {
+        PanStamp first = device(300);
+        assertNull(reg.putIfAbsent(first));
+        assertSame(first, reg.putIfAbsent(device(300)));
+        assertSame(first, reg.get(300));
+    }
+
+    @Test
+    public void testPutReplaces() throws NetworkException {
+        PanStamp first = device(7);
+        PanStamp second = device(7);
+        assertNull(reg.put(first));
+        assertSame(first, reg.put(second));
+        assertSame(second, reg.get(7));
+    }
+
+    @Test
+    public void testRemove() throws NetworkException {
+        PanStamp dev = device(7);
+        PanStamp ext = device(0x1234);
+        reg.put(dev);
+        reg.put(ext);
+        assertSame(dev, reg.remove(7));
+        assertSame(ext, reg.remove(0x1234));
+        assertNull(reg.get(7));
+        assertNull(reg.get(0x1234));
+        assertNull(reg.remove(7));
+        assertNull(reg.remove(0x2345));
+    }
+
+    @Test
+    public void testOutOfRange() {
+        assertNull(reg.get(-1));
+        assertNull(reg.get(0x10000));
+        assertNull(reg.remove(-1));
+        assertNull(reg.remove(0x10000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidAddress() throws NetworkException {
+        reg.putIfAbsent(device(0x10000));
+    }
+
+    @Test
+    public void testValuesInAddressOrder() throws NetworkException {
+        int addresses[] = {0x1234, 5, 300, 0xFFFF, 0, 255, 256};
+        for (int address : addresses) {
+            reg.put(device(address));
+        }
+        List<Integer> found = new ArrayList<>();
+        for (PanStamp dev : reg.values()) {
+            found.add(dev.getAddress());
+        }
+        assertEquals("[0, 5, 255, 256, 300, 4660, 65535]", found.toString());
+    }
+
+    private PanStamp device(int address) throws NetworkException {
+        return new PanStamp(null, address);
+    }
+
+    private final DeviceRegistry reg = new DeviceRegistry();
+
+}
@@ -0,0 +1,189 @@
+package me.legrange.panstamp;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+import me.legrange.swap.SwapMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for reading endpoint values of a maximum age, using the AC frequency
+ * of a meter device, which stays on, and the temperature of a temphum device,
+ * which is powered down.
+ *
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public class TestEndpointValue {
+
+    @Before
+    public void setUp() throws Exception {
+        nw = Network.create(modem);
+        nw.open();
+        modem.status(METER, 0, new byte[]{0, 0, 0, 1, 0, 0, 0, 11});
+        modem.status(TEMPHUM, 0, new byte[]{0, 0, 0, 1, 0, 0, 0, 1});
+        long end = System.currentTimeMillis() + 5000;
+        while (!nw.hasDevice(METER) || !nw.getDevice(METER).getRegister(11).hasEndpoint("AC frequency 0")
+                || !nw.hasDevice(TEMPHUM) || !nw.getDevice(TEMPHUM).getRegister(12).hasEndpoint("Temperature")) {
+            assertTrue("devices were not identified", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+        freq = nw.getDevice(METER).getRegister(11).getEndpoint("AC frequency 0");
+        temp = nw.getDevice(TEMPHUM).getRegister(12).getEndpoint("Temperature");
+        nw.setQueryTimeout(100, TimeUnit.MILLISECONDS);
+        nw.setQueryRetries(1);
+        modem.sent.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        nw.close();
+    }
+
+    @Test
+    public void testFresh() throws Exception {
+        frequency(50);
+        assertEquals(50.0, (Double) freq.getValue(1, TimeUnit.MINUTES), 0);
+        assertEquals(50.0, (Double) freq.getValue(1, 0, TimeUnit.MINUTES), 0);
+        assertEquals("a fresh value is not queried", 0, queries(11));
+    }
+
+    @Test
+    public void testStale() throws Exception {
+        frequency(50);
+        answerQuery(11, 60);
+        assertEquals(60.0, (Double) freq.getValue(0, TimeUnit.MILLISECONDS), 0);
+        assertEquals(1, queries(11));
+    }
+
+    @Test
+    public void testStaleWithoutAnswer() throws Exception {
+        frequency(50);
+        long start = System.currentTimeMillis();
+        try {
+            freq.getValue(0, 60000, TimeUnit.MILLISECONDS);
+            fail("the device did not answer");
+        } catch (NetworkException ex) {
+            assertTrue(ex.getMessage().contains("No answer"));
+        }
+        assertTrue("the query and its retry take 300 ms", System.currentTimeMillis() - start < 2000);
+        assertEquals(2, queries(11));
+    }
+
+    @Test
+    public void testSleeper() throws Exception {
+        long start = System.currentTimeMillis();
+        try {
+            temp.getValue(0, TimeUnit.MILLISECONDS);
+            fail("the device did not wake up");
+        } catch (NetworkException ex) {
+            assertTrue(ex.getMessage().contains("Timed out"));
+        }
+        assertTrue("the wait is as long as the query and its retry", System.currentTimeMillis() - start < 2000);
+        assertEquals("the query is held", 0, queries(12));
+        try {
+            temp.getValue(0, 100, TimeUnit.MILLISECONDS);
+            fail("the device did not wake up");
+        } catch (NetworkException ex) {
+            assertTrue(ex.getMessage().contains("Timed out"));
+        }
+    }
+
+    @Test
+    public void testSleeperWakesUp() throws Exception {
+        new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(500);
+                    modem.status(TEMPHUM, 3, (byte) 3);
+                    waitForQuery(12);
+                    // 700 is 20 C
+                    modem.status(TEMPHUM, 12, (byte) 0x02, (byte) 0xBC, (byte) 0x01, (byte) 0xF4);
+                } catch (InterruptedException ex) {
+                }
+            }
+        }.start();
+        assertEquals("the query is sent once the device wakes up", 20.0, (Double) temp.getValue(0, 5000, TimeUnit.MILLISECONDS), 1e-9);
+    }
+
+    @Test
+    public void testVirtualEndpoint() throws Exception {
+        VirtualEndpoint vep = nw.getDevice(TEMPHUM).addVirtualEndpoint("Double", "Temperature * 2");
+        try {
+            vep.getValue(0, 100, TimeUnit.MILLISECONDS);
+            fail("the device did not wake up");
+        } catch (NetworkException ex) {
+            assertTrue(ex.getMessage().contains("Timed out"));
+        }
+        try {
+            vep.getValue(0, TimeUnit.MILLISECONDS);
+            fail("the device did not wake up");
+        } catch (NetworkException ex) {
+            assertTrue(ex.getMessage().contains("Timed out"));
+        }
+        modem.status(TEMPHUM, 12, (byte) 0x02, (byte) 0xBC, (byte) 0x01, (byte) 0xF4);
+        long end = System.currentTimeMillis() + 2000;
+        while (!temp.hasValue()) {
+            assertTrue("status was not received", System.currentTimeMillis() < end);
+            Thread.sleep(5);
+        }
+        assertEquals(40.0, vep.getValue(1, 0, TimeUnit.MINUTES), 1e-9);
+    }
+
+    /**
+     * receive an AC frequency and wait for the endpoint to take it
+     */
+    private void frequency(int hz) throws Exception {
+        modem.status(METER, 11, new byte[]{(byte) hz, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+        long end = System.currentTimeMillis() + 2000;
+        while (freq.getDouble() != hz) {
+            assertTrue("status was not received", System.currentTimeMillis() < end);
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * answer the next query for a register of the meter with an AC frequency
+     */
+    private void answerQuery(final int id, final int hz) {
+        new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    waitForQuery(id);
+                    modem.status(METER, id, new byte[]{(byte) hz, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+                } catch (InterruptedException ex) {
+                }
+            }
+        }.start();
+    }
+
+    private void waitForQuery(int id) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while ((queries(id) == 0) && (System.currentTimeMillis() < end)) {
+            Thread.sleep(5);
+        }
+    }
+
+    private int queries(int id) {
+        int count = 0;
+        for (SwapMessage msg : modem.sent) {
+            if ((msg.getType() == SwapMessage.Type.QUERY) && (msg.getRegisterID() == id)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private Network nw;
+    private Endpoint<Double> freq;
+    private Endpoint<Double> temp;
+    private final FakeModem modem = new FakeModem();
+    private static final int METER = 9;
+    private static final int TEMPHUM = 5;
+
+}
@@ -0,0 +1,108 @@
+package me.legrange.panstamp;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for parsing and evaluating virtual endpoint expressions.
+ *
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public class TestExpression {
+
+    @Test
+    public void testPrecedence() {
+        assertEquals(7, eval("1 + 2 * 3"), 0);
+        assertEquals(9, eval("(1 + 2) * 3"), 0);
+        assertEquals(1, eval("10 - 4 - 5"), 0);
+        assertEquals(2, eval("12 / 3 / 2"), 0);
+        assertEquals(5, eval("1 + 9 % 5"), 0);
+    }
+
+    @Test
+    public void testPower() {
+        assertEquals(512, eval("2 ^ 3 ^ 2"), 0);
+        assertEquals(-4, eval("-2 ^ 2"), 0);
+        assertEquals(18, eval("2 * 3 ^ 2"), 0);
+        assertEquals(0.25, eval("2 ^ -2"), 0);
+    }
+
+    @Test
+    public void testNumbers() {
+        assertEquals(1500, eval("1.5e3"), 0);
+        assertEquals(0.5, eval(".5"), 0);
+        assertEquals(3, eval("+3"), 0);
+    }
+
+    @Test
+    public void testFunctions() {
+        assertEquals(3, eval("abs(-3)"), 0);
+        assertEquals(4, eval("sqrt(16)"), 0);
+        assertEquals(2, eval("log10(100)"), 0);
+        assertEquals(1, eval("ln(exp(1))"), 1e-12);
+        assertEquals(8, eval("pow(2, 3)"), 0);
+        assertEquals(2, eval("min(2, 5)"), 0);
+        assertEquals(5, eval("max(2, 5)"), 0);
+        assertEquals(-2, eval("floor(-1.5)"), 0);
+        assertEquals(-1, eval("ceil(-1.5)"), 0);
+    }
+
+    @Test
+    public void testRoundHalfUp() {
+        assertEquals(3, eval("round(2.5)"), 0);
+        assertEquals(4, eval("round(3.5)"), 0);
+        assertEquals(-2, eval("round(-2.5)"), 0);
+        assertEquals(1e20, eval("round(1e20)"), 0);
+        assertTrue(Double.isNaN(eval("round(0 / 0)")));
+    }
+
+    @Test
+    public void testVariables() {
+        Expression expr = Expression.compile("a * [Binary 0] + a");
+        assertEquals("[a, Binary 0]", expr.getVariables().toString());
+        assertEquals(8, expr.evaluate(new double[]{2, 3}), 0);
+        assertTrue(Double.isNaN(expr.evaluate(new double[]{2, Double.NaN})));
+    }
+
+    @Test
+    public void testDelta() {
+        Expression expr = Expression.compile("delta(count) * 2");
+        assertTrue(Double.isNaN(expr.evaluate(new double[]{10})));
+        assertEquals(10, expr.evaluate(new double[]{15}), 0);
+        assertTrue(Double.isNaN(expr.evaluate(new double[]{Double.NaN})));
+        assertEquals(4, expr.evaluate(new double[]{17}), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownFunction() {
+        Expression.compile("foo(1)");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testArgumentCount() {
+        Expression.compile("min(1)");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingParenthesis() {
+        Expression.compile("(1 + 2");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTrailingInput() {
+        Expression.compile("1 2");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingBracket() {
+        Expression.compile("[Binary 0 + 1");
+    }
+
+    private double eval(String text) {
+        Expression expr = Expression.compile(text);
+        assertTrue(expr.getVariables().isEmpty());
+        return expr.evaluate(new double[0]);
+    }
+
+}
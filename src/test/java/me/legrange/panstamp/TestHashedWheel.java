@@ -0,0 +1,116 @@
+package me.legrange.panstamp;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for the hashed wheel timer.
+ *
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public class TestHashedWheel {
+
+    @Test
+    public void testRunsAfterDelay() throws Exception {
+        HashedWheel wheel = new HashedWheel(timer, TICK, 8);
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        wheel.schedule(count(done), 50);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 50 - TICK);
+    }
+
+    @Test
+    public void testLongerThanOneRotation() throws Exception {
+        HashedWheel wheel = new HashedWheel(timer, TICK, 4);
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        wheel.schedule(count(done), 200);
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 200 - TICK);
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        HashedWheel wheel = new HashedWheel(timer, TICK, 8);
+        CountDownLatch done = new CountDownLatch(3);
+        wheel.schedule(record(3, done), 150);
+        wheel.schedule(record(1, done), 0);
+        wheel.schedule(record(2, done), 60);
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals("[1, 2, 3]", ran.toString());
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        HashedWheel wheel = new HashedWheel(timer, TICK, 8);
+        CountDownLatch done = new CountDownLatch(1);
+        HashedWheel.Timeout t = wheel.schedule(record(1, null), 30);
+        wheel.schedule(count(done), 100);
+        t.cancel();
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(ran.isEmpty());
+    }
+
+    @Test
+    public void testFailingTask() throws Exception {
+        HashedWheel wheel = new HashedWheel(timer, TICK, 8);
+        CountDownLatch done = new CountDownLatch(1);
+        wheel.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                throw new IllegalStateException("test");
+            }
+        }, 0);
+        wheel.schedule(count(done), 50);
+        assertTrue("the wheel must keep turning", done.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSize() {
+        new HashedWheel(timer, TICK, 6);
+    }
+
+    @After
+    public void stop() {
+        timer.shutdownNow();
+    }
+
+    private Runnable count(final CountDownLatch done) {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        };
+    }
+
+    private Runnable record(final int n, final CountDownLatch done) {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                ran.add(n);
+                if (done != null) {
+                    done.countDown();
+                }
+            }
+        };
+    }
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+    private static final long TICK = 10;
+
+}
@@ -0,0 +1,237 @@
+package me.legrange.panstamp;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * Tests for the overflow policies of listener queues.
+ *
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public class TestListenerQueue {
+
+    @Test
+    public void testDropOldest() {
+        ListenerQueue q = new ListenerQueue("l", pool, 2, OverflowPolicy.DROP_OLDEST);
+        for (int i = 1; i <= 3; ++i) {
+            assertTrue(q.offer(null, event(i)));
+        }
+        pool.runAll();
+        assertEquals("[2, 3]", seen.toString());
+        assertEquals(1, q.getDropped());
+    }
+
+    @Test
+    public void testConflate() {
+        Object key = new Object();
+        ListenerQueue q = new ListenerQueue("l", pool, 10, OverflowPolicy.CONFLATE);
+        q.offer(key, event(1));
+        q.offer(null, event(2));
+        q.offer(key, event(3));
+        pool.runAll();
+        assertEquals("[3, 2]", seen.toString());
+        assertEquals(1, q.getDropped());
+    }
+
+    @Test
+    public void testConflateFullWithoutKey() {
+        ListenerQueue q = new ListenerQueue("l", pool, 2, OverflowPolicy.CONFLATE);
+        for (int i = 1; i <= 3; ++i) {
+            q.offer(new Object(), event(i));
+        }
+        pool.runAll();
+        assertEquals("[2, 3]", seen.toString());
+    }
+
+    @Test
+    public void testDisconnect() {
+        ListenerQueue q = new ListenerQueue("l", pool, 2, OverflowPolicy.DISCONNECT);
+        assertTrue(q.offer(null, event(1)));
+        assertTrue(q.offer(null, event(2)));
+        assertFalse(q.offer(null, event(3)));
+        assertFalse(q.offer(null, event(4)));
+        pool.runAll();
+        assertTrue(seen.isEmpty());
+        assertTrue(q.getStatus().isDisconnected());
+    }
+
+    @Test
+    public void testBlockApplicationThread() throws Exception {
+        final ListenerQueue q = new ListenerQueue("l", pool, 1, OverflowPolicy.BLOCK);
+        q.offer(null, event(1));
+        Thread producer = new Thread() {
+
+            @Override
+            public void run() {
+                q.offer(null, event(2));
+            }
+        };
+        producer.start();
+        producer.join(200);
+        assertTrue("producer should wait for the listener", producer.isAlive());
+        pool.runAll();
+        producer.join(1000);
+        assertFalse(producer.isAlive());
+        pool.runAll();
+        assertEquals("[1, 2]", seen.toString());
+        assertEquals(0, q.getDropped());
+    }
+
+    @Test
+    public void testBlockLibraryThread() throws Exception {
+        final ListenerQueue q = new ListenerQueue("l", pool, 1, OverflowPolicy.BLOCK);
+        q.offer(null, event(1));
+        Thread producer = LibraryThread.factory("test").newThread(new Runnable() {
+
+            @Override
+            public void run() {
+                q.offer(null, event(2));
+            }
+        });
+        producer.start();
+        producer.join(1000);
+        assertFalse("library threads must not wait for a listener", producer.isAlive());
+        pool.runAll();
+        assertEquals("[2]", seen.toString());
+        assertEquals(1, q.getDropped());
+    }
+
+    @Test
+    public void testBlockReceiveWorker() throws Exception {
+        final ListenerQueue q = new ListenerQueue("l", pool, 1, OverflowPolicy.BLOCK);
+        q.offer(null, event(1));
+        final CountDownLatch offered = new CountDownLatch(1);
+        Thread producer = LibraryThread.factory("test", true).newThread(new Runnable() {
+
+            @Override
+            public void run() {
+                q.offer(null, event(2));
+                q.offer(null, event(3));
+                offered.countDown();
+                LibraryThread.awaitListeners();
+            }
+        });
+        producer.start();
+        assertTrue("a receive worker must not wait while handling a message", offered.await(1, TimeUnit.SECONDS));
+        producer.join(200);
+        assertTrue("a receive worker should wait for the listener afterwards", producer.isAlive());
+        pool.runAll();
+        producer.join(1000);
+        assertFalse(producer.isAlive());
+        assertEquals("[1, 2, 3]", seen.toString());
+        assertEquals(0, q.getDropped());
+    }
+
+    @Test
+    public void testDemand() {
+        ListenerQueue q = new ListenerQueue("s", pool, 10, OverflowPolicy.DROP_OLDEST, 0);
+        q.offer(null, event(1));
+        q.offer(null, event(2));
+        pool.runAll();
+        assertTrue(seen.isEmpty());
+        q.request(1);
+        pool.runAll();
+        assertEquals("[1]", seen.toString());
+    }
+
+    @Test
+    public void testFinishWithoutDemand() {
+        ListenerQueue q = new ListenerQueue("s", pool, 10, OverflowPolicy.DROP_OLDEST, 1);
+        q.offer(null, event(1));
+        q.offer(null, event(2));
+        q.finish(event(99), false);
+        assertFalse(q.offer(null, event(3)));
+        pool.runAll();
+        assertEquals("[1, 99]", seen.toString());
+    }
+
+    @Test
+    public void testFinishDiscard() {
+        ListenerQueue q = new ListenerQueue("s", pool, 10, OverflowPolicy.DROP_OLDEST);
+        q.offer(null, event(1));
+        q.finish(event(99), true);
+        pool.runAll();
+        assertEquals("[99]", seen.toString());
+    }
+
+    @Test
+    public void testCancelAfterFinish() {
+        ListenerQueue q = new ListenerQueue("s", pool, 10, OverflowPolicy.DROP_OLDEST);
+        q.finish(event(99), false);
+        q.cancel();
+        pool.runAll();
+        assertTrue(seen.isEmpty());
+    }
+
+    private Runnable event(final int n) {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                synchronized (seen) {
+                    seen.add(n);
+                }
+            }
+        };
+    }
+
+    private final List<Integer> seen = new ArrayList<>();
+    private final ManualPool pool = new ManualPool();
+
+    /**
+     * An executor that runs tasks only when told to.
+     */
+    private static final class ManualPool extends AbstractExecutorService {
+
+        @Override
+        public synchronized void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    if (tasks.isEmpty()) {
+                        return;
+                    }
+                    task = tasks.remove(0);
+                }
+                task.run();
+            }
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+
+        private final List<Runnable> tasks = new ArrayList<>();
+    }
+
+}
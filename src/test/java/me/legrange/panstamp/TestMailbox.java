@@ -0,0 +1,169 @@
+package me.legrange.panstamp;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import me.legrange.swap.SwapMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the messages held for a powered down device, using a temphum
+ * device. The device is asleep at the start of each test, with nothing held.
+ *
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public class TestMailbox {
+
+    @Before
+    public void setUp() throws Exception {
+        nw = Network.create(modem);
+        nw.open();
+        modem.status(ADDRESS, 0, new byte[]{0, 0, 0, 1, 0, 0, 0, 1});
+        long end = System.currentTimeMillis() + 5000;
+        while (!nw.hasDevice(ADDRESS) || !nw.getDevice(ADDRESS).getRegister(12).hasEndpoint("Temperature")) {
+            assertTrue("device was not identified", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+        dev = nw.getDevice(ADDRESS);
+        dev.addListener(events);
+        // send what the device picked up while it was identified, then let it sleep
+        sync(SYNC);
+        sync(SLEEP);
+        modem.sent.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        nw.close();
+    }
+
+    @Test
+    public void testCommandsCoalesced() throws Exception {
+        Register reg = dev.getRegister(12);
+        reg.setValue(new byte[]{1, 2, 3, 4});
+        reg.setValue(new byte[]{5, 6, 7, 8});
+        assertTrue("a sleeping device is not sent commands", sent().isEmpty());
+        assertEquals("a sync is only asked for once", 1, events.syncRequired());
+        sync(SYNC);
+        assertEquals("[COMMAND 12 [5, 6, 7, 8]]", sent().toString());
+    }
+
+    @Test
+    public void testQueryDroppedWhenCommanded() throws Exception {
+        dev.getRegister(12).query();
+        dev.getRegister(12).setValue(new byte[]{1, 2, 3, 4});
+        dev.getRegister(11).query();
+        sync(SYNC);
+        assertEquals("[COMMAND 12 [1, 2, 3, 4], QUERY 11 []]", sent().toString());
+    }
+
+    @Test
+    public void testRestoreAfterModemException() throws Exception {
+        Register reg = dev.getRegister(12);
+        reg.setValue(new byte[]{1, 2, 3, 4});
+        dev.getRegister(11).query();
+        modem.setFailing(true);
+        sync(SYNC);
+        assertTrue(sent().isEmpty());
+        sync(SLEEP);
+        reg.setValue(new byte[]{5, 6, 7, 8});
+        modem.setFailing(false);
+        sync(SYNC);
+        assertEquals("the newer command replaces the one held again", "[COMMAND 12 [5, 6, 7, 8], QUERY 11 []]", sent().toString());
+    }
+
+    @Test
+    public void testSyncDrivesBurst() throws Exception {
+        dev.getRegister(11).query();
+        dev.getRegister(12).setValue(new byte[]{1, 2, 3, 4});
+        sync(SLEEP);
+        assertTrue("the device did not wake up", sent().isEmpty());
+        sync(SYNC);
+        assertEquals("commands are sent first", "[COMMAND 12 [1, 2, 3, 4], QUERY 11 []]", sent().toString());
+        dev.getRegister(12).query();
+        assertEquals("an awake device is sent messages at once", "[COMMAND 12 [1, 2, 3, 4], QUERY 11 [], QUERY 12 []]", sent().toString());
+    }
+
+    /**
+     * receive a system state, and wait until the device handled it
+     */
+    private void sync(int state) throws Exception {
+        int count = events.syncStates();
+        modem.status(ADDRESS, 3, (byte) state);
+        events.awaitSyncStates(count + 1);
+    }
+
+    /**
+     * the queries and commands sent for the registers used in the tests
+     */
+    private List<String> sent() {
+        List<String> res = new ArrayList<>();
+        for (SwapMessage msg : modem.sent) {
+            if ((msg.getRegisterID() == 11) || (msg.getRegisterID() == 12)) {
+                byte value[] = (msg.getType() == SwapMessage.Type.COMMAND) ? msg.getRegisterValue() : new byte[0];
+                res.add(msg.getType() + " " + msg.getRegisterID() + " " + Arrays.toString(value));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * A device listener that counts sync requests and state changes.
+     */
+    private static final class Events implements PanStampListener {
+
+        @Override
+        public void productCodeChange(PanStamp dev, int manufacturerId, int productId) {
+        }
+
+        @Override
+        public synchronized void syncStateChange(PanStamp dev, int syncState) {
+            ++syncStates;
+            notifyAll();
+        }
+
+        @Override
+        public void registerDetected(PanStamp dev, Register reg) {
+        }
+
+        @Override
+        public synchronized void syncRequired(PanStamp dev) {
+            ++syncRequired;
+        }
+
+        synchronized int syncStates() {
+            return syncStates;
+        }
+
+        synchronized int syncRequired() throws InterruptedException {
+            // sync requests are delivered on a listener thread
+            wait(100);
+            return syncRequired;
+        }
+
+        synchronized void awaitSyncStates(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 2000;
+            while (syncStates < count) {
+                long left = end - System.currentTimeMillis();
+                assertTrue("the system state was not handled", left > 0);
+                wait(left);
+            }
+        }
+
+        private int syncStates;
+        private int syncRequired;
+    }
+
+    private Network nw;
+    private PanStamp dev;
+    private final Events events = new Events();
+    private final FakeModem modem = new FakeModem();
+    private static final int ADDRESS = 5;
+    private static final int SYNC = 3;
+    private static final int SLEEP = 2;
+
+}
@@ -0,0 +1,127 @@
+package me.legrange.panstamp;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import me.legrange.swap.SwapMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for provisioning, using the calibration parameters of channel 0 of a
+ * meter device, which share register 18: the voltage scale in bytes 0 and 1,
+ * the current scale in bytes 2 and 3, the power factor offset in byte 4 and
+ * the enable flag in byte 5.
+ *
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public class TestProvisioningJob {
+
+    @Before
+    public void setUp() throws Exception {
+        nw = Network.create(modem);
+        nw.open();
+        modem.status(ADDRESS, 0, new byte[]{0, 0, 0, 1, 0, 0, 0, 11});
+        long end = System.currentTimeMillis() + 5000;
+        while (!nw.hasDevice(ADDRESS) || nw.getDevice(ADDRESS).getRegister(18).getParameters().isEmpty()) {
+            assertTrue("device was not identified", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+        modem.sent.clear();
+        job = nw.createProvisioningJob();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        nw.close();
+    }
+
+    @Test
+    public void testParametersInOneCommand() throws Exception {
+        received(CALIBRATION);
+        job.setConfig(ADDRESS, new DeviceConfig()
+                .setParameter("Chanel 0 - Voltage transformer scale (x100)", 1800.0)
+                .setParameter("Chanel 0 - Enable", false));
+        job.start();
+        byte value[] = messages(SwapMessage.Type.COMMAND, 1).get(0);
+        assertArrayEquals("the other settings are kept", new byte[]{0x07, 0x08, 0x01, (byte) 0xF4, 0x05, 0x00}, value);
+        modem.status(ADDRESS, 18, value);
+        assertTrue(job.awaitFinished(2, TimeUnit.SECONDS));
+        assertEquals(ProvisioningJob.Status.DONE, job.getStatus(ADDRESS));
+        assertEquals(1, messages(SwapMessage.Type.COMMAND, 1).size());
+    }
+
+    @Test
+    public void testUnknownValueQueried() throws Exception {
+        job.setConfig(ADDRESS, new DeviceConfig()
+                .setParameter("Chanel 0 - Current transformer scale (x100)", 600.0));
+        job.start();
+        messages(SwapMessage.Type.QUERY, 1);
+        Thread.sleep(50);
+        assertTrue("nothing is sent before the value is known", messages(SwapMessage.Type.COMMAND, 0).isEmpty());
+        modem.status(ADDRESS, 18, CALIBRATION);
+        byte value[] = messages(SwapMessage.Type.COMMAND, 1).get(0);
+        assertArrayEquals(new byte[]{0x06, (byte) 0xA4, 0x02, 0x58, 0x05, 0x01}, value);
+        modem.status(ADDRESS, 18, value);
+        assertTrue(job.awaitFinished(2, TimeUnit.SECONDS));
+        assertEquals(ProvisioningJob.Status.DONE, job.getStatus(ADDRESS));
+    }
+
+    @Test
+    public void testUnknownValueFails() throws Exception {
+        nw.setQueryTimeout(50, TimeUnit.MILLISECONDS);
+        nw.setQueryRetries(0);
+        job.setConfig(ADDRESS, new DeviceConfig()
+                .setParameter("Chanel 0 - Current transformer scale (x100)", 600.0));
+        job.start();
+        assertTrue(job.awaitFinished(2, TimeUnit.SECONDS));
+        assertEquals(ProvisioningJob.Status.FAILED, job.getStatus(ADDRESS));
+        assertTrue(job.getError(ADDRESS).getMessage().contains("current value unknown"));
+        assertTrue("no defaults are written", messages(SwapMessage.Type.COMMAND, 0).isEmpty());
+    }
+
+    /**
+     * receive a status message and wait for the register to take the value
+     */
+    private void received(byte... value) throws Exception {
+        modem.status(ADDRESS, 18, value);
+        Register reg = nw.getDevice(ADDRESS).getRegister(18);
+        long end = System.currentTimeMillis() + 2000;
+        while (!Arrays.equals(value, reg.currentValue())) {
+            assertTrue("status was not received", System.currentTimeMillis() < end);
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * wait for the given number of messages of a type for register 18 to be
+     * sent, and get their values
+     */
+    private List<byte[]> messages(SwapMessage.Type type, int count) throws Exception {
+        long end = System.currentTimeMillis() + 2000;
+        while (true) {
+            List<byte[]> res = new ArrayList<>();
+            for (SwapMessage msg : modem.sent) {
+                if ((msg.getType() == type) && (msg.getRegisterID() == 18)) {
+                    res.add(msg.getRegisterValue());
+                }
+            }
+            if (res.size() >= count) {
+                return res;
+            }
+            assertTrue(String.format("%s was not sent", type), System.currentTimeMillis() < end);
+            Thread.sleep(5);
+        }
+    }
+
+    private Network nw;
+    private ProvisioningJob job;
+    private final FakeModem modem = new FakeModem();
+    private static final int ADDRESS = 9;
+    private static final byte CALIBRATION[] = {0x06, (byte) 0xA4, 0x01, (byte) 0xF4, 0x05, 0x01};
+
+}
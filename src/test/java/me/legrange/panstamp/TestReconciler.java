@@ -0,0 +1,150 @@
+package me.legrange.panstamp;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import me.legrange.swap.SwapMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for reconciling targets, using the calibration parameters of channel
+ * 0 of a meter device, which share register 18: the voltage scale in bytes 0
+ * and 1, the current scale in bytes 2 and 3, the power factor offset in byte
+ * 4 and the enable flag in byte 5.
+ *
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public class TestReconciler {
+
+    @Before
+    public void setUp() throws Exception {
+        nw = Network.create(modem);
+        nw.open();
+        modem.status(ADDRESS, 0, new byte[]{0, 0, 0, 1, 0, 0, 0, 11});
+        long end = System.currentTimeMillis() + 5000;
+        while (!nw.hasDevice(ADDRESS) || nw.getDevice(ADDRESS).getRegister(18).getParameters().isEmpty()) {
+            assertTrue("device was not identified", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+        reg = nw.getDevice(ADDRESS).getRegister(18);
+        rec = nw.getReconciler();
+        rec.setRetryInterval(100, TimeUnit.MILLISECONDS);
+        modem.sent.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        nw.close();
+    }
+
+    @Test
+    public void testParametersInOneCommand() throws Exception {
+        rec.setTarget(parameter("Voltage"), 1800.0);
+        rec.setTarget(parameter("Current"), 600.0);
+        assertTrue("nothing is sent before the value is known", commands().isEmpty());
+        assertEquals(SwapMessage.Type.QUERY, modem.sent.get(0).getType());
+        received(CALIBRATION);
+        List<byte[]> sent = commands(1);
+        Thread.sleep(50);
+        assertEquals(1, commands().size());
+        assertArrayEquals(new byte[]{0x07, 0x08, 0x02, 0x58, 0x05, 0x01}, sent.get(0));
+    }
+
+    @Test
+    public void testInSyncOnceConfirmed() throws Exception {
+        received(CALIBRATION);
+        rec.setTarget(parameter("Voltage"), 1800.0);
+        rec.setTarget(parameter("Current"), 600.0);
+        assertFalse(rec.isInSync(reg));
+        Thread.sleep(200);
+        received((byte) 0x07, (byte) 0x08, (byte) 0x02, (byte) 0x58, (byte) 0x05, (byte) 0x01);
+        assertTrue(rec.isInSync(reg));
+        int count = commands().size();
+        Thread.sleep(300);
+        assertEquals("no commands once in sync", count, commands().size());
+        assertArrayEquals(new byte[]{0x07, 0x08, 0x02, 0x58, 0x05, 0x01}, commands().get(count - 1));
+    }
+
+    @Test
+    public void testBinaryParameter() throws Exception {
+        received(CALIBRATION);
+        rec.setTarget(parameter("Enable"), false);
+        assertArrayEquals(new byte[]{0x06, (byte) 0xA4, 0x01, (byte) 0xF4, 0x05, 0x00}, commands().get(0));
+        received((byte) 0x06, (byte) 0xA4, (byte) 0x01, (byte) 0xF4, (byte) 0x05, (byte) 0x00);
+        assertTrue(rec.isInSync(reg));
+    }
+
+    @Test
+    public void testNoDrift() throws Exception {
+        received(CALIBRATION);
+        rec.setTarget(parameter("Voltage"), 1700.0);
+        rec.setTarget(parameter("Enable"), true);
+        assertTrue(rec.isInSync(reg));
+        assertTrue(commands().isEmpty());
+        assertEquals(0, rec.getCommandsSent());
+    }
+
+    /**
+     * find the channel 0 parameter with the given word in its name
+     */
+    private <T> Parameter<T> parameter(String word) {
+        for (Parameter<?> par : reg.getParameters()) {
+            if (par.getName().contains(word)) {
+                return (Parameter<T>) par;
+            }
+        }
+        fail(String.format("No parameter '%s'", word));
+        return null;
+    }
+
+    /**
+     * receive a status message and wait for the register to take the value
+     */
+    private void received(byte... value) throws Exception {
+        modem.status(ADDRESS, 18, value);
+        long end = System.currentTimeMillis() + 2000;
+        while (!Arrays.equals(value, reg.currentValue())) {
+            assertTrue("status was not received", System.currentTimeMillis() < end);
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * wait for the given number of commands to be sent
+     */
+    private List<byte[]> commands(int count) throws Exception {
+        long end = System.currentTimeMillis() + 2000;
+        while (commands().size() < count) {
+            assertTrue("command was not sent", System.currentTimeMillis() < end);
+            Thread.sleep(5);
+        }
+        return commands();
+    }
+
+    /**
+     * the values of the commands sent
+     */
+    private List<byte[]> commands() {
+        List<byte[]> res = new ArrayList<>();
+        for (SwapMessage msg : modem.sent) {
+            if (msg.getType() == SwapMessage.Type.COMMAND) {
+                res.add(msg.getRegisterValue());
+            }
+        }
+        return res;
+    }
+
+    private Network nw;
+    private Register reg;
+    private Reconciler rec;
+    private final FakeModem modem = new FakeModem();
+    private static final int ADDRESS = 9;
+    // voltage scale 1700, current scale 500, offset 5 and enabled
+    private static final byte CALIBRATION[] = {0x06, (byte) 0xA4, 0x01, (byte) 0xF4, 0x05, 0x01};
+
+}
@@ -0,0 +1,119 @@
+package me.legrange.panstamp;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for register edits and the pending values they leave until the
+ * device confirms them, using the binary outputs of a binouts device.
+ *
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public class TestRegisterEdit {
+
+    @Before
+    public void setUp() throws Exception {
+        nw = Network.create(modem);
+        nw.open();
+        modem.status(ADDRESS, 0, new byte[]{0, 0, 0, 1, 0, 0, 0, 7});
+        long end = System.currentTimeMillis() + 5000;
+        while (!nw.hasDevice(ADDRESS) || !nw.getDevice(ADDRESS).getRegister(11).hasEndpoint("Binary 7")) {
+            assertTrue("device was not identified", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+        reg = nw.getDevice(ADDRESS).getRegister(11);
+        received((byte) 0x00);
+        modem.sent.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        nw.close();
+    }
+
+    @Test
+    public void testOneCommand() throws Exception {
+        reg.edit().set(output(0), true).set(output(3), true).commit();
+        assertEquals(1, modem.sent.size());
+        assertArrayEquals(new byte[]{(byte) 0x90}, modem.lastSent());
+    }
+
+    @Test
+    public void testEditsKeepEachOther() throws Exception {
+        reg.edit().set(output(0), true).commit();
+        reg.edit().set(output(1), true).commit();
+        assertArrayEquals(new byte[]{(byte) 0xC0}, modem.lastSent());
+        assertArrayEquals(new byte[]{(byte) 0xC0}, reg.getPendingValue());
+    }
+
+    @Test
+    public void testRebaseOnStatus() throws Exception {
+        reg.edit().set(output(0), true).commit();
+        received((byte) 0x01);
+        assertArrayEquals("bits the edit did not change follow the device", new byte[]{(byte) 0x81}, reg.getPendingValue());
+        reg.edit().set(output(1), true).commit();
+        assertArrayEquals(new byte[]{(byte) 0xC1}, modem.lastSent());
+    }
+
+    @Test
+    public void testConfirmed() throws Exception {
+        Future<byte[]> f = reg.edit().set(output(0), true).commit();
+        modem.status(ADDRESS, 11, (byte) 0x81);
+        assertArrayEquals(new byte[]{(byte) 0x81}, f.get(2, TimeUnit.SECONDS));
+        assertNull(reg.getPendingValue());
+    }
+
+    @Test
+    public void testExpiredIsDropped() throws Exception {
+        nw.setCommandTimeout(50, TimeUnit.MILLISECONDS);
+        nw.setCommandRetries(0);
+        Future<byte[]> f = reg.edit().set(output(0), true).commit();
+        try {
+            f.get(2, TimeUnit.SECONDS);
+            fail("the command should not be confirmed");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof MoteException);
+        }
+        assertNull(reg.getPendingValue());
+        reg.edit().set(output(1), true).commit();
+        assertArrayEquals("an expired value is not sent again", new byte[]{(byte) 0x40}, modem.lastSent());
+    }
+
+    @Test
+    public void testSetValueReplacesAll() throws Exception {
+        reg.edit().set(output(0), true).commit();
+        reg.setValue(new byte[]{0x02});
+        received((byte) 0x03);
+        assertArrayEquals(new byte[]{0x02}, reg.getPendingValue());
+    }
+
+    @SuppressWarnings("unchecked")
+    private Endpoint<Boolean> output(int n) throws NetworkException {
+        return reg.getEndpoint("Binary " + n);
+    }
+
+    /**
+     * receive a status message and wait for the register to take the value
+     */
+    private void received(byte... value) throws Exception {
+        modem.status(ADDRESS, 11, value);
+        long end = System.currentTimeMillis() + 2000;
+        while (!Arrays.equals(value, reg.currentValue())) {
+            assertTrue("status was not received", System.currentTimeMillis() < end);
+            Thread.sleep(5);
+        }
+    }
+
+    private static final int ADDRESS = 7;
+    private final FakeModem modem = new FakeModem();
+    private Network nw;
+    private Register reg;
+
+}
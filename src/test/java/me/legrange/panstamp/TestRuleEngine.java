@@ -0,0 +1,163 @@
+package me.legrange.panstamp;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for rules, using the temperature of a temphum device. A raw value of
+ * 800 is 30 C, and every 10 more or less is a degree.
+ *
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public class TestRuleEngine {
+
+    @Before
+    public void setUp() throws Exception {
+        nw = Network.create(modem);
+        nw.open();
+        modem.status(ADDRESS, 0, new byte[]{0, 0, 0, 1, 0, 0, 0, 1});
+        long end = System.currentTimeMillis() + 5000;
+        while (!nw.hasDevice(ADDRESS) || !nw.getDevice(ADDRESS).getRegister(12).hasEndpoint("Temperature")) {
+            assertTrue("device was not identified", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+        temp = nw.getDevice(ADDRESS).getRegister(12).getEndpoint("Temperature");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        nw.close();
+    }
+
+    @Test
+    public void testTriggerAndClear() throws Exception {
+        nw.addRule(Rule.above(temp, 30), events);
+        temperature(850);
+        temperature(840);
+        temperature(790);
+        assertEquals("[triggered 35.0, cleared 29.0]", events.await(2).toString());
+    }
+
+    @Test
+    public void testHysteresis() throws Exception {
+        nw.addRule(Rule.above(temp, 30).withHysteresis(1), events);
+        temperature(850);
+        temperature(795);
+        temperature(850);
+        temperature(785);
+        assertEquals("[triggered 35.0, cleared 28.5]", events.await(2).toString());
+    }
+
+    @Test
+    public void testDuration() throws Exception {
+        nw.addRule(Rule.above(temp, 30).forAtLeast(200, TimeUnit.MILLISECONDS), events);
+        temperature(850);
+        temperature(700);
+        Thread.sleep(400);
+        assertTrue("the value did not stay past the threshold", events.get().isEmpty());
+        temperature(860);
+        assertEquals("[triggered 36.0]", events.await(1).toString());
+    }
+
+    @Test
+    public void testTakeOverPending() throws Exception {
+        nw.addRule(Rule.above(temp, 30).forAtLeast(300, TimeUnit.MILLISECONDS), events);
+        temperature(850);
+        identifyAs(new byte[]{0, 0, 0, 27, 0, 0, 0, 1}, "Light");
+        assertEquals("the pending rule triggers on its new endpoint", "[triggered 35.0]", events.await(1).toString());
+        modem.status(ADDRESS, 12, (byte) 0x02, (byte) 0xBC, (byte) 0x01, (byte) 0xF4, (byte) 0x10);
+        assertEquals("[triggered 35.0, cleared 20.0]", events.await(2).toString());
+    }
+
+    @Test
+    public void testTakeOverTriggered() throws Exception {
+        nw.addRule(Rule.above(temp, 30), events);
+        temperature(850);
+        events.await(1);
+        identifyAs(new byte[]{0, 0, 0, 27, 0, 0, 0, 1}, "Light");
+        modem.status(ADDRESS, 12, (byte) 0x03, (byte) 0x52, (byte) 0x01, (byte) 0xF4, (byte) 0x10);
+        modem.status(ADDRESS, 12, (byte) 0x02, (byte) 0xBC, (byte) 0x01, (byte) 0xF4, (byte) 0x10);
+        assertEquals("the rule stays triggered", "[triggered 35.0, cleared 20.0]", events.await(2).toString());
+    }
+
+    @Test
+    public void testBlockPolicy() throws Exception {
+        nw.addRule(Rule.above(temp, 30), events);
+        for (ListenerStatus st : nw.getListenerStatus()) {
+            if (st.getListener() == events) {
+                assertEquals(OverflowPolicy.BLOCK, st.getPolicy());
+                return;
+            }
+        }
+        fail("listener is not registered");
+    }
+
+    /**
+     * receive a temperature with a humidity of 50 %
+     */
+    private void temperature(int raw) {
+        modem.status(ADDRESS, 12, (byte) (raw >> 8), (byte) raw, (byte) 0x01, (byte) 0xF4);
+    }
+
+    /**
+     * receive a new product code, and wait for the register to get the
+     * endpoint of the new definition
+     */
+    private void identifyAs(byte code[], String endpoint) throws Exception {
+        modem.status(ADDRESS, 0, code);
+        long end = System.currentTimeMillis() + 5000;
+        while (!nw.getDevice(ADDRESS).getRegister(12).hasEndpoint(endpoint)) {
+            assertTrue("device was not identified again", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * A rule listener that records the events it receives.
+     */
+    private static final class Events implements RuleListener {
+
+        @Override
+        public synchronized void ruleTriggered(Rule rule, double value) {
+            received.add("triggered " + value);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void ruleCleared(Rule rule, double value) {
+            received.add("cleared " + value);
+            notifyAll();
+        }
+
+        synchronized List<String> get() {
+            return new ArrayList<>(received);
+        }
+
+        synchronized List<String> await(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 2000;
+            while (received.size() < count) {
+                long left = end - System.currentTimeMillis();
+                assertTrue(String.format("rule events were not delivered, got %s", received), left > 0);
+                wait(left);
+            }
+            // give events that should not arrive a chance to show up
+            wait(100);
+            return new ArrayList<>(received);
+        }
+
+        private final List<String> received = new ArrayList<>();
+    }
+
+    private Network nw;
+    private Endpoint<?> temp;
+    private final Events events = new Events();
+    private final FakeModem modem = new FakeModem();
+    private static final int ADDRESS = 5;
+
+}
@@ -0,0 +1,195 @@
+package me.legrange.panstamp.stream;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+/**
+ * Tests for window aggregation, driven with explicit times.
+ *
+ * @author Gideon le Grange https://github.com/GideonLeGrange
+ */
+public class TestWindowAggregator {
+
+    @Test
+    public void testTumbling() {
+        WindowAggregator agg = new WindowAggregator(Window.tumbling(10, TimeUnit.SECONDS), Emission.ON_CLOSE);
+        Collector c = subscribe(agg, Long.MAX_VALUE);
+        agg.accept(1000, 1);
+        agg.accept(5000, 3);
+        agg.accept(9999, 2);
+        assertTrue(c.items.isEmpty());
+        agg.advance(10000);
+        assertEquals(1, c.items.size());
+        Aggregate a = c.items.get(0);
+        assertEquals(0, a.getStart());
+        assertEquals(10000, a.getEnd());
+        assertTrue(a.isClosed());
+        assertEquals(3, a.getCount());
+        assertEquals(6, a.getSum(), 0);
+        assertEquals(1, a.getMin(), 0);
+        assertEquals(3, a.getMax(), 0);
+        assertEquals(2, a.getMean(), 0);
+        assertEquals(2, a.getLast(), 0);
+    }
+
+    @Test
+    public void testSliding() {
+        WindowAggregator agg = new WindowAggregator(Window.sliding(20, 10, TimeUnit.SECONDS), Emission.ON_CLOSE);
+        Collector c = subscribe(agg, Long.MAX_VALUE);
+        agg.accept(1000, 1);
+        agg.accept(11000, 5);
+        agg.advance(40000);
+        assertEquals(3, c.items.size());
+        assertWindow(c.items.get(0), -10000, 10000, 1, 1);
+        assertWindow(c.items.get(1), 0, 20000, 2, 6);
+        assertWindow(c.items.get(2), 10000, 30000, 1, 5);
+    }
+
+    @Test
+    public void testEmptyWindows() {
+        WindowAggregator agg = new WindowAggregator(Window.tumbling(10, TimeUnit.SECONDS), Emission.ON_CLOSE_INCLUDING_EMPTY);
+        Collector c = subscribe(agg, Long.MAX_VALUE);
+        agg.accept(1000, 1);
+        agg.advance(35000);
+        assertEquals(3, c.items.size());
+        assertWindow(c.items.get(0), 0, 10000, 1, 1);
+        assertWindow(c.items.get(1), 10000, 20000, 0, 0);
+        assertWindow(c.items.get(2), 20000, 30000, 0, 0);
+        assertTrue(Double.isNaN(c.items.get(1).getMin()));
+    }
+
+    @Test
+    public void testSkipIdleWindows() {
+        WindowAggregator agg = new WindowAggregator(Window.tumbling(10, TimeUnit.SECONDS), Emission.ON_CLOSE);
+        Collector c = subscribe(agg, Long.MAX_VALUE);
+        agg.accept(1000, 1);
+        agg.accept(95000, 2);
+        agg.advance(100000);
+        assertEquals(2, c.items.size());
+        assertWindow(c.items.get(0), 0, 10000, 1, 1);
+        assertWindow(c.items.get(1), 90000, 100000, 1, 2);
+    }
+
+    @Test
+    public void testOnUpdate() {
+        WindowAggregator agg = new WindowAggregator(Window.tumbling(10, TimeUnit.SECONDS), Emission.ON_UPDATE);
+        Collector c = subscribe(agg, Long.MAX_VALUE);
+        agg.accept(1000, 1);
+        agg.accept(2000, 2);
+        agg.advance(10000);
+        assertEquals(3, c.items.size());
+        assertFalse(c.items.get(0).isClosed());
+        assertEquals(1, c.items.get(0).getCount());
+        assertFalse(c.items.get(1).isClosed());
+        assertEquals(2, c.items.get(1).getCount());
+        assertTrue(c.items.get(2).isClosed());
+        assertEquals(3, c.items.get(2).getSum(), 0);
+    }
+
+    @Test
+    public void testOnUpdateOrder() throws Exception {
+        final WindowAggregator agg = new WindowAggregator(Window.tumbling(10, TimeUnit.MILLISECONDS), Emission.ON_UPDATE);
+        Collector c = subscribe(agg, Long.MAX_VALUE);
+        final AtomicLong clock = new AtomicLong();
+        Thread producer = new Thread() {
+
+            @Override
+            public void run() {
+                for (int i = 0; i < 20000; ++i) {
+                    agg.accept(clock.get(), 1);
+                }
+            }
+        };
+        producer.start();
+        while (producer.isAlive()) {
+            agg.advance(clock.incrementAndGet());
+        }
+        long closedEnd = Long.MIN_VALUE;
+        for (Aggregate a : c.items) {
+            if (a.isClosed()) {
+                closedEnd = a.getEnd();
+            } else {
+                assertTrue("partial aggregate after its window closed", a.getEnd() > closedEnd);
+            }
+        }
+    }
+
+    @Test
+    public void testDemand() {
+        WindowAggregator agg = new WindowAggregator(Window.tumbling(10, TimeUnit.SECONDS), Emission.ON_CLOSE_INCLUDING_EMPTY);
+        Collector c = subscribe(agg, 1);
+        agg.accept(1000, 1);
+        agg.advance(35000);
+        assertEquals(1, c.items.size());
+        c.sub.request(2);
+        assertEquals(3, c.items.size());
+    }
+
+    @Test
+    public void testClose() {
+        WindowAggregator agg = new WindowAggregator(Window.tumbling(10, TimeUnit.SECONDS), Emission.ON_CLOSE);
+        Collector c = subscribe(agg, Long.MAX_VALUE);
+        agg.close();
+        assertTrue(c.completed);
+        assertNull(c.error);
+        agg.accept(1000, 1);
+        agg.advance(10000);
+        assertTrue(c.items.isEmpty());
+    }
+
+    private void assertWindow(Aggregate a, long start, long end, long count, double sum) {
+        assertEquals(start, a.getStart());
+        assertEquals(end, a.getEnd());
+        assertEquals(count, a.getCount());
+        assertEquals(sum, a.getSum(), 0);
+    }
+
+    private Collector subscribe(WindowAggregator agg, long demand) {
+        Collector c = new Collector(demand);
+        agg.subscribe(c);
+        return c;
+    }
+
+    /**
+     * A subscriber that keeps what it receives.
+     */
+    private static final class Collector implements Flow.Subscriber<Aggregate> {
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            sub = subscription;
+            sub.request(demand);
+        }
+
+        @Override
+        public void onNext(Aggregate item) {
+            items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+
+        private Collector(long demand) {
+            this.demand = demand;
+        }
+
+        private final long demand;
+        private final List<Aggregate> items = new ArrayList<>();
+        private Flow.Subscription sub;
+        private Throwable error;
+        private boolean completed;
+    }
+
+}